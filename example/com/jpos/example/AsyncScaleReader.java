@@ -0,0 +1,288 @@
+package com.jpos.example;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import jpos.JposConst;
+import jpos.JposException;
+import jpos.Scale;
+import jpos.events.DataEvent;
+import jpos.events.DataListener;
+import jpos.events.ErrorEvent;
+import jpos.events.ErrorListener;
+
+/**
+ * AsyncScaleReader class reads stable weights without blocking the caller.
+ *
+ * With AsyncMode set, DLSScaleService.readWeight returns at once and
+ * delivers the weight as the status of a DataEvent, or an ErrorEvent when
+ * it fails or times out. This class sets AsyncMode, issues the read and
+ * returns a future that the event completes, so a UI thread can ask for a
+ * weight and carry on. Only one read can be pending on a scale.
+ *
+ * A read is cancelled with {@link #cancel()} or by cancelling its future;
+ * both clear the pending read in the service with clearInput(). If neither
+ * event arrives within the read timeout plus a grace period, the read is
+ * cleared and the future fails with JPOS_E_TIMEOUT.
+ *
+ * Futures complete on the jpos event thread, so follow-up work that
+ * touches the UI should be handed to the UI thread.
+ */
+public class AsyncScaleReader implements DataListener, ErrorListener {
+
+    public static final int DEFAULT_GRACE_MILLIS = 500;
+
+    private final Scale scale;
+    private final long graceMillis;
+    private final DeviceThreads threads;
+    private CompletableFuture<Integer> pending = null;
+    private long deadline = Long.MAX_VALUE;
+    private boolean closed = false;
+
+    /**
+     * @param scale Scale that is claimed and enabled
+     * @throws JposException if AsyncMode cannot be set
+     */
+    public AsyncScaleReader(Scale scale) throws JposException {
+        this(scale, DEFAULT_GRACE_MILLIS);
+    }
+
+    /**
+     * @param scale Scale that is claimed and enabled
+     * @param graceMillis long indicating how long past the read timeout to
+     * wait for the service's own timeout event
+     * @throws JposException if AsyncMode cannot be set
+     */
+    public AsyncScaleReader(Scale scale, long graceMillis) throws JposException {
+        this.scale = scale;
+        this.graceMillis = graceMillis;
+        scale.setAsyncMode(true);
+        scale.addDataListener(this);
+        scale.addErrorListener(this);
+        threads = new DeviceThreads("AsyncScaleReader");
+        threads.start("timeout", new Runnable() {
+            @Override
+            public void run() {
+                timeoutLoop();
+            }
+        });
+    }
+
+    /**
+     * Starts reading a stable weight.
+     *
+     * @param timeoutMillis int containing the time to wait for a stable
+     * weight, or JPOS_FOREVER
+     * @return CompletableFuture of the weight in thousandths of the
+     * WeightUnit. It fails with the JposException of the service, or with
+     * JPOS_E_BUSY if a read is already pending.
+     */
+    public CompletableFuture<Integer> readWeight(int timeoutMillis) {
+        final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+        synchronized (this) {
+            if (closed) {
+                future.completeExceptionally(new JposException(JposConst.JPOS_E_CLOSED, "Reader closed."));
+                return future;
+            }
+            if (pending != null) {
+                future.completeExceptionally(new JposException(JposConst.JPOS_E_BUSY, "Read already pending."));
+                return future;
+            }
+            pending = future;
+            deadline = timeoutMillis == JposConst.JPOS_FOREVER ? Long.MAX_VALUE
+                    : System.currentTimeMillis() + timeoutMillis + graceMillis;
+            notifyAll();
+        }
+        try {
+            scale.setDataEventEnabled(true);
+            //the weight argument is only filled in synchronous mode
+            scale.readWeight(new int[1], timeoutMillis);
+        } catch (JposException je) {
+            settle(future, null, je);
+            return future;
+        }
+        future.whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(Integer weight, Throwable error) {
+                if (error instanceof CancellationException && release(future)) {
+                    clearInput();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Cancels the pending read, if any.
+     *
+     * @return boolean indicating whether a read was cancelled
+     */
+    public boolean cancel() {
+        CompletableFuture<Integer> future;
+        synchronized (this) {
+            future = pending;
+        }
+        return future != null && future.cancel(false);
+    }
+
+    /**
+     * @return boolean indicating whether a read is pending
+     */
+    public synchronized boolean isPending() {
+        return pending != null;
+    }
+
+    /**
+     * Cancels the pending read, removes the listeners and clears AsyncMode.
+     *
+     * @param timeoutMillis long indicating how long to wait for the thread
+     * @return boolean indicating whether the thread exited in time
+     */
+    public boolean close(long timeoutMillis) {
+        cancel();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        boolean stopped = threads.shutdown(timeoutMillis);
+        scale.removeDataListener(this);
+        scale.removeErrorListener(this);
+        try {
+            scale.setAsyncMode(false);
+        } catch (JposException je) {
+            //closed already
+        }
+        return stopped;
+    }
+
+    @Override
+    public void dataOccurred(DataEvent de) {
+        CompletableFuture<Integer> future;
+        synchronized (this) {
+            future = pending;
+        }
+        if (future != null) {
+            settle(future, de.getStatus(), null);
+        }
+    }
+
+    @Override
+    public void errorOccurred(ErrorEvent ee) {
+        CompletableFuture<Integer> future;
+        synchronized (this) {
+            future = pending;
+        }
+        if (future != null) {
+            settle(future, null, new JposException(ee.getErrorCode(), ee.getErrorCodeExtended(),
+                    "Weight read failed."));
+        }
+        ee.setErrorResponse(JposConst.JPOS_ER_CLEAR);
+    }
+
+    private void settle(CompletableFuture<Integer> future, Integer weight, JposException error) {
+        if (release(future)) {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(weight);
+            }
+        }
+    }
+
+    /**
+     * @return boolean indicating whether the future was the pending read
+     */
+    private synchronized boolean release(CompletableFuture<Integer> future) {
+        if (pending != future) {
+            return false;
+        }
+        pending = null;
+        deadline = Long.MAX_VALUE;
+        notifyAll();
+        return true;
+    }
+
+    private void clearInput() {
+        try {
+            scale.clearInput();
+        } catch (JposException je) {
+            System.err.println("ERROR: Could not clear the pending weight read, " + je);
+        }
+    }
+
+    private void timeoutLoop() {
+        try {
+            while (true) {
+                CompletableFuture<Integer> expired;
+                synchronized (this) {
+                    long now = System.currentTimeMillis();
+                    while (!closed && deadline > now) {
+                        wait(deadline == Long.MAX_VALUE ? 0 : deadline - now);
+                        now = System.currentTimeMillis();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    expired = pending;
+                }
+                if (expired != null && release(expired)) {
+                    clearInput();
+                    expired.completeExceptionally(new JposException(JposConst.JPOS_E_TIMEOUT,
+                            "No weight within the read timeout."));
+                }
+            }
+        } catch (InterruptedException ie) {
+            //closed
+        }
+    }
+
+    /**
+     * Reads weights asynchronously and reports how long the caller was held
+     * up (Usage: AsyncScaleReader &lt;logicalName&gt; [reads] [timeout]).
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 0) {
+            System.err.println("ERROR: Usage AsyncScaleReader <logicalName> [reads] [timeout]");
+            System.exit(1);
+        }
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int timeout = args.length > 2 ? Integer.parseInt(args[2]) : 3000;
+        Scale scale = new Scale();
+        AsyncScaleReader reader = null;
+        try {
+            scale.open(args[0]);
+            scale.claim(1000);
+            scale.setDeviceEnabled(true);
+            reader = new AsyncScaleReader(scale);
+        } catch (JposException je) {
+            System.err.println("ERROR: Failed to start " + args[0] + ", " + je);
+            System.exit(1);
+        }
+        LatencyHistogram issue = new LatencyHistogram();
+        int failures = 0;
+        for (int i = 0; i < reads; i++) {
+            System.out.println("INFO: Place an item on the scale...");
+            long start = System.nanoTime();
+            CompletableFuture<Integer> weight = reader.readWeight(timeout);
+            issue.record(System.nanoTime() - start);
+            try {
+                System.out.println("INFO: Weight " + weight.get() + " after "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+            } catch (ExecutionException ee) {
+                failures++;
+                System.err.println("ERROR: " + ee.getCause());
+            }
+        }
+        System.out.println("INFO: readWeight returned in " + issue.summary());
+        reader.close(1000);
+        try {
+            scale.setDeviceEnabled(false);
+            scale.release();
+            scale.close();
+        } catch (JposException je) {
+            //ignoring exceptions for this example
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
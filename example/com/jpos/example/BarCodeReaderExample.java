@@ -4,6 +4,7 @@ package com.jpos.example;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import jpos.JposException;
 import jpos.Scanner;
 import jpos.ScannerConst;
@@ -21,6 +22,8 @@ import jpos.events.DataListener;
 public class BarCodeReaderExample implements DataListener {
 
     private Scanner scanner;
+    private final LabelRing labels = new LabelRing();
+    private final StringBuilder output = new StringBuilder(256);
 
     public BarCodeReaderExample() {
         //create a new generic jpos scanner instance.
@@ -157,25 +160,24 @@ public class BarCodeReaderExample implements DataListener {
 
     @Override
     public void dataOccurred(DataEvent de) {
-        //Data event handler for barcode reads from the scanner.
-        byte[] scanData = new byte[]{};
-        byte[] scanDataLabel = new byte[]{};
-        int scanDataType = -1;
+        //Data event handler for barcode reads from the scanner. The label is
+        //copied into a preallocated ring slot, so the application keeps no
+        //per-scan buffers of its own.
+        LabelRing.LabelSlot label = null;
         try {
-            scanData = scanner.getScanData(); //Get raw label data
-            scanDataLabel = scanner.getScanDataLabel(); //get decoded label data
-            scanDataType = scanner.getScanDataType(); //get label symbology
+            label = labels.publish(scanner);
         } catch (JposException je) {
             System.err.println("ERROR JposException during DataEvent, " + je);
         }
 
         //Verify the triggered event was a label read
-        if (scanDataLabel.length > 0) {
-            String sScanData = new String(scanData);
-            String sScanDataLabel = new String(scanDataLabel);
-            String sType = getBarcodeTypeName(scanDataType);
-            System.out.println("Raw Data: " + sScanData + ", Label Data: "
-                    + sScanDataLabel + ", Type: " + sType);
+        if (label != null && label.getScanDataLabelLength() > 0) {
+            //decoded in the platform charset, as new String(scanData) did
+            output.setLength(0);
+            output.append("Raw Data: ").append(label.getScanDataString(Charset.defaultCharset()));
+            output.append(", Label Data: ").append(label.getScanDataLabelString(Charset.defaultCharset()));
+            output.append(", Type: ").append(getBarcodeTypeName(label.getScanDataType()));
+            System.out.println(output);
         }
 
         //data events are auto-disabled after event trigger, must re-enable
@@ -0,0 +1,356 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import jpos.BaseJposControl;
+import jpos.JposConst;
+import jpos.JposException;
+import jpos.RFIDScanner;
+import jpos.Scale;
+import jpos.ScaleConst;
+import jpos.Scanner;
+import jpos.config.JposEntry;
+import jpos.loader.JposServiceLoader;
+
+/**
+ * DeviceBootstrap class opens, claims and enables a set of jpos.xml logical
+ * names concurrently, instead of one after the other as the examples do.
+ *
+ * Each device follows the usual flow (open -> claim -> enable, with status
+ * notify for scales and data events for scanners) and gets its own future
+ * with the time spent in every step. Devices that share a physical port
+ * are started one after the other, in the order given, on one thread:
+ * serial or TCP/IP devices that share their portName or ipAddress:ipPort,
+ * and the scanner and scale of a scanner-scale, which share one USB device
+ * whose interface is claimed with DLSUsbInterfacePolicy. A USB entry that
+ * sets portName (the USB serial number or bus path) is grouped by it;
+ * otherwise the n-th scanner of a vendorId/productId is paired with the
+ * n-th scale of the same vendorId/productId, so identical lanes are not
+ * serialized. Everything else runs in parallel, so a store brings all its
+ * lanes up in about the time of the slowest one.
+ *
+ * Claims go through a DeviceInfoCache, so a device with a cached entry is
+ * claimed without the statistics pull and the configuration push.
+ */
+public class DeviceBootstrap {
+
+    private final DeviceThreads threads;
+    private final ExecutorService executor;
+    private final DeviceInfoCache infoCache = new DeviceInfoCache();
+    private final int claimTimeout;
+
+    /**
+     * Times of one device, in nanoseconds.
+     */
+    public static class Result {
+
+        private final String logicalName;
+        private final BaseJposControl control;
+        private long waitNanos;
+        private long openNanos;
+        private long claimNanos;
+        private long enableNanos;
+        private HashMap<String, Object> cachedInfo;
+
+        private Result(String logicalName, BaseJposControl control) {
+            this.logicalName = logicalName;
+            this.control = control;
+        }
+
+        public String getLogicalName() {
+            return logicalName;
+        }
+
+        public BaseJposControl getControl() {
+            return control;
+        }
+
+        /**
+         * @return long containing the time spent waiting for devices that
+         * share the port
+         */
+        public long getWaitNanos() {
+            return waitNanos;
+        }
+
+        public long getOpenNanos() {
+            return openNanos;
+        }
+
+        public long getClaimNanos() {
+            return claimNanos;
+        }
+
+        /**
+         * @return long containing the time to enable the device, status
+         * notify and data events included
+         */
+        public long getEnableNanos() {
+            return enableNanos;
+        }
+
+        /**
+         * @return HashMap of the cached IHS items the device was claimed
+         * with, or null if it was claimed with the round-trips configured
+         */
+        public HashMap<String, Object> getCachedInfo() {
+            return cachedInfo;
+        }
+
+        public long getTotalNanos() {
+            return waitNanos + openNanos + claimNanos + enableNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: wait=%dms open=%dms claim=%dms%s enable=%dms total=%dms", logicalName,
+                    waitNanos / 1000000, openNanos / 1000000, claimNanos / 1000000,
+                    cachedInfo != null ? " (cached)" : "", enableNanos / 1000000, getTotalNanos() / 1000000);
+        }
+    }
+
+    /**
+     * @param claimTimeout int containing the claim timeout in milliseconds
+     */
+    public DeviceBootstrap(int claimTimeout) {
+        this.claimTimeout = claimTimeout;
+        threads = new DeviceThreads("DeviceBootstrap");
+        executor = threads.executor();
+    }
+
+    /**
+     * Starts devices with controls created from their jpos.xml category
+     * (Scanner, Scale or RFIDScanner).
+     *
+     * @param logicalNames String array of jpos.xml logical names
+     * @return Map of logical name to its future, in the given order
+     */
+    public Map<String, CompletableFuture<Result>> start(String... logicalNames) {
+        Map<String, BaseJposControl> controls = new LinkedHashMap<String, BaseJposControl>();
+        Map<String, CompletableFuture<Result>> failed = new LinkedHashMap<String, CompletableFuture<Result>>();
+        for (String logicalName : logicalNames) {
+            try {
+                controls.put(logicalName, createControl(logicalName));
+            } catch (JposException je) {
+                CompletableFuture<Result> future = new CompletableFuture<Result>();
+                future.completeExceptionally(je);
+                failed.put(logicalName, future);
+            }
+        }
+        Map<String, CompletableFuture<Result>> started = start(controls);
+        Map<String, CompletableFuture<Result>> futures = new LinkedHashMap<String, CompletableFuture<Result>>();
+        for (String logicalName : logicalNames) {
+            CompletableFuture<Result> future = started.get(logicalName);
+            futures.put(logicalName, future != null ? future : failed.get(logicalName));
+        }
+        return futures;
+    }
+
+    /**
+     * Starts devices with controls supplied by the caller, who should add
+     * its listeners first so that no event is missed.
+     *
+     * @param controls Map of logical name to the unopened control
+     * @return Map of logical name to its future, in the given order. A
+     * future fails with the JposException of the step that failed, and the
+     * control is then closed.
+     */
+    public Map<String, CompletableFuture<Result>> start(Map<String, BaseJposControl> controls) {
+        Map<String, CompletableFuture<Result>> futures = new LinkedHashMap<String, CompletableFuture<Result>>();
+        Map<String, List<Result>> groups = new LinkedHashMap<String, List<Result>>();
+        Map<String, Integer> usbSlots = new HashMap<String, Integer>();
+        for (Map.Entry<String, BaseJposControl> entry : controls.entrySet()) {
+            String group = sharedPort(entry.getKey(), usbSlots);
+            List<Result> members = groups.get(group);
+            if (members == null) {
+                members = new ArrayList<Result>();
+                groups.put(group, members);
+            }
+            members.add(new Result(entry.getKey(), entry.getValue()));
+            futures.put(entry.getKey(), new CompletableFuture<Result>());
+        }
+        final long queued = System.nanoTime();
+        for (final List<Result> members : groups.values()) {
+            final List<CompletableFuture<Result>> memberFutures = new ArrayList<CompletableFuture<Result>>();
+            for (Result member : members) {
+                memberFutures.add(futures.get(member.logicalName));
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < members.size(); i++) {
+                            members.get(i).waitNanos = System.nanoTime() - queued;
+                            bringUp(members.get(i), memberFutures.get(i));
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                for (CompletableFuture<Result> future : memberFutures) {
+                    future.completeExceptionally(ree);
+                }
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Stops the bootstrap threads. Devices already started stay enabled.
+     *
+     * @param timeoutMillis long indicating how long to wait for the threads
+     * @return boolean indicating whether every thread exited in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        return threads.shutdown(timeoutMillis);
+    }
+
+    private void bringUp(Result result, CompletableFuture<Result> future) {
+        final BaseJposControl control = result.control;
+        try {
+            long start = System.nanoTime();
+            control.open(result.logicalName);
+            long opened = System.nanoTime();
+            result.openNanos = opened - start;
+            DLSDeviceInfo info = loadInfo(result.logicalName);
+            DeviceInfoCache.Claim<JposException> claim = new DeviceInfoCache.Claim<JposException>() {
+                @Override
+                public void claim() throws JposException {
+                    control.claim(claimTimeout);
+                }
+            };
+            if (info != null) {
+                result.cachedInfo = infoCache.claim(result.logicalName, info, claim);
+            } else {
+                claim.claim();
+            }
+            long claimed = System.nanoTime();
+            result.claimNanos = claimed - opened;
+            if (control instanceof Scale && ((Scale) control).getCapStatusUpdate()) {
+                ((Scale) control).setStatusNotify(ScaleConst.SCAL_SN_ENABLED);
+            }
+            control.setDeviceEnabled(true);
+            if (control instanceof Scanner) {
+                ((Scanner) control).setDataEventEnabled(true);
+            } else if (control instanceof RFIDScanner) {
+                ((RFIDScanner) control).setDataEventEnabled(true);
+            }
+            result.enableNanos = System.nanoTime() - claimed;
+            future.complete(result);
+        } catch (JposException je) {
+            try {
+                control.close();
+            } catch (JposException ce) {
+                //not opened
+            }
+            future.completeExceptionally(je);
+        } catch (RuntimeException re) {
+            try {
+                control.close();
+            } catch (JposException ce) {
+                //not opened
+            }
+            future.completeExceptionally(re);
+        }
+    }
+
+    /**
+     * @param logicalName String containing the jpos.xml logical name
+     * @param usbSlots Map counting the USB devices seen so far per
+     * vendorId/productId and category
+     * @return String identifying the physical port of the device
+     */
+    private static String sharedPort(String logicalName, Map<String, Integer> usbSlots) {
+        DLSDeviceInfo info = loadInfo(logicalName);
+        if (info == null) {
+            return logicalName;
+        }
+        String bus = info.getDeviceBus();
+        if ("USB".equalsIgnoreCase(bus)) {
+            String device = String.format("USB:%04x:%04x", info.getVendorId(), info.getProductId());
+            //portName defaults to "1", so only an explicit one names the device
+            JposEntry entry = JposServiceLoader.getManager().getEntryRegistry().getJposEntry(logicalName);
+            Object port = entry != null ? entry.getPropertyValue(DLSDeviceInfo.KEY_PORTNAME) : null;
+            if (port != null && !port.toString().trim().isEmpty()) {
+                return device + ":" + port.toString().trim();
+            }
+            //without a port only a scanner and a scale can share the device
+            String kind = device + ":" + info.getDeviceCategory();
+            Integer slot = usbSlots.get(kind);
+            slot = slot == null ? 0 : slot + 1;
+            usbSlots.put(kind, slot);
+            return device + "#" + slot;
+        }
+        if ("TCPIP".equalsIgnoreCase(bus)) {
+            return "TCPIP:" + info.getIPAddress() + ":" + info.getIPPort();
+        }
+        if (info.getPortAsString() != null && !info.getPortAsString().isEmpty()) {
+            return bus + ":" + info.getPortAsString();
+        }
+        return logicalName;
+    }
+
+    /**
+     * @param logicalName String containing the jpos.xml logical name
+     * @return DLSDeviceInfo of the entry, or null if there is none
+     */
+    private static DLSDeviceInfo loadInfo(String logicalName) {
+        DLSDeviceInfo info = new DLSDeviceInfo();
+        try {
+            return info.loadConfiguration(logicalName) ? info : null;
+        } catch (RuntimeException re) {
+            //unknown logical names fail inside the config loader
+            return null;
+        }
+    }
+
+    private static BaseJposControl createControl(String logicalName) throws JposException {
+        DLSDeviceInfo info = loadInfo(logicalName);
+        if (info == null) {
+            throw new JposException(JposConst.JPOS_E_NOEXIST, logicalName + " is not in jpos.xml.");
+        }
+        String category = info.getDeviceCategory();
+        if ("Scanner".equals(category)) {
+            return new Scanner();
+        } else if ("Scale".equals(category)) {
+            return new Scale();
+        } else if ("RFIDScanner".equals(category)) {
+            return new RFIDScanner();
+        }
+        throw new JposException(JposConst.JPOS_E_NOSERVICE,
+                "No control for category " + category + " of " + logicalName);
+    }
+
+    /**
+     * Usage: DeviceBootstrap &lt;logicalName&gt; [&lt;logicalName&gt; ...]
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 0) {
+            System.err.println("ERROR: Usage DeviceBootstrap <logicalName> [<logicalName> ...]");
+            System.exit(1);
+        }
+        DeviceBootstrap bootstrap = new DeviceBootstrap(1000);
+        long start = System.nanoTime();
+        Map<String, CompletableFuture<Result>> futures = bootstrap.start(args);
+        int failures = 0;
+        for (Map.Entry<String, CompletableFuture<Result>> entry : futures.entrySet()) {
+            try {
+                System.out.println("INFO: " + entry.getValue().get());
+            } catch (ExecutionException ee) {
+                failures++;
+                System.err.println("ERROR: Failed to start " + entry.getKey() + ", " + ee.getCause());
+            }
+        }
+        System.out.println("INFO: " + (futures.size() - failures) + " of " + futures.size()
+                + " device(s) started in " + (System.nanoTime() - start) / 1000000 + " ms");
+        bootstrap.shutdown(1000);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
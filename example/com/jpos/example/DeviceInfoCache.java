@@ -0,0 +1,308 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import com.dls.jpos.common.DLSProperties;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import jpos.config.JposEntry;
+import jpos.loader.JposServiceLoader;
+
+/**
+ * DeviceInfoCache class keeps the IHS information of each device on disk,
+ * so that applications can have ApplicationROM, SerialNumber, Interface and
+ * the other IHSParser.csv items at open() without a round-trip to the
+ * device, and so that a known device can be claimed without the
+ * round-trips that fetch and push them.
+ *
+ * The service pulls the statistics during claim() when
+ * GenerateStatsOnEveryClaim is set, and DLSScanner and DLSScale push the
+ * configuration with updateConfiguration() when AutoLoadConfig is set.
+ * {@link #claim(String, DLSDeviceInfo, Claim)} turns both off for a device
+ * with a valid entry, so a known device is claimed without them, and runs
+ * the claim as configured only for a device without one. Both settings
+ * are read from dls.properties by every claim in the process, so claims
+ * with and without them are never run at the same time through this
+ * class; claims made elsewhere meanwhile see the fast settings.
+ *
+ * Entries live under TempDir (dls.properties) in dls-device-info, one
+ * file per device named after its vendorId, productId, serial number and
+ * application ROM, plus an index mapping jpos.xml logical names to their
+ * current entry. Files are replaced atomically, so a crash mid-write leaves
+ * the previous entry intact.
+ *
+ * Entries are advisory. lookup() does not query the device, so an entry
+ * describes the firmware the device had when it was stored; it is dropped
+ * when the vendorId/productId of the logical name, or the USB serial
+ * number its portName sets, no longer match, and replaced when a later
+ * store() sees another ROM. Without a serial number in portName the
+ * device is matched on vendorId/productId only. Code that flashes a
+ * device calls {@link #invalidate(String)} first, as FirmwareUpdateEngine
+ * and EnterKeyTest do, and code that has read the ROM from the device can
+ * check an entry with {@link #isCurrent(String, String)}.
+ */
+public class DeviceInfoCache {
+
+    public static final String KEY_APPLICATIONROM = "ApplicationROM";
+    public static final String KEY_SERIALNUMBER = "SerialNumber";
+    public static final String KEY_CONFIGURATIONFILEID = "ConfigurationFileID";
+    private static final String DIRECTORY = "dls-device-info";
+    private static final String INDEX_FILE = "index.properties";
+
+    private static final Object CLAIM_LOCK = new Object();
+    private static int claiming = 0;
+    private static boolean claimingFast = false;
+    private static boolean statsOnClaim;
+    private static boolean autoLoadConfig;
+
+    private final File directory;
+    private final Properties index = new Properties();
+
+    /**
+     * A claim of a device, e.g. DLSDevice.claim or BaseJposControl.claim.
+     *
+     * @param <E> type of the exception the claim throws
+     */
+    public interface Claim<E extends Exception> {
+
+        void claim() throws E;
+    }
+
+    /**
+     * Creates a cache under TempDir from dls.properties.
+     */
+    public DeviceInfoCache() {
+        this(new File(DLSProperties.getInstance().getTempDir(), DIRECTORY));
+    }
+
+    /**
+     * @param directory File containing the cache directory, created if
+     * needed
+     */
+    public DeviceInfoCache(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("ERROR: Cannot create device info cache " + directory);
+        }
+        load(new File(directory, INDEX_FILE), index);
+    }
+
+    /**
+     * Returns the cached IHS information of a device, without checking it
+     * against the device.
+     *
+     * @param logicalName String containing the jpos.xml logical name
+     * @param info DLSDeviceInfo of the logical name
+     * @return HashMap of IHS items, or null if the device has no valid
+     * entry
+     */
+    public synchronized HashMap<String, Object> lookup(String logicalName, DLSDeviceInfo info) {
+        String key = index.getProperty(logicalName);
+        if (key == null) {
+            return null;
+        }
+        String serialNumber = serialNumberOf(logicalName, info);
+        if (!key.startsWith(serialNumber == null ? prefix(info) : prefix(info) + "_" + sanitize(serialNumber) + "_")) {
+            //the logical name now points at another device
+            invalidate(logicalName);
+            return null;
+        }
+        Properties entry = new Properties();
+        if (!load(new File(directory, key + ".properties"), entry)) {
+            invalidate(logicalName);
+            return null;
+        }
+        HashMap<String, Object> items = new HashMap<String, Object>();
+        for (String name : entry.stringPropertyNames()) {
+            items.put(name, entry.getProperty(name));
+        }
+        return items;
+    }
+
+    /**
+     * Claims a device, without the statistics pull and the configuration
+     * push of claim() when it has a valid entry.
+     *
+     * @param logicalName String containing the jpos.xml logical name
+     * @param info DLSDeviceInfo of the logical name
+     * @param claim Claim of the device
+     * @return HashMap of the cached IHS items the claim relied on, or null
+     * if the device has no valid entry and was claimed as configured
+     * @throws E if the claim fails
+     */
+    public <E extends Exception> HashMap<String, Object> claim(String logicalName, DLSDeviceInfo info,
+            Claim<E> claim) throws E {
+        HashMap<String, Object> items = lookup(logicalName, info);
+        enterClaim(items != null);
+        try {
+            claim.claim();
+        } finally {
+            exitClaim();
+        }
+        return items;
+    }
+
+    /**
+     * Stores the IHS information read from a device. Non-string items are
+     * left out.
+     *
+     * @param logicalName String containing the jpos.xml logical name
+     * @param info DLSDeviceInfo of the logical name
+     * @param items Map of IHS items, e.g. from DLSDevice.getStatistics()
+     * @return boolean indicating whether the entry was written
+     */
+    public synchronized boolean store(String logicalName, DLSDeviceInfo info, Map<String, Object> items) {
+        Properties entry = new Properties();
+        for (Map.Entry<String, Object> item : items.entrySet()) {
+            if (item.getValue() instanceof String) {
+                entry.setProperty(item.getKey(), (String) item.getValue());
+            }
+        }
+        String key = prefix(info) + "_" + sanitize(entry.getProperty(KEY_SERIALNUMBER))
+                + "_" + sanitize(entry.getProperty(KEY_APPLICATIONROM));
+        if (!save(new File(directory, key + ".properties"), entry, logicalName)) {
+            return false;
+        }
+        String previous = (String) index.setProperty(logicalName, key);
+        if (previous != null && !previous.equals(key) && !index.containsValue(previous)) {
+            //ROM or serial changed, the old entry is stale
+            new File(directory, previous + ".properties").delete();
+        }
+        return save(new File(directory, INDEX_FILE), index, "DLS device info index");
+    }
+
+    /**
+     * @param logicalName String containing the jpos.xml logical name
+     * @param applicationRom String containing the ROM reported by the device
+     * @return boolean indicating whether the cached entry was read from the
+     * same firmware
+     */
+    public synchronized boolean isCurrent(String logicalName, String applicationRom) {
+        String key = index.getProperty(logicalName);
+        return key != null && applicationRom != null && key.endsWith("_" + sanitize(applicationRom));
+    }
+
+    /**
+     * Drops the entry of a device, e.g. before its firmware is updated.
+     *
+     * @param logicalName String containing the jpos.xml logical name
+     */
+    public synchronized void invalidate(String logicalName) {
+        String key = (String) index.remove(logicalName);
+        if (key == null) {
+            return;
+        }
+        if (!index.containsValue(key)) {
+            new File(directory, key + ".properties").delete();
+        }
+        save(new File(directory, INDEX_FILE), index, "DLS device info index");
+    }
+
+    /**
+     * @param logicalName String containing the jpos.xml logical name
+     * @param info DLSDeviceInfo of the logical name
+     * @return String containing the USB serial number set as portName, or
+     * null if there is none
+     */
+    private static String serialNumberOf(String logicalName, DLSDeviceInfo info) {
+        if (!"USB".equalsIgnoreCase(info.getDeviceBus())) {
+            return null;
+        }
+        //portName defaults to "1", so only an explicit one is a serial number
+        JposEntry entry = JposServiceLoader.getManager().getEntryRegistry().getJposEntry(logicalName);
+        Object serial = entry != null ? entry.getPropertyValue(DLSDeviceInfo.KEY_PORTNAME) : null;
+        return serial != null && !serial.toString().trim().isEmpty() ? serial.toString().trim() : null;
+    }
+
+    /**
+     * Waits until no claim of the other kind is running, and turns the
+     * claim-time round-trips off for the first fast claim.
+     */
+    private static void enterClaim(boolean fast) {
+        boolean interrupted = false;
+        synchronized (CLAIM_LOCK) {
+            while (claiming > 0 && claimingFast != fast) {
+                try {
+                    CLAIM_LOCK.wait();
+                } catch (InterruptedException ie) {
+                    //the claim itself is not interruptible either
+                    interrupted = true;
+                }
+            }
+            if (claiming++ == 0) {
+                claimingFast = fast;
+                if (fast) {
+                    DLSProperties properties = DLSProperties.getInstance();
+                    statsOnClaim = properties.getStatsOnClaim();
+                    autoLoadConfig = properties.getAutoLoadConfig();
+                    properties.set(DLSProperties.KEY_STATSONCLAIM, false);
+                    properties.set(DLSProperties.KEY_AUTOLOADCONFIG, false);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void exitClaim() {
+        synchronized (CLAIM_LOCK) {
+            if (--claiming == 0) {
+                if (claimingFast) {
+                    DLSProperties properties = DLSProperties.getInstance();
+                    properties.set(DLSProperties.KEY_STATSONCLAIM, statsOnClaim);
+                    properties.set(DLSProperties.KEY_AUTOLOADCONFIG, autoLoadConfig);
+                }
+                CLAIM_LOCK.notifyAll();
+            }
+        }
+    }
+
+    private static String prefix(DLSDeviceInfo info) {
+        return String.format("%04x_%04x", info.getVendorId(), info.getProductId());
+    }
+
+    private static String sanitize(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return "unknown";
+        }
+        return value.trim().replaceAll("[^A-Za-z0-9.-]", "-");
+    }
+
+    private static boolean load(File file, Properties properties) {
+        if (!file.isFile()) {
+            return false;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("ERROR: Cannot read " + file + ", " + e);
+            return false;
+        }
+    }
+
+    private boolean save(File file, Properties properties, String comment) {
+        File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, comment);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Cannot write " + file + ", " + ioe);
+            temp.delete();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSProperties;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DeviceThreads class creates and tracks the worker threads that belong to
+ * one device or host, and stops them together.
+ *
+ * When UseVirtualThreads=true is set in dls.properties and the JVM supports
+ * virtual threads (Java 21 or later), the threads are virtual. A host
+ * serving dozens of lanes then pays neither a platform thread nor a
+ * dedicated stack per reader. On older JVMs, or when the property is
+ * false, daemon platform threads are used and behavior is unchanged.
+ *
+ * Shutdown protocol: {@link #shutdown(long)} stops accepting new work,
+ * interrupts every tracked thread, and waits up to the given time for them
+ * to finish. Tasks must treat interruption as a request to exit.
+ */
+public class DeviceThreads {
+
+    public static final String KEY_USEVIRTUALTHREADS = "UseVirtualThreads";
+
+    private static final ThreadFactory VIRTUAL_FACTORY = lookupVirtualFactory();
+
+    private final String owner;
+    private final boolean virtual;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final List<ExecutorService> executors = new ArrayList<ExecutorService>();
+    private ExecutorService executor;
+    private boolean shutdown = false;
+
+    /**
+     * Creates a thread group configured from dls.properties.
+     *
+     * @param owner String naming the device or host, used in thread names
+     */
+    public DeviceThreads(String owner) {
+        this(owner, DLSProperties.getInstance().get(KEY_USEVIRTUALTHREADS, false));
+    }
+
+    /**
+     * @param owner String naming the device or host, used in thread names
+     * @param useVirtualThreads boolean requesting virtual threads when the
+     * JVM supports them
+     */
+    public DeviceThreads(String owner, boolean useVirtualThreads) {
+        this.owner = owner;
+        this.virtual = useVirtualThreads && VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * @return boolean indicating whether this JVM can run virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * @return boolean indicating whether this group creates virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Starts a tracked thread.
+     *
+     * @param name String appended to the owner name
+     * @param task Runnable to run
+     * @return Thread started
+     * @throws IllegalStateException if the group has been shut down
+     */
+    public synchronized Thread start(String name, Runnable task) {
+        if (shutdown) {
+            throw new IllegalStateException(owner + " threads are shut down.");
+        }
+        Thread thread = newThread(task);
+        thread.setName(owner + "-" + name);
+        threads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Returns the shared executor of this group, creating it on first use.
+     * It is one virtual thread per task in virtual mode, and a cached pool of
+     * daemon threads otherwise.
+     *
+     * @return ExecutorService owned by this group
+     */
+    public synchronized ExecutorService executor() {
+        if (shutdown) {
+            throw new IllegalStateException(owner + " threads are shut down.");
+        }
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(factory("worker"));
+            executors.add(executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Creates an executor with a fixed number of threads, owned and shut
+     * down by this group. Use it where the number of concurrent tasks must
+     * stay bounded regardless of the thread type.
+     *
+     * @param name String appended to the owner name of each thread
+     * @param threadCount int indicating the number of threads
+     * @return ExecutorService owned by this group
+     */
+    public synchronized ExecutorService fixedExecutor(String name, int threadCount) {
+        if (shutdown) {
+            throw new IllegalStateException(owner + " threads are shut down.");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount, factory(name));
+        executors.add(pool);
+        return pool;
+    }
+
+    /**
+     * Stops all threads of this group.
+     *
+     * @param timeoutMillis long indicating how long to wait for the threads
+     * to exit
+     * @return boolean indicating whether every thread exited in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        List<Thread> toJoin;
+        List<ExecutorService> pools;
+        synchronized (this) {
+            shutdown = true;
+            toJoin = new ArrayList<Thread>(threads);
+            threads.clear();
+            pools = new ArrayList<ExecutorService>(executors);
+            executors.clear();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (ExecutorService pool : pools) {
+            pool.shutdownNow();
+        }
+        for (Thread thread : toJoin) {
+            thread.interrupt();
+        }
+        boolean stopped = true;
+        try {
+            for (Thread thread : toJoin) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining > 0) {
+                    thread.join(remaining);
+                }
+                stopped &= !thread.isAlive();
+            }
+            for (ExecutorService pool : pools) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                stopped &= pool.awaitTermination(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return stopped;
+    }
+
+    private ThreadFactory factory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = DeviceThreads.this.newThread(r);
+                thread.setName(owner + "-" + name + "-" + count.getAndIncrement());
+                return thread;
+            }
+        };
+    }
+
+    private Thread newThread(Runnable task) {
+        if (virtual) {
+            return VIRTUAL_FACTORY.newThread(task);
+        }
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Resolves Thread.ofVirtual().factory() reflectively so this class still
+     * compiles against JDKs before 21. The factory method is looked up on
+     * the public Thread.Builder interface, since the builder implementation
+     * class is not accessible outside java.base.
+     */
+    private static ThreadFactory lookupVirtualFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
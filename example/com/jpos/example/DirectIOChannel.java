@@ -0,0 +1,313 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSJposConst;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import jpos.BaseJposControl;
+import jpos.JposConst;
+import jpos.JposException;
+
+/**
+ * DirectIOChannel class issues directIO commands on one control through
+ * typed command handles and caller-owned, reusable results.
+ *
+ * EnterKeyTest and VideoControls used to create an int[50] and a
+ * ByteArrayOutputStream for every label or iteration, and to copy the
+ * stream out with toByteArray(). A {@link Result} is created once and
+ * reused: the service resets its stream before writing, and the bytes are
+ * read in place with {@link Result#getBuffer()} or copied into a caller's
+ * ByteBuffer.
+ *
+ * The channel also remembers which commands the device rejects as
+ * "Unsupported/Invalid Direct I/O". DLSUSBScanner, for example, has no
+ * DIO_RETURN_QUANTITY or DIO_RETURN_DATA_TYPE, and the service only finds
+ * that out after a trip through the interpretation layer. A rejected
+ * command is not sent again, so per-label lookups cost nothing on devices
+ * that cannot answer them.
+ *
+ * {@link #execute(Command[], Result[])} runs several commands in one call.
+ * jpos directIO carries one command per call, so they are issued one after
+ * the other, but unsupported ones are skipped and one failure does not stop
+ * the rest.
+ */
+public class DirectIOChannel {
+
+    /** Message DLSException carries for a command the device lacks. */
+    public static final String UNSUPPORTED_MESSAGE = "Unsupported/Invalid Direct I/O";
+
+    public static final Command RETURN_QUANTITY = new Command("DIO_RETURN_QUANTITY", DLSJposConst.DIO_RETURN_QUANTITY);
+    public static final Command RETURN_DATA_TYPE = new Command("DIO_RETURN_DATA_TYPE", DLSJposConst.DIO_RETURN_DATA_TYPE);
+    public static final Command RETURN_DATA = new Command("DIO_RETURN_DATA", DLSJposConst.DIO_RETURN_DATA);
+    public static final Command EXT_VIDEO_STREAM_ON = new Command("DIO_EXT_VIDEO_STREAM_ON", DLSJposConst.DIO_EXT_VIDEO_STREAM_ON);
+    public static final Command EXT_VIDEO_STREAM_OFF = new Command("DIO_EXT_VIDEO_STREAM_OFF", DLSJposConst.DIO_EXT_VIDEO_STREAM_OFF);
+
+    private static final int UNKNOWN = 0;
+    private static final int SUPPORTED = 1;
+    private static final int UNSUPPORTED = 2;
+
+    private final BaseJposControl control;
+    //support per command, indexed by Command.slot
+    private int[] support = new int[16];
+
+    /**
+     * A directIO command code resolved once, with its name for logging.
+     */
+    public static final class Command {
+
+        private static int slots = 0;
+        private final String name;
+        private final int code;
+        private final int slot;
+
+        /**
+         * @param name String containing the DLSJposConst name, for logging
+         * @param code int containing the directIO command
+         */
+        public Command(String name, int code) {
+            this.name = name;
+            this.code = code;
+            synchronized (Command.class) {
+                this.slot = slots++;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        @Override
+        public String toString() {
+            return name + "(" + code + ")";
+        }
+    }
+
+    /**
+     * Reusable data and object arguments of a directIO call.
+     */
+    public static final class Result {
+
+        private final int[] data;
+        private final ResultStream bytes = new ResultStream();
+        private JposException error = null;
+
+        public Result() {
+            this(50);
+        }
+
+        /**
+         * @param dataLength int indicating the size of the data array
+         */
+        public Result(int dataLength) {
+            data = new int[dataLength];
+        }
+
+        /**
+         * @return int array passed as data; data[0] usually holds the
+         * DIO status
+         */
+        public int[] getData() {
+            return data;
+        }
+
+        public int getStatus() {
+            return data[0];
+        }
+
+        /**
+         * @return byte array holding the returned bytes in its first
+         * getLength() entries. It is reused by the next call.
+         */
+        public byte[] getBuffer() {
+            return bytes.buffer();
+        }
+
+        public int getLength() {
+            return bytes.size();
+        }
+
+        /**
+         * @param index int indicating a returned byte
+         * @return int containing the byte, or -1 if fewer were returned
+         */
+        public int getByte(int index) {
+            return index < bytes.size() ? bytes.buffer()[index] & 0xFF : -1;
+        }
+
+        /**
+         * Copies the returned bytes into a caller's buffer.
+         *
+         * @param target ByteBuffer with room for getLength() bytes
+         */
+        public void copyTo(ByteBuffer target) {
+            target.put(bytes.buffer(), 0, bytes.size());
+        }
+
+        /**
+         * @return JposException of the last call, or null if it succeeded
+         */
+        public JposException getError() {
+            return error;
+        }
+
+        /**
+         * @return ByteArrayOutputStream passed as object
+         */
+        ByteArrayOutputStream stream() {
+            return bytes;
+        }
+
+        private void clear() {
+            Arrays.fill(data, 0);
+            bytes.reset();
+            error = null;
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream whose buffer can be read without a copy.
+     */
+    private static final class ResultStream extends ByteArrayOutputStream {
+
+        private ResultStream() {
+            super(64);
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * @param control BaseJposControl that is claimed
+     */
+    public DirectIOChannel(BaseJposControl control) {
+        this.control = control;
+    }
+
+    /**
+     * Issues a command, unless the device has rejected it before.
+     *
+     * @param command Command to issue
+     * @param result Result receiving the data and bytes
+     * @return boolean indicating whether the command was issued
+     * @throws JposException if the device fails the command for another
+     * reason
+     */
+    public boolean execute(Command command, Result result) throws JposException {
+        result.clear();
+        if (supportOf(command) == UNSUPPORTED) {
+            return false;
+        }
+        try {
+            control.directIO(command.code, result.data, result.stream());
+        } catch (JposException je) {
+            if (je.getMessage() != null && je.getMessage().startsWith(UNSUPPORTED_MESSAGE)) {
+                setSupport(command, UNSUPPORTED);
+                return false;
+            }
+            result.error = je;
+            throw je;
+        }
+        setSupport(command, SUPPORTED);
+        return true;
+    }
+
+    /**
+     * Issues several commands in one call. Each result records its own
+     * error instead of throwing.
+     *
+     * @param commands Command array to issue
+     * @param results Result array, one per command
+     * @return int containing the number of commands that succeeded
+     */
+    public int execute(Command[] commands, Result[] results) {
+        int succeeded = 0;
+        for (int i = 0; i < commands.length; i++) {
+            try {
+                if (execute(commands[i], results[i])) {
+                    succeeded++;
+                }
+            } catch (JposException je) {
+                //kept in results[i]
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * @param command Command to check
+     * @return boolean indicating whether the command may be supported; false
+     * once the device has rejected it
+     */
+    public boolean isSupported(Command command) {
+        return supportOf(command) != UNSUPPORTED;
+    }
+
+    /**
+     * Forgets which commands were rejected, e.g. after the device was
+     * replaced or its firmware updated.
+     */
+    public synchronized void resetSupport() {
+        Arrays.fill(support, UNKNOWN);
+    }
+
+    private synchronized int supportOf(Command command) {
+        return command.slot < support.length ? support[command.slot] : UNKNOWN;
+    }
+
+    private synchronized void setSupport(Command command, int state) {
+        if (command.slot >= support.length) {
+            support = Arrays.copyOf(support, Math.max(command.slot + 1, support.length * 2));
+        }
+        support[command.slot] = state;
+    }
+
+    /**
+     * Runs a scripted directIO exchange against a stand-in control (Usage:
+     * DirectIOChannel [labels]) and checks that rejected commands are only
+     * sent once and that results are reused.
+     */
+    public static void main(String[] args) throws JposException {
+        int labels = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int[] calls = new int[1];
+        BaseJposControl device = new jpos.Scanner() {
+            @Override
+            public void directIO(int command, int[] data, Object object) throws JposException {
+                calls[0]++;
+                if (command == DLSJposConst.DIO_RETURN_QUANTITY) {
+                    throw new JposException(JposConst.JPOS_E_FAILURE,
+                            UNSUPPORTED_MESSAGE + " command received for this device");
+                }
+                data[0] = 0;
+                ByteArrayOutputStream out = (ByteArrayOutputStream) object;
+                out.reset();
+                out.write(0x02);
+                out.write(command & 0xFF);
+            }
+        };
+        DirectIOChannel channel = new DirectIOChannel(device);
+        Command[] commands = {RETURN_QUANTITY, RETURN_DATA_TYPE};
+        Result[] results = {new Result(), new Result()};
+        ByteBuffer copy = ByteBuffer.allocate(16);
+        int succeeded = 0;
+        for (int i = 0; i < labels; i++) {
+            succeeded += channel.execute(commands, results);
+            copy.clear();
+            results[1].copyTo(copy);
+        }
+        boolean ok = calls[0] == labels + 1 && succeeded == labels && !channel.isSupported(RETURN_QUANTITY)
+                && results[1].getLength() == 2 && results[1].getByte(1) == (DLSJposConst.DIO_RETURN_DATA_TYPE & 0xFF)
+                && copy.position() == 2;
+        System.out.println("Labels:    " + labels + ", " + calls[0] + " directIO calls for "
+                + labels * commands.length + " lookups");
+        System.out.println("Supported: " + RETURN_QUANTITY + "=" + channel.isSupported(RETURN_QUANTITY)
+                + ", " + RETURN_DATA_TYPE + "=" + channel.isSupported(RETURN_DATA_TYPE));
+        System.out.println(ok ? "INFO: DirectIO channel behaved as expected." : "ERROR: DirectIO channel mismatch.");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,299 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSProperties;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EciDecoderCache class decodes labels carrying Extended Channel
+ * Interpretation escapes (a single backslash followed by six digits) using
+ * charsets resolved once from ECIEncoding.csv.
+ *
+ * Charsets are looked up a single time at load, and the decoders are kept in
+ * an array indexed by ECI code, so decoding a label does no map or name
+ * lookups. Decoding goes through reusable byte and char buffers.
+ *
+ * Data before the first ECI escape, and data under an ECI code with no
+ * supported encoding, is decoded as ISO-8859-1 so bytes pass through
+ * unchanged. A doubled backslash is a literal and is kept as is, as
+ * ExtendedChannelInterpretation does.
+ *
+ * CharsetDecoders are not thread safe, and streams of one cache share its
+ * decoders. Decode one label at a time per instance, and call
+ * {@link #copy()} to get another instance that shares the resolved
+ * charsets for another thread.
+ */
+public class EciDecoderCache {
+
+    private static final int ECI_DIGITS = 6;
+    private static final int INITIAL_BUFFER = 512;
+
+    private final Charset[] charsets;
+    private final CharsetDecoder[] decoders;
+    private final CharsetDecoder defaultDecoder;
+
+    /**
+     * Streaming decoder state for labels delivered in several chunks, where
+     * an ECI escape or a multi-byte character may straddle a chunk boundary.
+     */
+    public class Stream {
+
+        private final byte[] pending = new byte[ECI_DIGITS + 1];
+        private int pendingLength = 0;
+        private ByteBuffer segment = ByteBuffer.allocate(INITIAL_BUFFER);
+        private final CharBuffer chars = CharBuffer.allocate(INITIAL_BUFFER);
+        private CharsetDecoder decoder = defaultDecoder;
+        private int currentEci = -1;
+
+        /**
+         * Decodes the next chunk. Characters that are complete are appended
+         * to out; partial escapes and partial characters are held until the
+         * next chunk.
+         *
+         * @param data byte array containing the chunk
+         * @param offset int indicating the first byte
+         * @param length int indicating the number of bytes
+         * @param out StringBuilder receiving the decoded characters
+         */
+        public void feed(byte[] data, int offset, int length, StringBuilder out) {
+            for (int i = offset; i < offset + length; i++) {
+                accept(data[i], out);
+            }
+            drain(false, out);
+        }
+
+        /**
+         * Flushes anything held back and resets the stream to its default
+         * encoding for the next label.
+         *
+         * @param out StringBuilder receiving the decoded characters
+         */
+        public void finish(StringBuilder out) {
+            writeSegment(pending, 0, pendingLength);
+            pendingLength = 0;
+            drain(true, out);
+            selectEci(-1);
+        }
+
+        /**
+         * @return int containing the ECI code currently in effect, or -1 for
+         * the default encoding
+         */
+        public int getCurrentEci() {
+            return currentEci;
+        }
+
+        private void accept(byte b, StringBuilder out) {
+            if (pendingLength == 0) {
+                if (b == '\\') {
+                    pending[pendingLength++] = b;
+                } else {
+                    writeSegment(b);
+                }
+            } else if (pendingLength == 1 && b == '\\') {
+                //escaped backslash, keep both as data
+                writeSegment(pending, 0, 1);
+                writeSegment(b);
+                pendingLength = 0;
+            } else if (b >= '0' && b <= '9') {
+                pending[pendingLength++] = b;
+                if (pendingLength == ECI_DIGITS + 1) {
+                    int eci = 0;
+                    for (int i = 1; i <= ECI_DIGITS; i++) {
+                        eci = eci * 10 + (pending[i] - '0');
+                    }
+                    pendingLength = 0;
+                    drain(true, out);
+                    selectEci(eci);
+                }
+            } else {
+                //not an escape after all, the held bytes are data
+                writeSegment(pending, 0, pendingLength);
+                pendingLength = 0;
+                accept(b, out);
+            }
+        }
+
+        private void selectEci(int eci) {
+            currentEci = eci;
+            decoder = (eci >= 0 && eci < decoders.length && decoders[eci] != null)
+                    ? decoders[eci] : defaultDecoder;
+            decoder.reset();
+        }
+
+        private void writeSegment(byte b) {
+            if (!segment.hasRemaining()) {
+                segment = grow(segment);
+            }
+            segment.put(b);
+        }
+
+        private void writeSegment(byte[] data, int offset, int length) {
+            while (segment.remaining() < length) {
+                segment = grow(segment);
+            }
+            segment.put(data, offset, length);
+        }
+
+        private void drain(boolean endOfInput, StringBuilder out) {
+            segment.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(segment, chars, endOfInput);
+                emit(out);
+            } while (result.isOverflow());
+            if (endOfInput) {
+                //once flushing has begun decode() may not be called again
+                do {
+                    result = decoder.flush(chars);
+                    emit(out);
+                } while (result.isOverflow());
+            }
+            //bytes of an incomplete character stay for the next chunk
+            segment.compact();
+            if (endOfInput) {
+                decoder.reset();
+            }
+        }
+
+        private void emit(StringBuilder out) {
+            chars.flip();
+            out.append(chars);
+            chars.clear();
+        }
+    }
+
+    private EciDecoderCache(Charset[] charsets) {
+        this.charsets = charsets;
+        decoders = new CharsetDecoder[charsets.length];
+        for (int i = 0; i < charsets.length; i++) {
+            if (charsets[i] != null) {
+                decoders[i] = newDecoder(charsets[i]);
+            }
+        }
+        defaultDecoder = newDecoder(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Loads the file configured by ECIEncodingFile in dls.properties.
+     *
+     * @return EciDecoderCache for the configured file
+     * @throws IOException if the file cannot be read
+     */
+    public static EciDecoderCache load() throws IOException {
+        String file = DLSProperties.getInstance().getECIEncodingFile();
+        if (file == null || file.isEmpty()) {
+            file = "./ECIEncoding.csv";
+        }
+        return load(file);
+    }
+
+    /**
+     * Loads an ECI encoding file in the format
+     * {@code <ECI_CODE>,<JAVA_ENCODING>[,description]}. Lines beginning with
+     * '//' are ignored, and an empty or unknown encoding marks the code as
+     * unsupported.
+     *
+     * @param csvFile String containing the ECIEncoding.csv path
+     * @return EciDecoderCache for the file
+     * @throws IOException if the file cannot be read
+     */
+    public static EciDecoderCache load(String csvFile) throws IOException {
+        List<Integer> codes = new ArrayList<Integer>();
+        List<Charset> sets = new ArrayList<Charset>();
+        int maxCode = -1;
+        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("//") || line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                if (fields.length < 2) {
+                    continue;
+                }
+                int code;
+                try {
+                    code = Integer.parseInt(fields[0].trim());
+                } catch (NumberFormatException nfe) {
+                    continue;
+                }
+                String encoding = fields[1].trim();
+                if (code < 0 || encoding.isEmpty() || !Charset.isSupported(encoding)) {
+                    continue;
+                }
+                codes.add(code);
+                sets.add(Charset.forName(encoding));
+                maxCode = Math.max(maxCode, code);
+            }
+        }
+        Charset[] byCode = new Charset[maxCode + 1];
+        for (int i = 0; i < codes.size(); i++) {
+            byCode[codes.get(i)] = sets.get(i);
+        }
+        return new EciDecoderCache(byCode);
+    }
+
+    /**
+     * @return EciDecoderCache sharing the resolved charsets with its own
+     * decoders, for use on another thread
+     */
+    public EciDecoderCache copy() {
+        return new EciDecoderCache(charsets);
+    }
+
+    /**
+     * Returns a new streaming decoder. Keep it for the life of the device
+     * and call {@link Stream#finish(StringBuilder)} at the end of each label.
+     *
+     * @return Stream bound to this cache
+     */
+    public Stream newStream() {
+        return new Stream();
+    }
+
+    /**
+     * Decodes a complete label in one call.
+     *
+     * @param stream Stream reused between labels
+     * @param label byte array containing the label
+     * @param offset int indicating the first byte
+     * @param length int indicating the number of bytes
+     * @param out StringBuilder receiving the decoded characters
+     */
+    public void decode(Stream stream, byte[] label, int offset, int length, StringBuilder out) {
+        stream.feed(label, offset, length, out);
+        stream.finish(out);
+    }
+
+    /**
+     * @param eci int containing an ECI code
+     * @return Charset for the code, or null if unsupported
+     */
+    public Charset getCharset(int eci) {
+        return (eci >= 0 && eci < charsets.length) ? charsets[eci] : null;
+    }
+
+    private static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -6,6 +6,12 @@ import jpos.events.*;
 import java.io.*;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 
 /**
  * Script to test basic scanner functionality.
@@ -18,6 +24,7 @@ import java.util.TimerTask;
 public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorListener {
     static Scanner scanner = null;
     static EnterKeyTest script = null;
+    static StatisticsCollector<String> statistics = new StatisticsCollector<String>();
     String FIRMWARE_PATH;
     String CONFIGURATION_PATH;
     byte[] scanData = new byte[]{};
@@ -32,7 +39,16 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
     boolean freezeEvents;
     boolean decodeData;
     boolean updateDevice = true;
+    //when the last label was read and whether firmware is being flashed, so stats are pulled only in between
+    volatile long lastDataMillis = System.currentTimeMillis();
+    volatile boolean flashing = false;
     private static String sep = System.getProperty("line.separator");
+    //reused for every label
+    private DirectIOChannel dio = null;
+    private final DirectIOChannel.Command[] labelCommands = {
+        DirectIOChannel.RETURN_QUANTITY, DirectIOChannel.RETURN_DATA_TYPE};
+    private final DirectIOChannel.Result[] labelResults = {
+        new DirectIOChannel.Result(), new DirectIOChannel.Result()};
     /**
      * @param args the command line arguments
      * Could potentially include arguments if specific scripts are intended to be reusable.
@@ -58,8 +74,12 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
             scanner.claim(1000);
 
             //Wait thirty seconds for the device to reset after pulling stats during claim.
+            //With GenerateStatsOnEveryClaim=false, as shipped, claim skips the pull and
+            //stats are collected in the background whenever the scanner is idle.
             //@TODO: Finish Power Notify update so that this is unnecessary.
-            Thread.sleep(30000);
+            if (com.dls.jpos.common.DLSProperties.getInstance().getStatsOnClaim()) {
+                Thread.sleep(30000);
+            }
 
             //Enable the device
             scanner.setDeviceEnabled(true);
@@ -67,6 +87,24 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
             //Enable data events (label reading)
             scanner.setDataEventEnabled(true);
 
+            final Callable<String> retrieveStatistics = new Callable<String>() {
+                @Override
+                public String call() throws JposException {
+                    String[] stats = new String[]{""};
+                    scanner.retrieveStatistics(stats);
+                    return stats[0];
+                }
+            };
+            if (!com.dls.jpos.common.DLSProperties.getInstance().getStatsOnClaim()) {
+                //pulling resets the scanner, so only once no label was read for StatisticsIdleTime
+                statistics.refreshWhenIdle(logicalName, retrieveStatistics, new BooleanSupplier() {
+                    @Override
+                    public boolean getAsBoolean() {
+                        return !script.flashing && statistics.isIdle(script.lastDataMillis);
+                    }
+                }, null);
+            }
+
             try {
 
                 String firmwarePath = "C:\\Program Files\\datalogic\\JavaPOS\\firmware.S37";
@@ -79,15 +117,15 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
                     switch(result[0]){
                         case jpos.JposConst.JPOS_CFV_FIRMWARE_NEWER :
                             System.out.println("The firmware in the file newer than the firmware loaded in the device. Updating firmware...");
-                            scanner.updateFirmware(firmwarePath);
+                            script.updateFirmware(logicalName, firmwarePath);
                             break;
                         case jpos.JposConst.JPOS_CFV_FIRMWARE_OLDER :
                             System.out.println("The firmware in the file is older than the firmware loaded in the device.");
-                            scanner.updateFirmware(firmwarePath);
+                            script.updateFirmware(logicalName, firmwarePath);
                             break;
                         case jpos.JposConst.JPOS_CFV_FIRMWARE_SAME :
                             System.out.println("The firmware in the file is the same as what is already loaded in the device. Updating firmware...");
-                            scanner.updateFirmware(firmwarePath);
+                            script.updateFirmware(logicalName, firmwarePath);
                             break;
                         case jpos.JposConst.JPOS_CFV_FIRMWARE_DIFFERENT :
                             System.out.println("The firmware in the file is different than the firmware in the device. In what way was unable to be determined.");
@@ -107,6 +145,28 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
             //Wait until enter key is pressed to exit
             System.in.read();
 
+            //With GenerateStatsOnEveryClaim=false report the statistics, served from the
+            //background pull while it is fresh and pulled now that scanning is done otherwise.
+            if (!com.dls.jpos.common.DLSProperties.getInstance().getStatsOnClaim()) {
+                statistics.stopRefresh(logicalName);
+                scanner.setDataEventEnabled(false);
+                CompletableFuture<String> pulled = statistics.collect(logicalName, retrieveStatistics).whenComplete(new BiConsumer<String, Throwable>() {
+                    @Override
+                    public void accept(String stats, Throwable error) {
+                        if (error != null) {
+                            System.out.println("Statistics not available: " + error.getMessage());
+                        } else {
+                            System.out.println("Statistics retrieved (" + stats.length() + " characters)");
+                        }
+                    }
+                });
+                try {
+                    pulled.get(60, TimeUnit.SECONDS);
+                } catch (ExecutionException ee) {
+                    //already reported above
+                }
+            }
+
         } catch (JposException je) {
             System.out.println("JPOS Exception: "+je.getMessage()+"\\n"+je.getStackTrace());
         } catch (Exception e) {
@@ -122,6 +182,7 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
      */
     @Override
     public void dataOccurred(DataEvent de) {
+        lastDataMillis = System.currentTimeMillis();
         doDataUpdate();
     }
 
@@ -145,22 +206,17 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
 
             System.out.println("Scan Data: " + trimUnprintable(scanData));
             System.out.println("Scan Data Type: " + scanDataType);
-            try {
-
-                ByteArrayOutputStream dioResult = new ByteArrayOutputStream();
-                int[] iResult = new int[50];
-                String[] results;
-
-                //Return Quantity
-                scanner.directIO(com.dls.jpos.common.DLSJposConst.DIO_RETURN_QUANTITY, iResult, dioResult);
-                COMDIOResults("DIO_RETURN_QUANTITY", iResult, dioResult.toByteArray());
-
-                //Return Data Type
-                scanner.directIO(com.dls.jpos.common.DLSJposConst.DIO_RETURN_DATA_TYPE, iResult, dioResult);
-                COMDIOResults("DIO_RETURN_DATA_TYPE", iResult, dioResult.toByteArray());
-
-            } catch(Exception e) {
-                    System.out.println("Exception: " + e.getMessage());
+            if (dio == null) {
+                dio = new DirectIOChannel(scanner);
+            }
+            //Return Quantity and Return Data Type, skipped once the scanner rejects them
+            dio.execute(labelCommands, labelResults);
+            for (int i = 0; i < labelCommands.length; i++) {
+                if (labelResults[i].getError() != null) {
+                    System.out.println("Exception: " + labelResults[i].getError().getMessage());
+                } else if (dio.isSupported(labelCommands[i])) {
+                    COMDIOResults(labelCommands[i].getName(), labelResults[i]);
+                }
             }
 
             if (scanner.getClaimed()) {
@@ -199,6 +255,17 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
      * @return sRawData - the string interpretation of the byte array passed in.
      */
     public static String byteArrayToString(byte[] data) {
+        return byteArrayToString(data, data == null ? 0 : data.length);
+    }
+
+    /**
+     * This function converts the first bytes of a byte array into a string
+     * representation of the hex data, e.g. a reused directIO buffer.
+     * @param data
+     * @param length - The number of bytes of data that are valid.
+     * @return sRawData - the string interpretation of the bytes passed in.
+     */
+    public static String byteArrayToString(byte[] data, int length) {
         String logData = "";
         String sResult = "";
         String sRawData = "";
@@ -206,9 +273,9 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
         // if any data is NOT NULL then we assume it's valid (see monkies below).
         boolean discard = true;
 
-        if (data != null && data.length > 0) {
+        if (data != null && length > 0) {
             // Convert input data to hex buffer
-            for (int i = 0; i < data.length; i++) {
+            for (int i = 0; i < length; i++) {
                 sResult = String.format(" 0x%02X", data[i]);
                 logData += sResult;
                 // here is where we keep the monkies that check each byte for null.
@@ -219,7 +286,7 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
             if (discard == true) {
                 sRawData = "[" + 0 + "] **invalid packet - contained all nulls.";
             } else {
-                sRawData = "[" + data.length + "]" + logData;
+                sRawData = "[" + length + "]" + logData;
             }
             //log.log(this, "#concatinated bytes received[" + data.length + "]" + logData);
         } else if (data == null) {
@@ -230,21 +297,37 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
         return sRawData;
     }
 
+    /**
+     * Starts a firmware update. What was cached about the old firmware is
+     * dropped first, including which directIO commands it supports.
+     * @param logicalName - The logical name of the scanner.
+     * @param firmwarePath - The path of the firmware file.
+     */
+    private void updateFirmware(String logicalName, String firmwarePath) throws JposException {
+        flashing = true;
+        new DeviceInfoCache().invalidate(logicalName);
+        statistics.invalidate(logicalName);
+        if (dio != null) {
+            dio.resetSupport();
+        }
+        scanner.updateFirmware(firmwarePath);
+    }
+
     /**
      * Process the result of a direct input/output call.
      * @param label - The text representation to output indicating which command was executed.
-     * @param iResult - The integer array passed into the JavaPOS directIO function by reference.
-     * @param dioResult - The byte array returned by the scanner via reference variable.
+     * @param result - The reused data and bytes of the directIO call.
      */
-    private void COMDIOResults(String label, int[] iResult, byte[] dioResult) {
+    private void COMDIOResults(String label, DirectIOChannel.Result result) {
         try {
             //Print the integer response if any.
-            if(null != dioResult && 0 < iResult.length) {
-                System.out.println(label + " Result: " + iResult[0]);
+            if(0 < result.getData().length) {
+                System.out.println(label + " Result: " + result.getStatus());
             }
             //Print the raw data returned from the scanner.
-            if(null != dioResult && 0 < dioResult.length) {
-                System.out.println(label + " Raw Data: " + byteArrayToString(dioResult));
+            if(0 < result.getLength()) {
+                System.out.println(label + " Raw Data: "
+                        + byteArrayToString(result.getBuffer(), result.getLength()));
             }
         } catch (Exception e) {
             System.out.println("Exception in COMDIOResults(): " + e.getMessage());
@@ -275,6 +358,11 @@ public class EnterKeyTest implements StatusUpdateListener, DataListener, ErrorLi
             }, 1 * 60 * 1000);
         }
 
+        if (status >= JposConst.JPOS_SUE_UF_COMPLETE && status <= JposConst.JPOS_SUE_UF_COMPLETE_DEV_NOT_RESTORED) {
+            //finished or failed, the scanner may be pulled again
+            flashing = false;
+        }
+
         switch (status) {
             case JposConst.JPOS_SUE_UF_COMPLETE:
                     System.out.print(sep + "The update firmware process has completed successfully." + sep);
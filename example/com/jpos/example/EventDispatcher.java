@@ -0,0 +1,205 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSProperties;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import jpos.events.DataEvent;
+import jpos.events.DataListener;
+import jpos.events.DirectIOEvent;
+import jpos.events.DirectIOListener;
+import jpos.events.ErrorEvent;
+import jpos.events.ErrorListener;
+import jpos.events.JposEvent;
+import jpos.events.OutputCompleteEvent;
+import jpos.events.OutputCompleteListener;
+import jpos.events.StatusUpdateEvent;
+import jpos.events.StatusUpdateListener;
+
+/**
+ * EventDispatcher class decouples application listeners from the JavaPOS
+ * event thread.
+ *
+ * Register the dispatcher as the listener on one or more devices, and the
+ * application listeners on the dispatcher. Events from the service are put
+ * on a lock-free EventRing and returned to the service immediately. A single
+ * dispatcher thread then delivers them in arrival order. A slow listener, or
+ * an application thread holding a device lock, therefore no longer stalls
+ * the service, and interleaved label and weight events from a scanner-scale
+ * keep their order.
+ *
+ * Data properties (getScanData, getScaleLiveWeight, ...) remain valid when
+ * the event is delivered, because the service does not raise the next
+ * DataEvent until the listener sets DataEventEnabled again.
+ *
+ * ErrorEvents are delivered after the service has already acted on the
+ * default error response. Applications that change the response in
+ * errorOccurred() should register that ErrorListener on the device directly.
+ *
+ * The ring size and wait strategy come from dls.properties
+ * (EventQueueSize, EventWaitStrategy). With UseVirtualThreads=true the
+ * dispatcher runs on a virtual thread; use the PARK strategy there, since
+ * SPIN and YIELD hold the carrier thread.
+ */
+public class EventDispatcher implements DataListener, StatusUpdateListener,
+        ErrorListener, DirectIOListener, OutputCompleteListener {
+
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private final EventRing<JposEvent> ring;
+    private final List<DataListener> dataListeners = new CopyOnWriteArrayList<DataListener>();
+    private final List<StatusUpdateListener> statusListeners = new CopyOnWriteArrayList<StatusUpdateListener>();
+    private final List<ErrorListener> errorListeners = new CopyOnWriteArrayList<ErrorListener>();
+    private final List<DirectIOListener> directIOListeners = new CopyOnWriteArrayList<DirectIOListener>();
+    private final List<OutputCompleteListener> outputListeners = new CopyOnWriteArrayList<OutputCompleteListener>();
+    private final DeviceThreads threads;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a dispatcher configured from dls.properties.
+     *
+     * @param name String used to name the dispatcher thread
+     */
+    public EventDispatcher(String name) {
+        this(name, DLSProperties.getInstance().get(WaitStrategy.KEY_EVENTQUEUESIZE,
+                DEFAULT_QUEUE_SIZE), WaitStrategy.fromProperties());
+    }
+
+    /**
+     * @param name String used to name the dispatcher thread
+     * @param queueSize int indicating the ring capacity
+     * @param waitStrategy WaitStrategy used by the ring
+     */
+    public EventDispatcher(String name, int queueSize, WaitStrategy waitStrategy) {
+        ring = new EventRing<JposEvent>(queueSize, waitStrategy);
+        threads = new DeviceThreads("EventDispatcher-" + name);
+        threads.start("dispatch", new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        });
+    }
+
+    public void addDataListener(DataListener l) {
+        dataListeners.add(l);
+    }
+
+    public void removeDataListener(DataListener l) {
+        dataListeners.remove(l);
+    }
+
+    public void addStatusUpdateListener(StatusUpdateListener l) {
+        statusListeners.add(l);
+    }
+
+    public void removeStatusUpdateListener(StatusUpdateListener l) {
+        statusListeners.remove(l);
+    }
+
+    public void addErrorListener(ErrorListener l) {
+        errorListeners.add(l);
+    }
+
+    public void removeErrorListener(ErrorListener l) {
+        errorListeners.remove(l);
+    }
+
+    public void addDirectIOListener(DirectIOListener l) {
+        directIOListeners.add(l);
+    }
+
+    public void removeDirectIOListener(DirectIOListener l) {
+        directIOListeners.remove(l);
+    }
+
+    public void addOutputCompleteListener(OutputCompleteListener l) {
+        outputListeners.add(l);
+    }
+
+    public void removeOutputCompleteListener(OutputCompleteListener l) {
+        outputListeners.remove(l);
+    }
+
+    @Override
+    public void dataOccurred(DataEvent de) {
+        ring.put(de);
+    }
+
+    @Override
+    public void statusUpdateOccurred(StatusUpdateEvent sue) {
+        ring.put(sue);
+    }
+
+    @Override
+    public void errorOccurred(ErrorEvent ee) {
+        ring.put(ee);
+    }
+
+    @Override
+    public void directIOOccurred(DirectIOEvent dioe) {
+        ring.put(dioe);
+    }
+
+    @Override
+    public void outputCompleteOccurred(OutputCompleteEvent oce) {
+        ring.put(oce);
+    }
+
+    /**
+     * @return int containing the number of events waiting for delivery
+     */
+    public int getQueueDepth() {
+        return ring.size();
+    }
+
+    /**
+     * Stops the dispatcher thread. Events still queued are discarded.
+     */
+    public void shutdown() {
+        running = false;
+        threads.shutdown(1000);
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            JposEvent event = ring.take();
+            if (event == null) {
+                //interrupted; clear the flag unless we are shutting down
+                if (running) {
+                    Thread.interrupted();
+                }
+                continue;
+            }
+            try {
+                deliver(event);
+            } catch (RuntimeException re) {
+                //a failing listener must not stop delivery to the others
+                System.err.println("ERROR: Listener failed on " + event + ", " + re);
+            }
+        }
+    }
+
+    private void deliver(JposEvent event) {
+        if (event instanceof DataEvent) {
+            for (DataListener l : dataListeners) {
+                l.dataOccurred((DataEvent) event);
+            }
+        } else if (event instanceof StatusUpdateEvent) {
+            for (StatusUpdateListener l : statusListeners) {
+                l.statusUpdateOccurred((StatusUpdateEvent) event);
+            }
+        } else if (event instanceof ErrorEvent) {
+            for (ErrorListener l : errorListeners) {
+                l.errorOccurred((ErrorEvent) event);
+            }
+        } else if (event instanceof DirectIOEvent) {
+            for (DirectIOListener l : directIOListeners) {
+                l.directIOOccurred((DirectIOEvent) event);
+            }
+        } else if (event instanceof OutputCompleteEvent) {
+            for (OutputCompleteListener l : outputListeners) {
+                l.outputCompleteOccurred((OutputCompleteEvent) event);
+            }
+        }
+    }
+}
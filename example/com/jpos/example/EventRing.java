@@ -0,0 +1,141 @@
+package com.jpos.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventRing class is a bounded, lock-free, multi-producer single-consumer
+ * queue used to hand JavaPOS events from the event thread(s) to a
+ * dispatcher thread.
+ *
+ * Each slot carries a sequence number so producers claim slots with a single
+ * CAS and the consumer never takes a lock. Events are never dropped: when the
+ * ring is full, {@link #put(Object)} waits with the configured WaitStrategy
+ * until the consumer catches up.
+ *
+ * @param <T> type of the queued events
+ */
+public class EventRing<T> {
+
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile long head = 0;
+    private final WaitStrategy waitStrategy;
+    private volatile Thread consumer;
+
+    /**
+     * @param capacity int indicating the number of slots, rounded up to a
+     * power of two
+     * @param waitStrategy WaitStrategy used when the ring is full or empty
+     */
+    public EventRing(int capacity, WaitStrategy waitStrategy) {
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        items = new AtomicReferenceArray<T>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Adds an event if there is room.
+     *
+     * @param event T to add, must not be null
+     * @return boolean indicating whether the event was queued
+     */
+    public boolean offer(T event) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(index, event);
+                    sequences.set(index, pos + 1);
+                    wakeConsumer();
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds an event, waiting for room if the ring is full.
+     *
+     * @param event T to add, must not be null
+     */
+    public void put(T event) {
+        int counter = 0;
+        while (!offer(event)) {
+            waitStrategy.idle(counter++);
+        }
+    }
+
+    /**
+     * Removes the oldest event. Must only be called from the consumer
+     * thread.
+     *
+     * @return T removed, or null if the ring is empty
+     */
+    public T poll() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        T event = items.get(index);
+        items.lazySet(index, null);
+        sequences.set(index, pos + mask + 1);
+        head = pos + 1;
+        return event;
+    }
+
+    /**
+     * Removes the oldest event, waiting with the configured WaitStrategy
+     * while the ring is empty.
+     *
+     * @return T removed, or null if the consumer thread was interrupted
+     */
+    public T take() {
+        consumer = Thread.currentThread();
+        int counter = 0;
+        T event;
+        while ((event = poll()) == null) {
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            waitStrategy.idle(counter++);
+        }
+        return event;
+    }
+
+    /**
+     * @return int containing the approximate number of queued events
+     */
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    /**
+     * @return int indicating the number of slots in the ring
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    private void wakeConsumer() {
+        Thread waiting = consumer;
+        if (waiting != null && waitStrategy == WaitStrategy.PARK) {
+            LockSupport.unpark(waiting);
+        }
+    }
+}
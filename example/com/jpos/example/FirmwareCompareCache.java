@@ -0,0 +1,428 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import com.dls.jpos.common.DLSException;
+import com.dls.jpos.common.DLSObjectFactory;
+import com.dls.jpos.common.DLSProperties;
+import com.dls.jpos.interpretation.DLSScanner;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jpos.JposConst;
+import jpos.config.JposEntry;
+import jpos.loader.JposServiceLoader;
+
+/**
+ * FirmwareCompareCache class parses the header of each firmware image once
+ * and compares it with any number of devices.
+ *
+ * DLSScannerService.compareFirmwareVersion opens the file three times per
+ * call, once each for the EC=, VID= and PID= header lines, and pulls the
+ * device statistics again, so comparing one image with a fleet rereads the
+ * same file per device. Here images are keyed by the CRC32 of their content:
+ * a file is hashed and verified (FirmwareUpdateEngine.Image) the first time
+ * it is seen and again only when its size or modification time changes, and
+ * its header is parsed once per distinct content, however many paths point
+ * at it.
+ *
+ * {@link #compare(Header, Map, DLSDeviceInfo)} follows the service: the EC
+ * version of the file against ScannerRevisionNumber, or
+ * ApplicationRevisionLevel, of the statistics, and on USB the VID/PID of the
+ * file against the device. Statistics can come from the DeviceInfoCache, so
+ * an audit of devices whose IHS data is cached needs no device I/O at all;
+ * such rows are only as current as the cache, which is not checked against
+ * the device ROM.
+ */
+public class FirmwareCompareCache {
+
+    public static final String KEY_SCANNERREVISIONNUMBER = "ScannerRevisionNumber";
+    public static final String KEY_APPLICATIONREVISIONLEVEL = "ApplicationRevisionLevel";
+    //the service stops looking after this many lines
+    private static final int HEADER_LINES = 30;
+    private static final Pattern EC_PATTERN = Pattern.compile("(EC=)(\\w{4})");
+    private static final Pattern VID_PATTERN = Pattern.compile("(VID=)(\\w{4})");
+    private static final Pattern PID_PATTERN = Pattern.compile("(?<!A)(PID=)(\\w{4})");
+
+    private final Map<String, Stamp> stamps = new ConcurrentHashMap<String, Stamp>();
+    private final Map<Long, Header> headers = new ConcurrentHashMap<Long, Header>();
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Parsed header of a firmware image. Missing fields are -1.
+     */
+    public static final class Header {
+
+        private final long crc;
+        private final int ecVersion;
+        private final int vendorId;
+        private final int productId;
+
+        private Header(long crc, int ecVersion, int vendorId, int productId) {
+            this.crc = crc;
+            this.ecVersion = ecVersion;
+            this.vendorId = vendorId;
+            this.productId = productId;
+        }
+
+        /**
+         * @return long containing the CRC32 of the image content
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return int containing the EC version of the image
+         */
+        public int getEcVersion() {
+            return ecVersion;
+        }
+
+        public int getVendorId() {
+            return vendorId;
+        }
+
+        public int getProductId() {
+            return productId;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("EC=%04X VID=%04X PID=%04X crc=%08x", ecVersion & 0xFFFF,
+                    vendorId & 0xFFFF, productId & 0xFFFF, crc);
+        }
+    }
+
+    private static final class Stamp {
+
+        private final long size;
+        private final long modified;
+        private final long crc;
+
+        private Stamp(long size, long modified, long crc) {
+            this.size = size;
+            this.modified = modified;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Returns the header of an image, parsing it only if its content has
+     * not been seen.
+     *
+     * @param file File containing a .S37 or .dat image
+     * @return Header of the image
+     * @throws IOException if the file cannot be read or is corrupt
+     */
+    public Header get(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        Stamp stamp = stamps.get(path);
+        if (stamp != null && stamp.size == file.length() && stamp.modified == file.lastModified()) {
+            Header header = headers.get(stamp.crc);
+            if (header != null) {
+                hits.incrementAndGet();
+                return header;
+            }
+        }
+        long modified = file.lastModified();
+        FirmwareUpdateEngine.Image image = FirmwareUpdateEngine.Image.map(file);
+        stamps.put(path, new Stamp(image.getSize(), modified, image.getCrc()));
+        Header header = headers.get(image.getCrc());
+        if (header == null) {
+            header = parse(file, image.getCrc());
+            headers.put(image.getCrc(), header);
+        } else {
+            hits.incrementAndGet();
+        }
+        return header;
+    }
+
+    /**
+     * @return long containing the number of headers parsed
+     */
+    public long getParses() {
+        return parses.get();
+    }
+
+    /**
+     * @return long containing the number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Compares an image with a device the way compareFirmwareVersion does.
+     *
+     * @param header Header of the image
+     * @param statistics Map of IHS items of the device, e.g. from
+     * DLSDevice.getStatistics() or the DeviceInfoCache
+     * @param info DLSDeviceInfo of the device
+     * @return int containing a JposConst.JPOS_CFV_* value
+     */
+    public static int compare(Header header, Map<String, Object> statistics, DLSDeviceInfo info) {
+        String revision = revisionOf(statistics);
+        if (revision == null || header.ecVersion < 0 || info.get8xxx()) {
+            return JposConst.JPOS_CFV_FIRMWARE_UNKNOWN;
+        }
+        int deviceVersion;
+        try {
+            deviceVersion = Integer.decode("0x" + revision);
+        } catch (NumberFormatException nfe) {
+            return JposConst.JPOS_CFV_FIRMWARE_UNKNOWN;
+        }
+        if ("USB".equalsIgnoreCase(info.getDeviceBus())
+                && ((header.vendorId >= 0 && header.vendorId != info.getVendorId())
+                || (header.productId >= 0 && header.productId != info.getProductId()))) {
+            return JposConst.JPOS_CFV_FIRMWARE_DIFFERENT;
+        }
+        if (header.ecVersion == deviceVersion) {
+            return JposConst.JPOS_CFV_FIRMWARE_SAME;
+        }
+        return header.ecVersion > deviceVersion ? JposConst.JPOS_CFV_FIRMWARE_NEWER
+                : JposConst.JPOS_CFV_FIRMWARE_OLDER;
+    }
+
+    /**
+     * @param statistics Map of IHS items, or null
+     * @return String containing the firmware revision of the device, or null
+     */
+    public static String revisionOf(Map<String, Object> statistics) {
+        if (statistics == null) {
+            return null;
+        }
+        Object revision = statistics.get(KEY_SCANNERREVISIONNUMBER);
+        if (revision == null) {
+            revision = statistics.get(KEY_APPLICATIONREVISIONLEVEL);
+        }
+        return revision instanceof String && !((String) revision).trim().isEmpty()
+                ? ((String) revision).trim() : null;
+    }
+
+    /**
+     * @param result int containing a JposConst.JPOS_CFV_* value
+     * @return String containing its name
+     */
+    public static String resultName(int result) {
+        switch (result) {
+            case JposConst.JPOS_CFV_FIRMWARE_OLDER:
+                return "OLDER";
+            case JposConst.JPOS_CFV_FIRMWARE_SAME:
+                return "SAME";
+            case JposConst.JPOS_CFV_FIRMWARE_NEWER:
+                return "NEWER";
+            case JposConst.JPOS_CFV_FIRMWARE_DIFFERENT:
+                return "DIFFERENT";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    private Header parse(File file, long crc) throws IOException {
+        parses.incrementAndGet();
+        String ec = null;
+        String vid = null;
+        String pid = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int count = 0;
+            while ((line = reader.readLine()) != null && count++ < HEADER_LINES
+                    && (ec == null || vid == null || pid == null)) {
+                //remarks may mention the fields without setting them
+                if (line.contains(" REM")) {
+                    continue;
+                }
+                ec = ec != null ? ec : find(EC_PATTERN, line);
+                vid = vid != null ? vid : find(VID_PATTERN, line);
+                pid = pid != null ? pid : find(PID_PATTERN, line);
+            }
+        }
+        return new Header(crc, hex(ec), hex(vid), hex(pid));
+    }
+
+    private static String find(Pattern pattern, String line) {
+        Matcher matcher = pattern.matcher(line);
+        return matcher.find() ? matcher.group(2) : null;
+    }
+
+    private static int hex(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value, 16);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return List of the logical names of all Scanner entries in jpos.xml
+     */
+    public static List<String> scannerEntries() {
+        List<String> names = new ArrayList<String>();
+        Enumeration<?> entries = JposServiceLoader.getManager().getEntryRegistry().getEntries();
+        while (entries.hasMoreElements()) {
+            JposEntry entry = (JposEntry) entries.nextElement();
+            if ("Scanner".equals(entry.getPropertyValue(JposEntry.DEVICE_CATEGORY_PROP_NAME))) {
+                names.add(entry.getLogicalName());
+            }
+        }
+        return names;
+    }
+
+    private static HashMap<String, Object> probe(String logicalName) throws DLSException {
+        DLSScanner scanner = DLSObjectFactory.createScanner(logicalName);
+        scanner.open(logicalName);
+        try {
+            scanner.claim(1000);
+            try {
+                return scanner.hasStatisticsReporting() ? scanner.getStatistics() : null;
+            } finally {
+                scanner.release();
+            }
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /**
+     * Audits every scanner in jpos.xml against one or more images, each
+     * device against the image with its VID/PID (Usage: FirmwareCompareCache
+     * [-probe] image...). Without -probe devices are compared from the
+     * DeviceInfoCache and marked as possibly stale; with -probe every device
+     * is opened and its statistics pulled, FirmwareUpdateParallelism devices
+     * at a time, and entries whose ROM changed are replaced.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        boolean probe = args.length > 0 && "-probe".equals(args[0]);
+        int first = probe ? 1 : 0;
+        if (args.length <= first) {
+            System.err.println("ERROR: Usage FirmwareCompareCache [-probe] image...");
+            System.exit(1);
+        }
+        FirmwareCompareCache cache = new FirmwareCompareCache();
+        List<Header> images = new ArrayList<Header>();
+        for (int i = first; i < args.length; i++) {
+            try {
+                Header header = cache.get(new File(args[i]));
+                images.add(header);
+                System.out.println("INFO: " + args[i] + " " + header);
+            } catch (IOException ioe) {
+                System.err.println("ERROR: " + ioe.getMessage());
+                System.exit(1);
+            }
+        }
+        final DeviceInfoCache infoCache = new DeviceInfoCache();
+        DeviceThreads threads = new DeviceThreads("FirmwareCompareCache");
+        ExecutorService probes = threads.fixedExecutor("probe", DLSProperties.getInstance().get(
+                FirmwareUpdateEngine.KEY_FIRMWAREUPDATEPARALLELISM, FirmwareUpdateEngine.DEFAULT_PARALLELISM));
+        Map<String, DLSDeviceInfo> infos = new LinkedHashMap<String, DLSDeviceInfo>();
+        Map<String, Object> sources = new HashMap<String, Object>();
+        Map<String, HashMap<String, Object>> cachedEntries = new HashMap<String, HashMap<String, Object>>();
+        for (final String logicalName : scannerEntries()) {
+            final DLSDeviceInfo info = new DLSDeviceInfo();
+            try {
+                if (!info.loadConfiguration(logicalName)) {
+                    continue;
+                }
+            } catch (RuntimeException re) {
+                continue;
+            }
+            infos.put(logicalName, info);
+            HashMap<String, Object> cached = infoCache.lookup(logicalName, info);
+            if (cached != null) {
+                cachedEntries.put(logicalName, cached);
+            }
+            if (probe) {
+                //the cache cannot tell whether the device was flashed since, so read it again
+                sources.put(logicalName, probes.submit(new Callable<HashMap<String, Object>>() {
+                    @Override
+                    public HashMap<String, Object> call() throws DLSException {
+                        HashMap<String, Object> statistics = probe(logicalName);
+                        if (statistics != null && !infoCache.isCurrent(logicalName,
+                                (String) statistics.get(DeviceInfoCache.KEY_APPLICATIONROM))) {
+                            infoCache.store(logicalName, info, statistics);
+                        }
+                        return statistics;
+                    }
+                }));
+            } else if (revisionOf(cached) != null) {
+                sources.put(logicalName, cached);
+            }
+        }
+        int[] counts = new int[8];
+        int unchecked = 0;
+        long start = System.currentTimeMillis();
+        for (Map.Entry<String, DLSDeviceInfo> entry : infos.entrySet()) {
+            String logicalName = entry.getKey();
+            DLSDeviceInfo info = entry.getValue();
+            Header image = images.size() == 1 ? images.get(0) : null;
+            for (Header candidate : images) {
+                if (candidate.vendorId == info.getVendorId() && candidate.productId == info.getProductId()) {
+                    image = candidate;
+                }
+            }
+            Object source = sources.get(logicalName);
+            Map<String, Object> statistics = null;
+            String from = "none";
+            if (source instanceof Future) {
+                from = "device";
+                try {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> probed = ((Future<HashMap<String, Object>>) source).get();
+                    statistics = probed;
+                    HashMap<String, Object> cached = cachedEntries.get(logicalName);
+                    if (probed != null && cached != null && !String.valueOf(probed.get(
+                            DeviceInfoCache.KEY_APPLICATIONROM)).equals(cached.get(DeviceInfoCache.KEY_APPLICATIONROM))) {
+                        from = "device, cache was stale";
+                    }
+                } catch (ExecutionException ee) {
+                    from = "failed";
+                }
+            } else if (source != null) {
+                //the device may have been flashed since the entry was written
+                from = "cache?";
+                unchecked++;
+                @SuppressWarnings("unchecked")
+                Map<String, Object> cached = (Map<String, Object>) source;
+                statistics = cached;
+            }
+            int result = image == null ? JposConst.JPOS_CFV_FIRMWARE_UNKNOWN : compare(image, statistics, info);
+            counts[result]++;
+            String revision = revisionOf(statistics);
+            System.out.println(String.format("%-45s %04X:%04X %-6s %-6s %-9s %s", logicalName,
+                    info.getVendorId(), info.getProductId(), revision == null ? "-" : revision,
+                    image == null ? "-" : String.format("%04X", image.ecVersion & 0xFFFF),
+                    resultName(result), from));
+        }
+        threads.shutdown(1000);
+        System.out.println("INFO: " + infos.size() + " device(s): " + counts[JposConst.JPOS_CFV_FIRMWARE_SAME]
+                + " same, " + counts[JposConst.JPOS_CFV_FIRMWARE_NEWER] + " to update, "
+                + counts[JposConst.JPOS_CFV_FIRMWARE_OLDER] + " newer than image, "
+                + counts[JposConst.JPOS_CFV_FIRMWARE_DIFFERENT] + " different, "
+                + counts[JposConst.JPOS_CFV_FIRMWARE_UNKNOWN] + " unknown; " + cache.getParses()
+                + " header parse(s), " + (System.currentTimeMillis() - start) + " ms");
+        if (unchecked > 0) {
+            System.out.println("INFO: " + unchecked + " device(s) compared from the DeviceInfoCache without"
+                    + " checking their ROM, use -probe to read them again");
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,663 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSProperties;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import jpos.JposConst;
+import jpos.JposException;
+import jpos.Scanner;
+import jpos.events.StatusUpdateEvent;
+import jpos.events.StatusUpdateListener;
+
+/**
+ * FirmwareUpdateEngine class updates the firmware of many scanners at once,
+ * with bounded parallelism and a journal that lets an interrupted run pick
+ * up where it stopped.
+ *
+ * The image is memory-mapped once, its S-records are checked and its CRC32
+ * becomes the identity of the run, so a bad file is rejected before any
+ * device is touched. Up to FirmwareUpdateParallelism devices (dls.properties,
+ * default 4) are then flashed concurrently. Each one is opened, claimed and
+ * compared with compareFirmwareVersion first; a device already on the image
+ * is not flashed again unless forced.
+ *
+ * Progress of every device is journalled under TempDir in dls-firmware, one
+ * file per image CRC, and replaced atomically like the DeviceInfoCache
+ * entries. Rerunning the same image skips the devices that finished and
+ * re-checks the ones that were interrupted. The JPOS_SUE_UF_PROGRESS status
+ * updates of all devices are passed to one {@link Listener}.
+ *
+ * This must be run from the root JavaPOS directory.
+ */
+public class FirmwareUpdateEngine {
+
+    public static final String KEY_FIRMWAREUPDATEPARALLELISM = "FirmwareUpdateParallelism";
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final long DEFAULT_FLASH_TIMEOUT_MILLIS = 20 * 60 * 1000L;
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_FLASHING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_CURRENT = 3;
+    public static final int STATE_FAILED = 4;
+    private static final String[] STATE_NAMES = {"PENDING", "FLASHING", "DONE", "CURRENT", "FAILED"};
+    private static final String DIRECTORY = "dls-firmware";
+
+    /**
+     * Receives the progress of every device, on the jpos event threads and
+     * the engine's workers.
+     */
+    public interface Listener {
+
+        /**
+         * @param logicalName String containing the jpos.xml logical name
+         * @param state int containing one of the STATE_* values
+         * @param percent int containing the progress of the flash, 0 to 100
+         */
+        void onProgress(String logicalName, int state, int percent);
+    }
+
+    /**
+     * Firmware image, mapped and checked once for the whole run.
+     */
+    public static final class Image {
+
+        private final File file;
+        private final long size;
+        private final long crc;
+        private final int records;
+
+        private Image(File file, long size, long crc, int records) {
+            this.file = file;
+            this.size = size;
+            this.crc = crc;
+            this.records = records;
+        }
+
+        /**
+         * Maps an image and checks it. The S-records of .S37 files must have
+         * valid checksums, header lines are skipped; other files (.dat) are
+         * only fingerprinted.
+         *
+         * @param file File containing the image
+         * @return Image of the file
+         * @throws IOException if the file cannot be read or is corrupt
+         */
+        public static Image map(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                    FileChannel channel = raf.getChannel()) {
+                long size = channel.size();
+                if (size == 0 || size > Integer.MAX_VALUE) {
+                    throw new IOException("Invalid firmware size " + size + " of " + file);
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int records = file.getName().toUpperCase().endsWith(".S37") ? checkRecords(buffer, file) : 0;
+                CRC32 crc = new CRC32();
+                buffer.rewind();
+                crc.update(buffer);
+                return new Image(file, size, crc.getValue(), records);
+            }
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return long containing the CRC32 of the whole file
+         */
+        public long getCrc() {
+            return crc;
+        }
+
+        /**
+         * @return int containing the number of S-records, 0 for binary
+         * images
+         */
+        public int getRecords() {
+            return records;
+        }
+
+        private static int checkRecords(MappedByteBuffer buffer, File file) throws IOException {
+            int records = 0;
+            int position = 0;
+            int limit = buffer.limit();
+            while (position < limit) {
+                int end = position;
+                while (end < limit && buffer.get(end) != '\n' && buffer.get(end) != '\r') {
+                    end++;
+                }
+                //header lines such as EC=, VID= and PID= are not records
+                if (end > position && buffer.get(position) == 'S') {
+                    if ((end - position) < 4 || ((end - position) & 1) != 0) {
+                        throw new IOException("Malformed S-record " + (records + 1) + " in " + file);
+                    }
+                    int count = hexByte(buffer, position + 2);
+                    if (count < 0 || (end - position) != 4 + count * 2) {
+                        throw new IOException("Bad length in S-record " + (records + 1) + " of " + file);
+                    }
+                    //count, address, data and checksum sum to 0xFF
+                    int sum = 0;
+                    for (int i = position + 2; i < end; i += 2) {
+                        int value = hexByte(buffer, i);
+                        if (value < 0) {
+                            throw new IOException("Bad hex in S-record " + (records + 1) + " of " + file);
+                        }
+                        sum += value;
+                    }
+                    if ((sum & 0xFF) != 0xFF) {
+                        throw new IOException("Bad checksum in S-record " + (records + 1) + " of " + file);
+                    }
+                    records++;
+                }
+                position = end + 1;
+            }
+            if (records == 0) {
+                throw new IOException("No S-records in " + file);
+            }
+            return records;
+        }
+
+        private static int hexByte(MappedByteBuffer buffer, int index) {
+            int high = Character.digit(buffer.get(index), 16);
+            int low = Character.digit(buffer.get(index + 1), 16);
+            return high < 0 || low < 0 ? -1 : high << 4 | low;
+        }
+    }
+
+    /**
+     * A device whose flash timed out, still listened to.
+     */
+    private static final class Flashing {
+
+        private final Scanner scanner;
+        private final StatusUpdateListener relay;
+        private final CountDownLatch done;
+        private final int[] outcome;
+
+        private Flashing(Scanner scanner, StatusUpdateListener relay, CountDownLatch done, int[] outcome) {
+            this.scanner = scanner;
+            this.relay = relay;
+            this.done = done;
+            this.outcome = outcome;
+        }
+    }
+
+    private final Image image;
+    private final int parallelism;
+    private final Listener listener;
+    private final File journalFile;
+    private final Properties journal = new Properties();
+    private DeviceInfoCache infoCache = null;
+    private StatisticsCollector<?> statistics = null;
+    //devices left claimed after their flash timed out, by logical name
+    private final Map<String, Flashing> flashing = new LinkedHashMap<String, Flashing>();
+    private long flashTimeoutMillis = DEFAULT_FLASH_TIMEOUT_MILLIS;
+    private int claimTimeoutMillis = 1000;
+
+    /**
+     * Creates an engine journalling under TempDir, with the parallelism
+     * from dls.properties.
+     *
+     * @param image Image to flash
+     * @param listener Listener receiving the progress, or null
+     */
+    public FirmwareUpdateEngine(Image image, Listener listener) {
+        this(image, DLSProperties.getInstance().get(KEY_FIRMWAREUPDATEPARALLELISM, DEFAULT_PARALLELISM), listener,
+                new File(DLSProperties.getInstance().getTempDir(), DIRECTORY));
+    }
+
+    /**
+     * @param image Image to flash
+     * @param parallelism int indicating how many devices are flashed at once
+     * @param listener Listener receiving the progress, or null
+     * @param directory File containing the journal directory, created if
+     * needed
+     */
+    public FirmwareUpdateEngine(Image image, int parallelism, Listener listener, File directory) {
+        this.image = image;
+        this.parallelism = Math.max(1, parallelism);
+        this.listener = listener;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("ERROR: Cannot create firmware journal " + directory);
+        }
+        this.journalFile = new File(directory, String.format("%08x.properties", image.getCrc()));
+        if (journalFile.isFile()) {
+            try (InputStream in = new FileInputStream(journalFile)) {
+                journal.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("ERROR: Cannot read " + journalFile + ", " + e);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached IHS information and statistics of each updated
+     * device, since both change with the firmware.
+     *
+     * @param infoCache DeviceInfoCache to invalidate, or null
+     * @param statistics StatisticsCollector keyed by logical name, or null
+     */
+    public void setCaches(DeviceInfoCache infoCache, StatisticsCollector<?> statistics) {
+        this.infoCache = infoCache;
+        this.statistics = statistics;
+    }
+
+    /**
+     * A device that times out is left claimed and journalled as flashing,
+     * since closing it could cut a transfer that is still running.
+     *
+     * @param flashTimeoutMillis long indicating how long one device may take
+     * to report completion
+     */
+    public void setFlashTimeout(long flashTimeoutMillis) {
+        this.flashTimeoutMillis = flashTimeoutMillis;
+    }
+
+    /**
+     * Updates the given devices.
+     *
+     * @param logicalNames List of jpos.xml logical names
+     * @param force boolean indicating whether devices already on the image,
+     * or that finished in an earlier run, are flashed again
+     * @return Map of logical name to its final STATE_* value
+     * @throws InterruptedException if interrupted while waiting for the
+     * devices; the journal keeps their progress
+     */
+    public Map<String, Integer> run(List<String> logicalNames, final boolean force) throws InterruptedException {
+        final Map<String, Integer> states = new LinkedHashMap<String, Integer>();
+        DeviceThreads threads = new DeviceThreads("FirmwareUpdateEngine");
+        ExecutorService workers = threads.fixedExecutor("flash", parallelism);
+        final CountDownLatch finished = new CountDownLatch(logicalNames.size());
+        for (final String logicalName : logicalNames) {
+            synchronized (states) {
+                states.put(logicalName, STATE_PENDING);
+            }
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int state = STATE_FAILED;
+                    try {
+                        state = update(logicalName, force);
+                    } finally {
+                        synchronized (states) {
+                            states.put(logicalName, state);
+                        }
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            finished.await();
+        } finally {
+            threads.shutdown(1000);
+        }
+        return states;
+    }
+
+    /**
+     * @return List of the logical names of devices left claimed because
+     * they may still be flashing
+     */
+    public List<String> getFlashing() {
+        synchronized (flashing) {
+            return new ArrayList<String>(flashing.keySet());
+        }
+    }
+
+    /**
+     * Waits for the devices of {@link #getFlashing()} to report completion,
+     * then journals their outcome and closes them.
+     *
+     * @param timeoutMillis long indicating how long to wait for all of them
+     * @return Map of logical name to STATE_* value, STATE_FLASHING for the
+     * devices that are still not done
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Map<String, Integer> awaitFlashing(long timeoutMillis) throws InterruptedException {
+        Map<String, Integer> states = new LinkedHashMap<String, Integer>();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (String logicalName : getFlashing()) {
+            Flashing device;
+            synchronized (flashing) {
+                device = flashing.get(logicalName);
+            }
+            if (!device.done.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                states.put(logicalName, STATE_FLASHING);
+                continue;
+            }
+            synchronized (flashing) {
+                flashing.remove(logicalName);
+            }
+            device.scanner.removeStatusUpdateListener(device.relay);
+            states.put(logicalName, finish(logicalName, device.outcome[0]));
+            closeDevice(device.scanner);
+        }
+        return states;
+    }
+
+    /**
+     * @param logicalName String containing the jpos.xml logical name
+     * @return int containing the journalled STATE_* value of the device
+     */
+    public int getJournalState(String logicalName) {
+        return stateOf(journalEntry(logicalName));
+    }
+
+    /**
+     * @param state int containing a STATE_* value
+     * @return String containing its name
+     */
+    public static String stateName(int state) {
+        return state >= 0 && state < STATE_NAMES.length ? STATE_NAMES[state] : "UNKNOWN";
+    }
+
+    /**
+     * Opens, claims and enables a scanner. Overridden to flash other device
+     * categories.
+     *
+     * @param logicalName String containing the jpos.xml logical name
+     * @return Scanner ready for updateFirmware
+     * @throws JposException if the device cannot be started
+     */
+    protected Scanner openDevice(String logicalName) throws JposException {
+        Scanner scanner = new Scanner();
+        scanner.open(logicalName);
+        try {
+            scanner.claim(claimTimeoutMillis);
+            scanner.setDeviceEnabled(true);
+        } catch (JposException je) {
+            scanner.close();
+            throw je;
+        }
+        return scanner;
+    }
+
+    private int update(final String logicalName, boolean force) {
+        String previous = journalEntry(logicalName);
+        if (!force && (stateOf(previous) == STATE_DONE || stateOf(previous) == STATE_CURRENT)) {
+            progress(logicalName, stateOf(previous), 100, false);
+            return stateOf(previous);
+        }
+        if (stateOf(previous) == STATE_FLASHING) {
+            System.out.println("INFO: " + logicalName + " was interrupted at " + percentOf(previous)
+                    + "%, checking its firmware again");
+        }
+        Scanner scanner;
+        try {
+            scanner = openDevice(logicalName);
+        } catch (JposException je) {
+            System.err.println("ERROR: Failed to start " + logicalName + ", " + je);
+            progress(logicalName, STATE_FAILED, 0, true);
+            return STATE_FAILED;
+        }
+        boolean mayBeFlashing = false;
+        try {
+            String path = image.getFile().getPath();
+            int[] result = new int[1];
+            scanner.compareFirmwareVersion(path, result);
+            if (!force) {
+                if (result[0] == JposConst.JPOS_CFV_FIRMWARE_SAME) {
+                    progress(logicalName, STATE_CURRENT, 100, true);
+                    return STATE_CURRENT;
+                }
+                if (result[0] == JposConst.JPOS_CFV_FIRMWARE_DIFFERENT
+                        || result[0] == JposConst.JPOS_CFV_FIRMWARE_UNKNOWN) {
+                    System.err.println("ERROR: " + logicalName + " cannot be compared with " + path
+                            + ", use force to flash it anyway");
+                    progress(logicalName, STATE_FAILED, 0, true);
+                    return STATE_FAILED;
+                }
+            }
+            int state = flash(scanner, logicalName, path);
+            if (state == STATE_FLASHING) {
+                //closing now would cut the transfer and may leave the device without firmware
+                System.err.println("ERROR: " + logicalName + " may still be flashing, leaving it claimed;"
+                        + " the next run checks it again");
+                mayBeFlashing = true;
+                return Thread.currentThread().isInterrupted() ? STATE_FLASHING : STATE_FAILED;
+            }
+            return state;
+        } catch (JposException je) {
+            System.err.println("ERROR: Firmware update of " + logicalName + " failed, " + je);
+            progress(logicalName, STATE_FAILED, 0, true);
+            return STATE_FAILED;
+        } finally {
+            if (!mayBeFlashing) {
+                closeDevice(scanner);
+            }
+        }
+    }
+
+    private static void closeDevice(Scanner scanner) {
+        try {
+            scanner.setDeviceEnabled(false);
+            scanner.release();
+            scanner.close();
+        } catch (JposException je) {
+            //the device may have reset after the update
+        }
+    }
+
+    private int flash(Scanner scanner, final String logicalName, String path) throws JposException {
+        final int[] outcome = {STATE_FLASHING};
+        final CountDownLatch done = new CountDownLatch(1);
+        StatusUpdateListener relay = new StatusUpdateListener() {
+            private int lastJournalled = 0;
+
+            @Override
+            public void statusUpdateOccurred(StatusUpdateEvent sue) {
+                int status = sue.getStatus();
+                if (status >= JposConst.JPOS_SUE_UF_PROGRESS && status < JposConst.JPOS_SUE_UF_COMPLETE) {
+                    int percent = status - JposConst.JPOS_SUE_UF_PROGRESS;
+                    //journal every 10% so the file is not rewritten per event
+                    boolean journalled = percent >= lastJournalled + 10;
+                    if (journalled) {
+                        lastJournalled = percent;
+                    }
+                    progress(logicalName, STATE_FLASHING, percent, journalled);
+                } else if (status == JposConst.JPOS_SUE_UF_COMPLETE
+                        || status == JposConst.JPOS_SUE_UF_COMPLETE_DEV_NOT_RESTORED) {
+                    if (status == JposConst.JPOS_SUE_UF_COMPLETE_DEV_NOT_RESTORED) {
+                        System.out.println("INFO: " + logicalName + " updated, its settings were not restored");
+                    }
+                    outcome[0] = STATE_DONE;
+                    done.countDown();
+                } else if (status >= JposConst.JPOS_SUE_UF_FAILED_DEV_OK
+                        && status <= JposConst.JPOS_SUE_UF_FAILED_DEV_UNKNOWN) {
+                    System.err.println("ERROR: Firmware update of " + logicalName + " failed with status " + status);
+                    outcome[0] = STATE_FAILED;
+                    done.countDown();
+                }
+            }
+        };
+        scanner.addStatusUpdateListener(relay);
+        boolean listening = false;
+        try {
+            progress(logicalName, STATE_FLASHING, 0, true);
+            if (infoCache != null) {
+                infoCache.invalidate(logicalName);
+            }
+            scanner.updateFirmware(path);
+            if (!done.await(flashTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                //leave the journal at FLASHING so the next run checks the device
+                System.err.println("ERROR: " + logicalName + " did not finish within " + flashTimeoutMillis + " ms");
+                progress(logicalName, STATE_FAILED, 0, false);
+                listening = true;
+            }
+        } catch (InterruptedException ie) {
+            //leave the journal at FLASHING so the next run checks the device
+            Thread.currentThread().interrupt();
+            listening = true;
+        } finally {
+            if (listening) {
+                //keep listening, awaitFlashing() may still see it finish
+                synchronized (flashing) {
+                    flashing.put(logicalName, new Flashing(scanner, relay, done, outcome));
+                }
+            } else {
+                scanner.removeStatusUpdateListener(relay);
+            }
+        }
+        return listening ? STATE_FLASHING : finish(logicalName, outcome[0]);
+    }
+
+    private int finish(String logicalName, int state) {
+        if (state == STATE_DONE && statistics != null) {
+            statistics.invalidate(logicalName);
+        }
+        progress(logicalName, state, state == STATE_DONE ? 100 : 0, true);
+        return state;
+    }
+
+    private void progress(String logicalName, int state, int percent, boolean journalled) {
+        if (journalled) {
+            synchronized (journal) {
+                journal.setProperty(logicalName, stateName(state) + "," + percent);
+                saveJournal();
+            }
+        }
+        if (listener != null) {
+            listener.onProgress(logicalName, state, percent);
+        }
+    }
+
+    private String journalEntry(String logicalName) {
+        synchronized (journal) {
+            return journal.getProperty(logicalName);
+        }
+    }
+
+    private static int stateOf(String entry) {
+        if (entry != null) {
+            String name = entry.substring(0, Math.max(0, entry.indexOf(',')));
+            for (int i = 0; i < STATE_NAMES.length; i++) {
+                if (STATE_NAMES[i].equals(name)) {
+                    return i;
+                }
+            }
+        }
+        return STATE_PENDING;
+    }
+
+    private static int percentOf(String entry) {
+        try {
+            return Integer.parseInt(entry.substring(entry.indexOf(',') + 1));
+        } catch (RuntimeException re) {
+            return 0;
+        }
+    }
+
+    private void saveJournal() {
+        File temp = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                journal.store(out, "DLS firmware journal for " + image.getFile().getName());
+            }
+            Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Cannot write " + journalFile + ", " + ioe);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Updates a fleet of scanners from one image (Usage:
+     * FirmwareUpdateEngine [-p parallelism] [-f] [-w minutes] image
+     * logicalName...). Devices that time out are waited for up to -w more
+     * minutes (default 20) before the tool exits; exiting stops a transfer
+     * that is still running, which can leave the device without firmware.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int parallelism = DLSProperties.getInstance().get(KEY_FIRMWAREUPDATEPARALLELISM, DEFAULT_PARALLELISM);
+        long graceMillis = DEFAULT_FLASH_TIMEOUT_MILLIS;
+        boolean force = false;
+        int first = 0;
+        while (first < args.length && args[first].startsWith("-")) {
+            if ("-f".equals(args[first])) {
+                force = true;
+                first++;
+            } else if ("-p".equals(args[first]) && first + 1 < args.length) {
+                parallelism = Integer.parseInt(args[first + 1]);
+                first += 2;
+            } else if ("-w".equals(args[first]) && first + 1 < args.length) {
+                graceMillis = Long.parseLong(args[first + 1]) * 60 * 1000L;
+                first += 2;
+            } else {
+                break;
+            }
+        }
+        if (args.length - first < 2) {
+            System.err.println("ERROR: Usage FirmwareUpdateEngine [-p parallelism] [-f] [-w minutes] image"
+                    + " logicalName...");
+            System.exit(1);
+        }
+        Image image;
+        try {
+            image = Image.map(new File(args[first]));
+        } catch (IOException ioe) {
+            System.err.println("ERROR: " + ioe.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.out.println(String.format("INFO: %s, %d bytes, %d records, crc %08x", image.getFile(),
+                image.getSize(), image.getRecords(), image.getCrc()));
+        List<String> logicalNames = new ArrayList<String>();
+        for (int i = first + 1; i < args.length; i++) {
+            logicalNames.add(args[i]);
+        }
+        FirmwareUpdateEngine engine = new FirmwareUpdateEngine(image, parallelism, new Listener() {
+            @Override
+            public void onProgress(String logicalName, int state, int percent) {
+                if (state != STATE_FLASHING || percent % 10 == 0) {
+                    System.out.println(logicalName + ": " + stateName(state) + " " + percent + "%");
+                }
+            }
+        }, new File(DLSProperties.getInstance().getTempDir(), DIRECTORY));
+        engine.setCaches(new DeviceInfoCache(), null);
+        long start = System.currentTimeMillis();
+        Map<String, Integer> states = engine.run(logicalNames, force);
+        List<String> flashing = engine.getFlashing();
+        if (!flashing.isEmpty()) {
+            //exiting would stop the service's transfer thread with the device mid-flash
+            System.out.println("INFO: " + flashing + " may still be flashing, waiting up to "
+                    + graceMillis / 60000 + " min before exiting");
+            states.putAll(engine.awaitFlashing(graceMillis));
+            for (String logicalName : engine.getFlashing()) {
+                System.err.println("ERROR: " + logicalName + " is still flashing; exiting stops the transfer and"
+                        + " may leave it without firmware, rerun to check it");
+            }
+        }
+        int failed = 0;
+        for (Map.Entry<String, Integer> entry : states.entrySet()) {
+            failed += entry.getValue() == STATE_FAILED || entry.getValue() == STATE_FLASHING ? 1 : 0;
+        }
+        System.out.println("INFO: " + states.size() + " device(s), " + failed + " failed, in "
+                + (System.currentTimeMillis() - start) / 1000 + " s");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,500 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import com.dls.jpos.interpretation.DLSDevice;
+import com.dls.jpos.transport.DeviceArrivalListener;
+import com.dls.jpos.transport.DeviceReattachedListener;
+import com.dls.jpos.transport.DeviceRemovedListener;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jpos.config.JposEntry;
+import jpos.loader.JposServiceLoader;
+
+/**
+ * HotplugWatcher class detects device arrival and removal from file system
+ * events instead of polling.
+ *
+ * DevWatcher and DirWatcher look for port changes every
+ * PollRateForPortChange milliseconds. This watcher blocks on a
+ * WatchService, which the JDK implements with inotify on Linux, for /dev,
+ * /dev/bus/usb/* and /dev/serial/by-id, so an idle register has no timer
+ * wakeups and a reconnect is seen as soon as udev creates the node. After
+ * every batch of events each watched device is checked again: a serial
+ * device is present while its node exists, a USB device while
+ * /sys/bus/usb/devices has its entry. A USB target is bound to one
+ * physical device, by its serial number when it has one and otherwise by
+ * its bus path (the sysfs entry name, e.g. 1-2.3), and no two targets bind
+ * the same device, so with several identical scanners attached, unplugging
+ * one is reported for that one only.
+ *
+ * Changes are delivered to DeviceArrivalListener (first arrival),
+ * DeviceRemovedListener and DeviceReattachedListener (arrival after a
+ * removal) on the watcher thread. The /dev and sysfs roots can be pointed
+ * at a temporary directory to simulate events; running the class does
+ * exactly that.
+ */
+public class HotplugWatcher {
+
+    public static final String DEV_ROOT = "/dev";
+    public static final String SYS_USB_DEVICES = "/sys/bus/usb/devices";
+
+    private final Path devRoot;
+    private final Path sysUsbDevices;
+    private final List<Target> targets = new CopyOnWriteArrayList<Target>();
+    //bus paths of the USB devices bound to a target
+    private final Set<String> boundUsb = new HashSet<String>();
+    private final WatchService watcher;
+    private final DeviceThreads threads;
+    private boolean started = false;
+
+    /**
+     * One watched device.
+     */
+    private abstract static class Target {
+
+        private final DeviceArrivalListener arrival;
+        private final DeviceRemovedListener removed;
+        private final DeviceReattachedListener reattached;
+        private boolean present;
+        private boolean seen;
+
+        private Target(DeviceArrivalListener arrival, DeviceRemovedListener removed,
+                DeviceReattachedListener reattached) {
+            this.arrival = arrival;
+            this.removed = removed;
+            this.reattached = reattached;
+        }
+
+        abstract boolean isPresent();
+
+        /**
+         * Fires the listener for a change since the last check.
+         */
+        private void check() {
+            boolean now = isPresent();
+            if (now == present) {
+                return;
+            }
+            present = now;
+            if (!now) {
+                if (removed != null) {
+                    removed.onDeviceRemoved();
+                }
+            } else if (seen) {
+                if (reattached != null) {
+                    reattached.onDeviceReattached();
+                }
+            } else if (arrival != null) {
+                arrival.onDeviceArrival();
+            }
+            seen |= now;
+        }
+    }
+
+    private class UsbTarget extends Target {
+
+        private final String vendorId;
+        private final String productId;
+        private String serial;
+        private String busPath;
+
+        private UsbTarget(int vendorId, int productId, String serial, DeviceArrivalListener arrival,
+                DeviceRemovedListener removed, DeviceReattachedListener reattached) {
+            super(arrival, removed, reattached);
+            this.vendorId = String.format("%04x", vendorId);
+            this.productId = String.format("%04x", productId);
+            this.serial = serial;
+        }
+
+        /**
+         * Looks for the bound device. Once it is gone, a target without a
+         * serial number binds any unbound device with its ids.
+         */
+        @Override
+        boolean isPresent() {
+            Path free = null;
+            try (DirectoryStream<Path> devices = Files.newDirectoryStream(sysUsbDevices)) {
+                for (Path device : devices) {
+                    if (!vendorId.equalsIgnoreCase(attribute(device, "idVendor"))
+                            || !productId.equalsIgnoreCase(attribute(device, "idProduct"))) {
+                        continue;
+                    }
+                    String path = device.getFileName().toString();
+                    if (path.equals(busPath) && (serial == null || serial.equals(attribute(device, "serial")))) {
+                        return true;
+                    }
+                    if (free == null && !boundUsb.contains(path)
+                            && (serial == null || serial.equals(attribute(device, "serial")))) {
+                        free = device;
+                    }
+                }
+            } catch (IOException ioe) {
+                //no USB devices
+            }
+            unbind();
+            if (free == null) {
+                return false;
+            }
+            busPath = free.getFileName().toString();
+            boundUsb.add(busPath);
+            if (serial == null) {
+                serial = attribute(free, "serial");
+            }
+            return true;
+        }
+
+        private void unbind() {
+            if (busPath != null) {
+                boundUsb.remove(busPath);
+                busPath = null;
+            }
+        }
+    }
+
+    private static class NodeTarget extends Target {
+
+        private final Path node;
+
+        private NodeTarget(Path node, DeviceArrivalListener arrival, DeviceRemovedListener removed,
+                DeviceReattachedListener reattached) {
+            super(arrival, removed, reattached);
+            this.node = node;
+        }
+
+        @Override
+        boolean isPresent() {
+            return Files.exists(node);
+        }
+    }
+
+    /**
+     * Creates a watcher on the system /dev and sysfs.
+     *
+     * @throws IOException if the watch service cannot be created
+     */
+    public HotplugWatcher() throws IOException {
+        this(Paths.get(DEV_ROOT), Paths.get(SYS_USB_DEVICES));
+    }
+
+    /**
+     * @param devRoot Path standing for /dev
+     * @param sysUsbDevices Path standing for /sys/bus/usb/devices
+     * @throws IOException if the watch service cannot be created
+     */
+    public HotplugWatcher(Path devRoot, Path sysUsbDevices) throws IOException {
+        this.devRoot = devRoot;
+        this.sysUsbDevices = sysUsbDevices;
+        watcher = FileSystems.getDefault().newWatchService();
+        threads = new DeviceThreads("HotplugWatcher");
+    }
+
+    /**
+     * Watches the physical device of an opened DLSDevice for the
+     * application. The device itself is not called: the service already
+     * notifies it through DevWatcher on Windows and its USB or serial port
+     * elsewhere, and a second notification would reopen it twice. USB
+     * devices are matched on vendorId/productId, and on the USB serial
+     * number when portName sets one; serial devices on their port name when
+     * it is a device node path. The device is open already, so finding it
+     * present is not reported, only removal and reattach.
+     *
+     * @param device DLSDevice whose physical device is watched
+     * @param removed DeviceRemovedListener, or null
+     * @param reattached DeviceReattachedListener, or null
+     * @return boolean indicating whether the device can be watched
+     */
+    public boolean watch(DLSDevice device, DeviceRemovedListener removed, DeviceReattachedListener reattached) {
+        DLSDeviceInfo info = device.getDeviceInfo();
+        if ("USB".equalsIgnoreCase(info.getDeviceBus())) {
+            //portName defaults to "1", so only an explicit one is a serial number
+            JposEntry entry = JposServiceLoader.getManager().getEntryRegistry().getJposEntry(device.getLogicalName());
+            Object serial = entry != null ? entry.getPropertyValue(DLSDeviceInfo.KEY_PORTNAME) : null;
+            watchUsb(info.getVendorId(), info.getProductId(),
+                    serial != null && !serial.toString().trim().isEmpty() ? serial.toString().trim() : null,
+                    null, removed, reattached);
+            return true;
+        }
+        String port = info.getPortAsString();
+        if (port != null && port.startsWith(DEV_ROOT + "/")) {
+            watchNode(devRoot.resolve(port.substring(DEV_ROOT.length() + 1)).toString(), null, removed, reattached);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Watches a USB device. It is bound to the first unbound device with
+     * these ids, and followed by its serial number, or by its bus path when
+     * it has none.
+     *
+     * @param vendorId int containing the USB vendor id
+     * @param productId int containing the USB product id
+     * @param arrival DeviceArrivalListener, or null
+     * @param removed DeviceRemovedListener, or null
+     * @param reattached DeviceReattachedListener, or null
+     */
+    public void watchUsb(int vendorId, int productId, DeviceArrivalListener arrival,
+            DeviceRemovedListener removed, DeviceReattachedListener reattached) {
+        watchUsb(vendorId, productId, null, arrival, removed, reattached);
+    }
+
+    /**
+     * @param vendorId int containing the USB vendor id
+     * @param productId int containing the USB product id
+     * @param serial String containing the USB serial number of the device,
+     * or null for the first unbound one
+     * @param arrival DeviceArrivalListener, or null
+     * @param removed DeviceRemovedListener, or null
+     * @param reattached DeviceReattachedListener, or null
+     */
+    public void watchUsb(int vendorId, int productId, String serial, DeviceArrivalListener arrival,
+            DeviceRemovedListener removed, DeviceReattachedListener reattached) {
+        add(new UsbTarget(vendorId, productId, serial, arrival, removed, reattached));
+    }
+
+    /**
+     * @param node String containing the device node, e.g.
+     * /dev/serial/by-id/usb-Datalogic_... or /dev/ttyACM0
+     * @param arrival DeviceArrivalListener, or null
+     * @param removed DeviceRemovedListener, or null
+     * @param reattached DeviceReattachedListener, or null
+     */
+    public void watchNode(String node, DeviceArrivalListener arrival,
+            DeviceRemovedListener removed, DeviceReattachedListener reattached) {
+        add(new NodeTarget(Paths.get(node), arrival, removed, reattached));
+    }
+
+    /**
+     * Starts watching. Devices present at this point, or watched later
+     * while present, are reported as arrivals.
+     *
+     * @throws IOException if /dev cannot be watched
+     */
+    public void start() throws IOException {
+        register(devRoot);
+        Path usb = devRoot.resolve("bus").resolve("usb");
+        if (Files.isDirectory(usb)) {
+            register(usb);
+            try (DirectoryStream<Path> buses = Files.newDirectoryStream(usb)) {
+                for (Path bus : buses) {
+                    register(bus);
+                }
+            }
+        }
+        Path byId = devRoot.resolve("serial").resolve("by-id");
+        if (Files.isDirectory(byId)) {
+            register(byId);
+        }
+        synchronized (this) {
+            started = true;
+            checkAll();
+        }
+        threads.start("events", new Runnable() {
+            @Override
+            public void run() {
+                watchLoop();
+            }
+        });
+    }
+
+    /**
+     * Stops watching.
+     *
+     * @param timeoutMillis long indicating how long to wait for the thread
+     * @return boolean indicating whether the thread exited in time
+     */
+    public boolean close(long timeoutMillis) {
+        try {
+            watcher.close();
+        } catch (IOException ioe) {
+            //already closed
+        }
+        return threads.shutdown(timeoutMillis);
+    }
+
+    private synchronized void add(Target target) {
+        targets.add(target);
+        if (started) {
+            target.check();
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    private synchronized void checkAll() {
+        for (Target target : targets) {
+            try {
+                target.check();
+            } catch (RuntimeException re) {
+                System.err.println("ERROR: Hot-plug listener failed, " + re);
+            }
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.take();
+                do {
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() != StandardWatchEventKinds.ENTRY_CREATE) {
+                            continue;
+                        }
+                        //new bus directories under /dev/bus/usb, or the directories themselves
+                        Path created = dir.resolve((Path) event.context());
+                        if (Files.isDirectory(created) && isUsbTree(created)) {
+                            registerTree(created);
+                        }
+                    }
+                    key.reset();
+                    //drain everything that arrived with this change before checking
+                    key = watcher.poll();
+                } while (key != null);
+                checkAll();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //closed
+        }
+    }
+
+    private boolean isUsbTree(Path path) {
+        return path.startsWith(devRoot.resolve("bus")) || path.startsWith(devRoot.resolve("serial"));
+    }
+
+    private void registerTree(Path dir) {
+        try {
+            register(dir);
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    if (Files.isDirectory(child)) {
+                        registerTree(child);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Cannot watch " + dir + ", " + ioe);
+        }
+    }
+
+    private static String attribute(Path device, String name) {
+        try {
+            return new String(Files.readAllBytes(device.resolve(name)), StandardCharsets.US_ASCII).trim();
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Simulates two identical scanners in a temporary /dev and sysfs: one
+     * stays attached while the other is unplugged and plugged again on
+     * another port. Prints how fast each change was seen.
+     */
+    public static void main(String[] args) throws Exception {
+        Path root = Files.createTempDirectory("hotplug");
+        Path dev = Files.createDirectories(root.resolve("dev"));
+        Path bus = Files.createDirectories(dev.resolve("bus").resolve("usb").resolve("001"));
+        Path sys = Files.createDirectories(root.resolve("sys"));
+        HotplugWatcher watcher = new HotplugWatcher(dev, sys);
+
+        final List<String> events = new CopyOnWriteArrayList<String>();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final long[] changed = new long[1];
+        final CountDownLatch[] latch = new CountDownLatch[1];
+        class Recorder implements DeviceArrivalListener, DeviceRemovedListener, DeviceReattachedListener {
+            private final String name;
+
+            private Recorder(String name) {
+                this.name = name;
+            }
+
+            private void record(String event) {
+                latency.record(System.nanoTime() - changed[0]);
+                events.add(name + ":" + event);
+                latch[0].countDown();
+            }
+
+            @Override
+            public void onDeviceArrival() {
+                record("arrival");
+            }
+
+            @Override
+            public void onDeviceRemoved() {
+                record("removed");
+            }
+
+            @Override
+            public void onDeviceReattached() {
+                record("reattached");
+            }
+        }
+        Recorder lane1 = new Recorder("lane1");
+        Recorder lane2 = new Recorder("lane2");
+        watcher.watchUsb(0x05f9, 0x1511, lane1, lane1, lane1);
+        watcher.watchUsb(0x05f9, 0x1511, lane2, lane2, lane2);
+        watcher.start();
+
+        List<String> expected = new ArrayList<String>();
+        latch[0] = new CountDownLatch(1);
+        changed[0] = System.nanoTime();
+        plug(sys, bus, "1-9", "S0009", 9);
+        latch[0].await(5, TimeUnit.SECONDS);
+        expected.add("lane1:arrival");
+        for (int i = 0; i < 3; i++) {
+            latch[0] = new CountDownLatch(1);
+            changed[0] = System.nanoTime();
+            Path device = plug(sys, bus, "1-" + (i + 1), "S0001", i + 2);
+            latch[0].await(5, TimeUnit.SECONDS);
+            expected.add(i == 0 ? "lane2:arrival" : "lane2:reattached");
+
+            latch[0] = new CountDownLatch(1);
+            changed[0] = System.nanoTime();
+            for (String attribute : new String[]{"idVendor", "idProduct", "serial"}) {
+                Files.delete(device.resolve(attribute));
+            }
+            Files.delete(device);
+            Files.delete(bus.resolve(String.format("%03d", i + 2)));
+            latch[0].await(5, TimeUnit.SECONDS);
+            expected.add("lane2:removed");
+        }
+        watcher.close(1000);
+        System.out.println("Events:   " + events);
+        System.out.println("Detected: " + latency.summary());
+        boolean ok = events.equals(expected);
+        System.out.println(ok ? "INFO: Hot-plug events as expected." : "ERROR: Expected " + expected);
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Creates a sysfs entry and then a device node, in udev order.
+     */
+    private static Path plug(Path sys, Path bus, String busPath, String serial, int address) throws IOException {
+        Path device = Files.createDirectories(sys.resolve(busPath));
+        Files.write(device.resolve("idVendor"), "05f9\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(device.resolve("idProduct"), "1511\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(device.resolve("serial"), (serial + "\n").getBytes(StandardCharsets.US_ASCII));
+        Files.createFile(bus.resolve(String.format("%03d", address)));
+        return device;
+    }
+}
@@ -0,0 +1,326 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import com.dls.jpos.common.DLSProperties;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import jpos.JposConst;
+import jpos.JposException;
+
+/**
+ * ImageCapturePipeline class streams captured images from a transport
+ * buffer to their destination file and keeps the last N images in memory.
+ *
+ * The transport hands over each piece of an image as it is read, as a
+ * ByteBuffer view of its own (direct) read buffer. The piece is written to
+ * the file through a FileChannel and put into a ring slot, which is also a
+ * direct buffer, so an image never passes through a byte[] and never has
+ * to be complete in memory before it is saved. Ring slots are reused, so a
+ * burst of images does not grow the heap.
+ *
+ * Files are named ps&lt;id&gt;.jpg under ImageDest (the working directory
+ * when empty), as DLSTCPIPPort names them. The ring holds the number of
+ * images given by imageBuffers in jpos.xml, and applications read it with
+ * {@link #directIO(int, int[], Object)}.
+ */
+public class ImageCapturePipeline {
+
+    /** directIO command returning the number of images held in data[0]. */
+    public static final int DIO_IMAGE_RING_COUNT = 2480;
+    /**
+     * directIO command copying image data[0] (0 is the latest) into object,
+     * a ByteBuffer or ByteArrayOutputStream. data[0] returns the length and
+     * data[1] the image id.
+     */
+    public static final int DIO_IMAGE_RING_GET = 2481;
+
+    private final ImageSlot[] slots;
+    private final String destination;
+    private long started = 0;
+    private long completed = 0;
+
+    private static class ImageSlot {
+        private ByteBuffer data;
+        private int imageId;
+        private String fileName;
+        private boolean valid = false;
+    }
+
+    /**
+     * One image being received.
+     */
+    public class Capture {
+
+        private final ImageSlot slot;
+        private final FileChannel file;
+        private final Path path;
+        private final String fileName;
+
+        private Capture(ImageSlot slot, FileChannel file, Path path, String fileName) {
+            this.slot = slot;
+            this.file = file;
+            this.path = path;
+            this.fileName = fileName;
+        }
+
+        /**
+         * Writes the next piece of the image. The buffer position is
+         * advanced past the piece.
+         *
+         * @param piece ByteBuffer containing the bytes between its position
+         * and limit
+         * @throws IOException if the file cannot be written
+         */
+        public void write(ByteBuffer piece) throws IOException {
+            ByteBuffer copy = piece.duplicate();
+            if (slot.data.remaining() >= copy.remaining()) {
+                slot.data.put(copy);
+            }
+            if (file != null) {
+                while (piece.hasRemaining()) {
+                    file.write(piece);
+                }
+            } else {
+                piece.position(piece.limit());
+            }
+        }
+
+        /**
+         * Closes the file and makes the image available in the ring.
+         *
+         * @return String containing the file name, without directory
+         * @throws IOException if the file cannot be closed
+         */
+        public String finish() throws IOException {
+            if (file != null) {
+                file.close();
+            }
+            synchronized (ImageCapturePipeline.this) {
+                slot.data.flip();
+                slot.valid = true;
+                completed = started;
+            }
+            return fileName;
+        }
+
+        /**
+         * Drops an incomplete image: its partial file is deleted and its
+         * ring slot goes to the next image.
+         */
+        public void abort() {
+            if (file != null) {
+                try {
+                    file.close();
+                    Files.deleteIfExists(path);
+                } catch (IOException ioe) {
+                    //nothing more to release
+                }
+            }
+            release(slot);
+        }
+    }
+
+    /**
+     * @param ringSize int indicating how many images to keep in memory
+     * @param destination String containing the directory for image files,
+     * empty for the working directory, or null to keep images in memory only
+     */
+    public ImageCapturePipeline(int ringSize, String destination) {
+        slots = new ImageSlot[Math.max(1, ringSize)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new ImageSlot();
+        }
+        this.destination = destination == null ? null : directory(destination);
+    }
+
+    /**
+     * Creates a pipeline sized by imageBuffers of the device and writing to
+     * ImageDest from dls.properties.
+     *
+     * @param info DLSDeviceInfo of the imaging device
+     * @return ImageCapturePipeline for the device
+     */
+    public static ImageCapturePipeline fromDeviceInfo(DLSDeviceInfo info) {
+        int ringSize = 1;
+        String buffers = info.getImageBuffers();
+        if (buffers != null) {
+            try {
+                ringSize = Integer.parseInt(buffers.trim());
+            } catch (NumberFormatException nfe) {
+                //keep the default
+            }
+        }
+        return new ImageCapturePipeline(ringSize, DLSProperties.getInstance().getImageDestination());
+    }
+
+    /**
+     * Starts receiving an image. Its ring slot, the oldest one, stops being
+     * readable until the image is finished. Images of one pipeline are
+     * received one at a time.
+     *
+     * @param imageId int containing the id assigned by the device
+     * @param length int indicating the size of the image in bytes
+     * @return Capture receiving the image
+     * @throws IOException if the destination file cannot be created
+     */
+    public Capture begin(int imageId, int length) throws IOException {
+        String fileName = "ps" + imageId + ".jpg";
+        ImageSlot slot;
+        synchronized (this) {
+            slot = slots[(int) (started++ % slots.length)];
+            slot.valid = false;
+            slot.imageId = imageId;
+            slot.fileName = fileName;
+            if (slot.data == null || slot.data.capacity() < length) {
+                slot.data = ByteBuffer.allocateDirect(length);
+            }
+            slot.data.clear();
+            slot.data.limit(length);
+        }
+        FileChannel file = null;
+        Path path = null;
+        if (destination != null) {
+            path = Paths.get(destination + fileName);
+            try {
+                file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException ioe) {
+                release(slot);
+                throw ioe;
+            }
+        }
+        return new Capture(slot, file, path, fileName);
+    }
+
+    /**
+     * Gives the slot of an image that was not finished back to the ring, so
+     * the next image takes it instead of leaving a gap.
+     */
+    private synchronized void release(ImageSlot slot) {
+        if (started > completed && slots[(int) ((started - 1) % slots.length)] == slot) {
+            started--;
+        }
+    }
+
+    /**
+     * @return int containing the number of complete images held
+     */
+    public synchronized int getImageCount() {
+        int count = 0;
+        for (ImageSlot slot : slots) {
+            if (slot.valid) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies a held image.
+     *
+     * @param back int indicating which image, 0 for the latest
+     * @param dst ByteBuffer receiving the image
+     * @return int containing the image length, or -1 if there is no such
+     * image or it does not fit in dst
+     */
+    public synchronized int copyImage(int back, ByteBuffer dst) {
+        ImageSlot slot = slot(back);
+        if (slot == null || dst.remaining() < slot.data.remaining()) {
+            return -1;
+        }
+        dst.put(slot.data.duplicate());
+        return slot.data.remaining();
+    }
+
+    /**
+     * @param back int indicating which image, 0 for the latest
+     * @return int containing the image id, or -1 if there is no such image
+     */
+    public synchronized int getImageId(int back) {
+        ImageSlot slot = slot(back);
+        return slot == null ? -1 : slot.imageId;
+    }
+
+    /**
+     * @param back int indicating which image, 0 for the latest
+     * @return String containing the image file name, or null if there is no
+     * such image
+     */
+    public synchronized String getFileName(int back) {
+        ImageSlot slot = slot(back);
+        return slot == null ? null : slot.fileName;
+    }
+
+    /**
+     * Serves the image ring through the JavaPOS directIO convention, so
+     * applications can route DIO_IMAGE_RING_* commands here from their
+     * directIO wrapper.
+     *
+     * @param command int containing DIO_IMAGE_RING_COUNT or DIO_IMAGE_RING_GET
+     * @param data int array for input and output values
+     * @param object ByteBuffer or ByteArrayOutputStream receiving an image
+     * @throws JposException if the command, index or object is not valid
+     */
+    public void directIO(int command, int[] data, Object object) throws JposException {
+        if (command == DIO_IMAGE_RING_COUNT) {
+            data[0] = getImageCount();
+            return;
+        }
+        if (command != DIO_IMAGE_RING_GET) {
+            throw new JposException(JposConst.JPOS_E_ILLEGAL, "Unknown image command " + command);
+        }
+        synchronized (this) {
+            ImageSlot slot = slot(data[0]);
+            if (slot == null) {
+                throw new JposException(JposConst.JPOS_E_ILLEGAL, "No image at index " + data[0]);
+            }
+            int length = slot.data.remaining();
+            if (object instanceof ByteBuffer) {
+                if (copyImage(data[0], (ByteBuffer) object) < 0) {
+                    throw new JposException(JposConst.JPOS_E_ILLEGAL, "Buffer too small for image.");
+                }
+            } else if (object instanceof ByteArrayOutputStream) {
+                try {
+                    Channels.newChannel((ByteArrayOutputStream) object).write(slot.data.duplicate());
+                } catch (IOException ioe) {
+                    throw new JposException(JposConst.JPOS_E_FAILURE, "Failed to copy image.", ioe);
+                }
+            } else {
+                throw new JposException(JposConst.JPOS_E_ILLEGAL,
+                        "Object must be a ByteBuffer or ByteArrayOutputStream.");
+            }
+            data[0] = length;
+            if (data.length > 1) {
+                data[1] = slot.imageId;
+            }
+        }
+    }
+
+    private ImageSlot slot(int back) {
+        if (back < 0 || back >= slots.length || back >= completed) {
+            return null;
+        }
+        ImageSlot slot = slots[(int) ((completed - 1 - back) % slots.length)];
+        return slot.valid ? slot : null;
+    }
+
+    private static String directory(String dest) {
+        if (dest.isEmpty()) {
+            return "";
+        }
+        File dir = new File(dest);
+        if (!dir.isDirectory() || !dir.canWrite()) {
+            System.err.println("ERROR: Image destination " + dest + " cannot be written, using working directory.");
+            return "";
+        }
+        return (dest.endsWith("/") || dest.endsWith("\\")) ? dest : dest + File.separator;
+    }
+}
@@ -0,0 +1,170 @@
+package com.jpos.example;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * IoReactor class runs one Selector on one thread for any number of
+ * non-blocking channels.
+ *
+ * Channels are registered with a Handler that is called on the reactor
+ * thread whenever the channel is ready. Handlers must not block; work that
+ * takes time is handed to a worker pool (see LaneHost). Tasks that touch a
+ * channel's registration from another thread go through
+ * {@link #execute(Runnable)}, so the selector is only ever used by its own
+ * thread.
+ */
+public class IoReactor {
+
+    /**
+     * Receives readiness and failure callbacks on the reactor thread.
+     */
+    public interface Handler {
+
+        /**
+         * @param key SelectionKey that is ready
+         * @throws IOException if the channel failed; the key is then
+         * cancelled and {@link #failed(SelectionKey, IOException)} is called
+         */
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * @param key SelectionKey that was cancelled
+         * @param e IOException that caused it
+         */
+        void failed(SelectionKey key, IOException e);
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Opens the selector and starts the reactor thread.
+     *
+     * @param threads DeviceThreads owning the reactor thread
+     * @throws IOException if the selector cannot be opened
+     */
+    public IoReactor(DeviceThreads threads) throws IOException {
+        selector = Selector.open();
+        thread = threads.start("reactor", new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        });
+    }
+
+    /**
+     * Registers a channel. The channel is switched to non-blocking mode and
+     * registered on the reactor thread.
+     *
+     * @param channel SelectableChannel to watch
+     * @param ops int containing the initial SelectionKey interest set
+     * @param handler Handler called when the channel is ready
+     * @throws IOException if the channel cannot be made non-blocking
+     */
+    public void register(final SelectableChannel channel, final int ops, final Handler handler)
+            throws IOException {
+        channel.configureBlocking(false);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(selector, ops, handler);
+                } catch (ClosedChannelException cce) {
+                    handler.failed(null, cce);
+                }
+            }
+        });
+    }
+
+    /**
+     * Changes the interest set of a registered channel from any thread.
+     * Requests are applied in order after any pending registration.
+     *
+     * @param channel SelectableChannel registered with this reactor
+     * @param ops int containing the new interest set
+     */
+    public void setInterest(final SelectableChannel channel, final int ops) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = channel.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(ops);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the reactor thread.
+     *
+     * @param task Runnable to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return boolean indicating whether the caller is the reactor thread
+     */
+    public boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Stops the reactor and closes the selector. Registered channels are
+     * not closed; their owners close them.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void loop() {
+        try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.ready(key);
+                        }
+                    } catch (IOException ioe) {
+                        key.cancel();
+                        handler.failed(key, ioe);
+                    } catch (RuntimeException re) {
+                        //one faulty channel must not stop the others
+                        key.cancel();
+                        handler.failed(key, new IOException(re));
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Reactor stopped, " + ioe);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ioe) {
+                //nothing more to release
+            }
+        }
+    }
+}
@@ -0,0 +1,657 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSProperties;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import jpos.config.JposEntry;
+import jpos.config.simple.AbstractRegPopulator;
+import jpos.config.simple.SimpleEntry;
+import jpos.config.simple.xml.XercesRegPopulator;
+
+/**
+ * JposRegistryIndex class populates the jpos registry from a compiled index
+ * of jpos.xml instead of parsing the XML at every start.
+ *
+ * XercesRegPopulator builds a DOM of the whole jpos.xml, 52 entries with
+ * dozens of props each, before the first device can be opened. This
+ * populator parses it once, writes a binary index under TempDir in
+ * dls-registry and from then on reads only the index directory: logical
+ * name, category and the offset of the props of each entry. An entry reads
+ * its props from the index the first time one of them is asked for, so
+ * open() of one device loads one entry; the read checks the index header
+ * again and the logical name stored with the props, so an index rebuilt
+ * meanwhile by another process is not misread. After a failed read the
+ * entries not yet read come from one parse of jpos.xml. The index is
+ * rebuilt whenever the size or modification time of jpos.xml changes; if
+ * jpos.xml is not a plain file, e.g. it is found on the classpath, the XML
+ * is parsed as before.
+ *
+ * To use it, set in jpos.properties:
+ * <pre>
+ * jpos.config.regPopulatorClass=com.jpos.example.JposRegistryIndex
+ * </pre>
+ * {@link #properties(JposEntry)} gives a Map view of the props of an entry.
+ */
+public class JposRegistryIndex extends AbstractRegPopulator {
+
+    public static final String NAME = "DLS jpos.xml index populator";
+    private static final String DEFAULT_XML = "jpos.xml";
+    private static final String DIRECTORY = "dls-registry";
+    private static final int MAGIC = 0x4A504958;
+    private static final int VERSION = 2;
+
+    private File xmlFile = null;
+    private File indexFile = null;
+    private long indexLength = 0;
+    private long indexModified = 0;
+    private Map<String, JposEntry> xmlEntries = null;
+    private int loadedEntries = 0;
+
+    public JposRegistryIndex() {
+        this(JposRegistryIndex.class.getName());
+    }
+
+    /**
+     * @param uniqueId String identifying this populator
+     */
+    public JposRegistryIndex(String uniqueId) {
+        super(uniqueId);
+    }
+
+    /**
+     * jpos.config.JposEntry whose props are read from the index on first
+     * use. The logical name and the category are known without reading.
+     */
+    private static final class IndexedEntry extends SimpleEntry {
+
+        private static final long serialVersionUID = 1L;
+        private final transient JposRegistryIndex index;
+        private final String category;
+        private final long offset;
+        private final int length;
+        private boolean loaded;
+
+        private IndexedEntry(String logicalName, String category, long offset, int length,
+                JposRegistryIndex index) {
+            super(logicalName, index);
+            this.index = index;
+            this.category = category;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private synchronized void load() {
+            //the super constructor calls in before the fields are set
+            if (loaded || index == null) {
+                return;
+            }
+            //left unloaded if jpos.xml cannot be read either, so the next use tries again
+            loaded = index.readProps(this, offset, length);
+        }
+
+        private synchronized boolean isLoaded() {
+            return loaded;
+        }
+
+        private void put(String name, Object value) {
+            super.addProperty(name, value);
+        }
+
+        @Override
+        public String getLogicalName() {
+            return (String) super.getPropertyValue(LOGICAL_NAME_PROP_NAME);
+        }
+
+        @Override
+        public Object getPropertyValue(String name) {
+            if (LOGICAL_NAME_PROP_NAME.equals(name)) {
+                return getLogicalName();
+            }
+            if (DEVICE_CATEGORY_PROP_NAME.equals(name) && category != null && !isLoaded()) {
+                return category;
+            }
+            load();
+            return super.getPropertyValue(name);
+        }
+
+        @Override
+        public int getPropertyCount() {
+            load();
+            return super.getPropertyCount();
+        }
+
+        @Override
+        public Enumeration<?> getPropertyNames() {
+            load();
+            return super.getPropertyNames();
+        }
+
+        @Override
+        public boolean hasPropertyWithName(String name) {
+            load();
+            return super.hasPropertyWithName(name);
+        }
+
+        @Override
+        public boolean hasPropertyWithValue(Object value) {
+            load();
+            return super.hasPropertyWithValue(value);
+        }
+
+        @Override
+        public Class<?> getPropertyType(String name) {
+            load();
+            return super.getPropertyType(name);
+        }
+
+        @Override
+        public Object modifyPropertyValue(String name, Object value) {
+            load();
+            return super.modifyPropertyValue(name, value);
+        }
+
+        @Override
+        public Object addProperty(String name, Object value) {
+            load();
+            return super.addProperty(name, value);
+        }
+
+        @Override
+        public Object removeProperty(String name) {
+            load();
+            return super.removeProperty(name);
+        }
+
+        @Override
+        public boolean equals(JposEntry entry) {
+            load();
+            return super.equals(entry);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return object instanceof JposEntry && equals((JposEntry) object);
+        }
+
+        @Override
+        public int hashCode() {
+            return getLogicalName() == null ? 0 : getLogicalName().hashCode();
+        }
+
+        @Override
+        public JposEntry copy() {
+            load();
+            return super.copy();
+        }
+
+        @Override
+        public JposEntry.Prop getProp(String name) {
+            load();
+            return super.getProp(name);
+        }
+
+        @Override
+        public Iterator<?> getProps() {
+            load();
+            return super.getProps();
+        }
+
+        @Override
+        public void add(JposEntry.Prop prop) {
+            load();
+            super.add(prop);
+        }
+
+        @Override
+        public void remove(JposEntry.Prop prop) {
+            load();
+            super.remove(prop);
+        }
+
+        @Override
+        public void modify(JposEntry.Prop prop) {
+            load();
+            super.modify(prop);
+        }
+
+        @Override
+        public boolean hasProp(JposEntry.Prop prop) {
+            load();
+            return super.hasProp(prop);
+        }
+
+        @Override
+        public String toString() {
+            load();
+            return super.toString();
+        }
+    }
+
+    @Override
+    public String getClassName() {
+        return JposRegistryIndex.class.getName();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void load() {
+        load(isPopulatorFileDefined() ? getPopulatorFileName() : DEFAULT_XML);
+    }
+
+    @Override
+    public void load(String fileName) {
+        getJposEntries().clear();
+        lastLoadException = null;
+        synchronized (this) {
+            xmlEntries = null;
+            loadedEntries = 0;
+        }
+        xmlFile = new File(fileName);
+        if (!xmlFile.isFile()) {
+            //on the classpath or in a jar, leave it to the XML populator
+            indexFile = null;
+            loadXml(fileName);
+            return;
+        }
+        indexFile = indexFileOf(xmlFile);
+        try {
+            if (readIndex()) {
+                return;
+            }
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Cannot read " + indexFile + ", rebuilding it, " + ioe);
+            getJposEntries().clear();
+        }
+        List<JposEntry> entries = loadXml(fileName);
+        if (lastLoadException == null) {
+            writeIndex(entries);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") //the jpos interface declares the raw type
+    public void save(Enumeration entries) throws Exception {
+        save(entries, xmlFile != null ? xmlFile.getPath() : DEFAULT_XML);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void save(Enumeration entries, String fileName) throws Exception {
+        //entries are written back as XML, the index is rebuilt on next load
+        new XercesRegPopulator().save(entries, fileName);
+        if (indexFile != null) {
+            indexFile.delete();
+        }
+    }
+
+    @Override
+    public URL getEntriesURL() {
+        return xmlFile != null && xmlFile.isFile() ? createURLFromFile(xmlFile) : null;
+    }
+
+    /**
+     * @return File containing the compiled index, or null when jpos.xml is
+     * not a plain file
+     */
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * @return int containing the number of entries whose props have been
+     * read since the last load
+     */
+    public synchronized int getLoadedEntries() {
+        return loadedEntries;
+    }
+
+    /**
+     * Returns a read-only Map view of the props of an entry. For an indexed
+     * entry nothing is read until the map is first used.
+     *
+     * @param entry JposEntry from the registry
+     * @return Map of prop name to value
+     */
+    public static Map<String, Object> properties(final JposEntry entry) {
+        return new AbstractMap<String, Object>() {
+            @Override
+            public Object get(Object name) {
+                return name instanceof String ? entry.getPropertyValue((String) name) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object name) {
+                return name instanceof String && entry.hasPropertyWithName((String) name);
+            }
+
+            @Override
+            public Set<Map.Entry<String, Object>> entrySet() {
+                return new AbstractSet<Map.Entry<String, Object>>() {
+                    @Override
+                    public int size() {
+                        return entry.getPropertyCount();
+                    }
+
+                    @Override
+                    public Iterator<Map.Entry<String, Object>> iterator() {
+                        final Enumeration<?> names = entry.getPropertyNames();
+                        return new Iterator<Map.Entry<String, Object>>() {
+                            @Override
+                            public boolean hasNext() {
+                                return names.hasMoreElements();
+                            }
+
+                            @Override
+                            public Map.Entry<String, Object> next() {
+                                String name = (String) names.nextElement();
+                                return new SimpleImmutableEntry<String, Object>(name, entry.getPropertyValue(name));
+                            }
+
+                            @Override
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<JposEntry> loadXml(String fileName) {
+        XercesRegPopulator xml = new XercesRegPopulator();
+        xml.load(fileName);
+        lastLoadException = xml.getLastLoadException();
+        List<JposEntry> entries = new ArrayList<JposEntry>();
+        Enumeration<?> all = xml.getEntries();
+        while (all.hasMoreElements()) {
+            JposEntry entry = (JposEntry) all.nextElement();
+            entries.add(entry);
+            getJposEntries().put(entry.getLogicalName(), entry);
+        }
+        return entries;
+    }
+
+    private static File indexFileOf(File xml) {
+        File directory = new File(DLSProperties.getInstance().getTempDir(), DIRECTORY);
+        String path = xml.getAbsolutePath();
+        try {
+            path = xml.getCanonicalPath();
+        } catch (IOException ioe) {
+            //the absolute path identifies it as well
+        }
+        return new File(directory, String.format("%s-%08x.idx", xml.getName(), path.hashCode()));
+    }
+
+    /**
+     * @return boolean indicating whether the index was current and its
+     * directory was read
+     */
+    @SuppressWarnings("unchecked")
+    private boolean readIndex() throws IOException {
+        if (!indexFile.isFile()) {
+            return false;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(indexFile, "r")) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != xmlFile.length()
+                    || in.readLong() != xmlFile.lastModified()) {
+                return false;
+            }
+            byte[] directory = new byte[in.readInt()];
+            in.readFully(directory);
+            long dataStart = in.getFilePointer();
+            indexLength = in.length();
+            indexModified = indexFile.lastModified();
+            DataInputStream entries = new DataInputStream(new ByteArrayInputStream(directory));
+            int count = entries.readInt();
+            for (int i = 0; i < count; i++) {
+                String logicalName = entries.readUTF();
+                String category = entries.readUTF();
+                long offset = dataStart + entries.readLong();
+                int length = entries.readInt();
+                getJposEntries().put(logicalName, new IndexedEntry(logicalName,
+                        category.isEmpty() ? null : category, offset, length, this));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the props of an entry from the index, or from jpos.xml once the
+     * index has failed during this load.
+     *
+     * @return boolean indicating whether the props were read
+     */
+    private boolean readProps(IndexedEntry entry, long offset, int length) {
+        synchronized (this) {
+            if (xmlEntries != null) {
+                return readPropsFromXml(entry);
+            }
+        }
+        try {
+            readPropsFromIndex(entry, offset, length);
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Cannot read " + entry.getLogicalName() + " from " + indexFile
+                    + ", reading jpos.xml, " + ioe);
+            return readPropsFromXml(entry);
+        }
+        synchronized (this) {
+            loadedEntries++;
+        }
+        return true;
+    }
+
+    private void readPropsFromIndex(IndexedEntry entry, long offset, int length) throws IOException {
+        byte[] props = new byte[length];
+        try (RandomAccessFile in = new RandomAccessFile(indexFile, "r")) {
+            //another process may have rebuilt it since the directory was read, the offsets are its own
+            if (in.length() != indexLength || indexFile.lastModified() != indexModified
+                    || in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != xmlFile.length()
+                    || in.readLong() != xmlFile.lastModified()) {
+                throw new IOException("index changed since it was loaded");
+            }
+            in.seek(offset);
+            in.readFully(props);
+        }
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(props));
+        String logicalName = data.readUTF();
+        if (!logicalName.equals(entry.getLogicalName())) {
+            throw new IOException("props at " + offset + " are those of " + logicalName);
+        }
+        int count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = data.readUTF();
+            String type = data.readUTF();
+            String value = data.readUTF();
+            entry.put(name, decode(type, value));
+        }
+    }
+
+    /**
+     * Reads the props of an entry from jpos.xml when its part of the index
+     * cannot be read. The first call drops the index, so the next load
+     * rebuilds it, and parses jpos.xml once for all entries still unread.
+     *
+     * @return boolean indicating whether the entry was found
+     */
+    private synchronized boolean readPropsFromXml(IndexedEntry entry) {
+        if (xmlEntries == null) {
+            indexFile.delete();
+            XercesRegPopulator xml = new XercesRegPopulator();
+            xml.load(xmlFile.getPath());
+            if (xml.getLastLoadException() != null) {
+                System.err.println("ERROR: Cannot read " + xmlFile + ", " + xml.getLastLoadException());
+                return false;
+            }
+            xmlEntries = new HashMap<String, JposEntry>();
+            Enumeration<?> all = xml.getEntries();
+            while (all.hasMoreElements()) {
+                JposEntry source = (JposEntry) all.nextElement();
+                xmlEntries.put(source.getLogicalName(), source);
+            }
+        }
+        JposEntry source = xmlEntries.get(entry.getLogicalName());
+        if (source == null) {
+            System.err.println("ERROR: " + entry.getLogicalName() + " is not in " + xmlFile);
+            return false;
+        }
+        for (Iterator<?> it = source.getProps(); it.hasNext();) {
+            JposEntry.Prop prop = (JposEntry.Prop) it.next();
+            entry.put(prop.getName(), prop.getValue());
+        }
+        loadedEntries++;
+        return true;
+    }
+
+    private void writeIndex(List<JposEntry> entries) {
+        File directory = indexFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("ERROR: Cannot create jpos.xml index directory " + directory);
+            return;
+        }
+        File temp = new File(directory, indexFile.getName() + ".tmp");
+        try {
+            ByteArrayOutputStream props = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(props);
+            ByteArrayOutputStream names = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(names);
+            index.writeInt(entries.size());
+            for (JposEntry entry : entries) {
+                int start = data.size();
+                List<Object[]> values = new ArrayList<Object[]>();
+                for (Iterator<?> it = entry.getProps(); it.hasNext();) {
+                    JposEntry.Prop prop = (JposEntry.Prop) it.next();
+                    if (!JposEntry.LOGICAL_NAME_PROP_NAME.equals(prop.getName()) && prop.getValue() != null) {
+                        values.add(new Object[]{prop.getName(), prop.getType(), prop.getValue()});
+                    }
+                }
+                //checked on read, so an offset into another index is not taken for this entry
+                data.writeUTF(entry.getLogicalName());
+                data.writeInt(values.size());
+                for (Object[] value : values) {
+                    data.writeUTF((String) value[0]);
+                    data.writeUTF(((Class<?>) value[1]).getSimpleName());
+                    data.writeUTF(String.valueOf(value[2]));
+                }
+                Object category = entry.getPropertyValue(JposEntry.DEVICE_CATEGORY_PROP_NAME);
+                index.writeUTF(entry.getLogicalName());
+                index.writeUTF(category == null ? "" : category.toString());
+                index.writeLong(start);
+                index.writeInt(data.size() - start);
+            }
+            try (OutputStream file = new FileOutputStream(temp)) {
+                DataOutputStream out = new DataOutputStream(file);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(xmlFile.length());
+                out.writeLong(xmlFile.lastModified());
+                out.writeInt(names.size());
+                names.writeTo(out);
+                props.writeTo(out);
+                out.flush();
+            }
+            Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Cannot write " + indexFile + ", " + ioe);
+            temp.delete();
+        }
+    }
+
+    private static Object decode(String type, String value) {
+        try {
+            if ("Boolean".equals(type)) {
+                return Boolean.valueOf(value);
+            } else if ("Integer".equals(type)) {
+                return Integer.valueOf(value);
+            } else if ("Long".equals(type)) {
+                return Long.valueOf(value);
+            } else if ("Short".equals(type)) {
+                return Short.valueOf(value);
+            } else if ("Byte".equals(type)) {
+                return Byte.valueOf(value);
+            } else if ("Float".equals(type)) {
+                return Float.valueOf(value);
+            } else if ("Double".equals(type)) {
+                return Double.valueOf(value);
+            } else if ("Character".equals(type) && value.length() == 1) {
+                return Character.valueOf(value.charAt(0));
+            }
+        } catch (NumberFormatException nfe) {
+            //kept as the string it was written from
+        }
+        return value;
+    }
+
+    /**
+     * Loads jpos.xml through the index and through XercesRegPopulator and
+     * checks that both give the same entries (Usage: JposRegistryIndex
+     * [jpos.xml] [logicalName]). Run it twice: the first run builds the
+     * index.
+     */
+    public static void main(String[] args) {
+        String fileName = args.length > 0 ? args[0] : DEFAULT_XML;
+        //dls.properties is read once per process, keep it out of the timings
+        DLSProperties.getInstance().getTempDir();
+        long start = System.nanoTime();
+        XercesRegPopulator xml = new XercesRegPopulator();
+        xml.load(fileName);
+        long xmlNanos = System.nanoTime() - start;
+        Map<String, JposEntry> expected = new HashMap<String, JposEntry>();
+        Enumeration<?> all = xml.getEntries();
+        while (all.hasMoreElements()) {
+            JposEntry entry = (JposEntry) all.nextElement();
+            expected.put(entry.getLogicalName(), entry);
+        }
+        start = System.nanoTime();
+        JposRegistryIndex index = new JposRegistryIndex();
+        index.load(fileName);
+        long indexNanos = System.nanoTime() - start;
+        String logicalName = args.length > 1 ? args[1] : expected.keySet().iterator().next();
+        if (!index.getJposEntries().containsKey(logicalName)) {
+            System.err.println("ERROR: " + logicalName + " is not in " + fileName);
+            System.exit(1);
+        }
+        start = System.nanoTime();
+        Map<String, Object> props = properties((JposEntry) index.getJposEntries().get(logicalName));
+        Object category = props.get(JposEntry.DEVICE_CATEGORY_PROP_NAME);
+        Object service = props.get(JposEntry.SERVICE_CLASS_PROP_NAME);
+        long entryNanos = System.nanoTime() - start;
+        int loadedForOne = index.getLoadedEntries();
+        boolean ok = index.getJposEntries().size() == expected.size() && category != null && service != null;
+        for (JposEntry entry : expected.values()) {
+            JposEntry indexed = (JposEntry) index.getJposEntries().get(entry.getLogicalName());
+            ok &= indexed != null && properties(entry).equals(properties(indexed));
+        }
+        System.out.println("Index:   " + index.getIndexFile());
+        System.out.println(String.format("Load:    xml %.1f ms, index %.1f ms, %s in %.2f ms",
+                xmlNanos / 1e6, indexNanos / 1e6, logicalName, entryNanos / 1e6));
+        System.out.println("Entries: " + expected.size() + ", props read for " + loadedForOne + " to open one");
+        System.out.println(ok ? "INFO: Index matches jpos.xml." : "ERROR: Index does not match jpos.xml.");
+        System.exit(ok ? 0 : 1);
+    }
+}
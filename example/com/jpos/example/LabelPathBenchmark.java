@@ -0,0 +1,182 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import com.dls.jpos.common.DLSException;
+import com.dls.jpos.common.DLSState;
+import com.dls.jpos.interpretation.DLSScanner;
+import com.dls.jpos.interpretation.DLSSerialScanner;
+import com.dls.jpos.interpretation.DLSUSBScanner;
+import com.dls.jpos.interpretation.LabelReceivedListener;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import jpos.events.DataEvent;
+
+/**
+ * LabelPathBenchmark class replays raw label frames through the scanner label
+ * path and reports per-stage latency percentiles and allocation per label.
+ *
+ * The path measured is:
+ * SimulatedPort (DataReceivedListener) -> DLSUSBScanner/DLSSerialScanner ->
+ * LabelReceivedListener -> label holder -> DataEvent
+ *
+ * No scanner needs to be attached. The interpretation object is configured
+ * from the jpos.xml profile, so this must be run from the root JavaPOS
+ * directory. The last stage builds the same label holder and DataEvent the
+ * DLSScannerService posts, since the service itself only runs against a
+ * claimed device.
+ *
+ * Usage: LabelPathBenchmark [profile] [captureFile|-] [iterations]
+ */
+public class LabelPathBenchmark implements LabelReceivedListener {
+
+    private static final int WARMUP_ITERATIONS = 20000;
+
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final LatencyHistogram eventLatency = new LatencyHistogram();
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+    private volatile long replayStart;
+    private volatile long labelCount;
+    private volatile Object lastEvent;
+
+    public static void main(String[] args) throws Exception {
+        String profile = "DL-Magellan-9800i-USB-OEM-Scanner-Scale";
+        String captureFile = "-";
+        int iterations = 200000;
+        if (args.length > 0) {
+            profile = args[0];
+        }
+        if (args.length > 1) {
+            captureFile = args[1];
+        }
+        if (args.length > 2) {
+            iterations = Integer.parseInt(args[2]);
+        }
+
+        LabelPathBenchmark bench = new LabelPathBenchmark();
+        DLSDeviceInfo info = new DLSDeviceInfo();
+        if (!info.loadConfiguration(profile)) {
+            System.err.println("ERROR: Failed to load " + profile + " profile.");
+            System.exit(1);
+        }
+        DLSScanner scanner = createScanner(info);
+        SimulatedPort port = new SimulatedPort(info);
+        port.openPort();
+        port.addDataReceivedListener(scanner);
+        scanner.addLabelReceivedListener(bench);
+
+        List<byte[]> frames = "-".equals(captureFile)
+                ? defaultFrames(info) : SimulatedPort.loadCapture(captureFile);
+        if (frames.isEmpty()) {
+            System.err.println("ERROR: No frames to replay.");
+            System.exit(1);
+        }
+
+        System.out.println("INFO: Replaying " + frames.size() + " frame(s) through "
+                + scanner.getClass().getSimpleName() + " for " + profile);
+        bench.run(port, frames, WARMUP_ITERATIONS);
+        bench.reset();
+        long bytes = bench.run(port, frames, iterations);
+
+        long labels = bench.labelCount;
+        System.out.println("Labels delivered:   " + labels + " of " + iterations + " frames");
+        System.out.println("Transport->Label:   " + bench.decodeLatency.summary());
+        System.out.println("Label->DataEvent:   " + bench.eventLatency.summary());
+        System.out.println("Transport->Event:   " + bench.totalLatency.summary());
+        if (bytes >= 0 && labels > 0) {
+            System.out.println("Allocated per label: " + (bytes / labels) + " bytes");
+        }
+        System.exit(0);
+    }
+
+    @Override
+    public void onLabelReceived(byte[] scanData, byte[] scanDataLabel, int scanDataType) {
+        long decoded = System.nanoTime();
+        //mirror what the service does with a label: hold it, then post an event
+        Object[] labelData = new Object[]{scanData, scanDataLabel, scanDataType};
+        lastEvent = new DataEvent(labelData, 0);
+        long posted = System.nanoTime();
+
+        long start = replayStart;
+        decodeLatency.record(decoded - start);
+        eventLatency.record(posted - decoded);
+        totalLatency.record(posted - start);
+        labelCount++;
+    }
+
+    /**
+     * Replays the frames round robin.
+     *
+     * @param port SimulatedPort feeding the interpretation object
+     * @param frames List of raw frames
+     * @param iterations int indicating the number of frames to replay
+     * @return long containing the bytes allocated by the replay thread, or -1
+     * if the JVM cannot report it
+     */
+    private long run(SimulatedPort port, List<byte[]> frames, int iterations) {
+        long before = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            byte[] frame = frames.get(i % frames.size());
+            replayStart = System.nanoTime();
+            port.replay(frame);
+        }
+        long after = allocatedBytes();
+        return (before < 0 || after < 0) ? -1 : after - before;
+    }
+
+    private void reset() {
+        decodeLatency.reset();
+        eventLatency.reset();
+        totalLatency.reset();
+        labelCount = 0;
+    }
+
+    /**
+     * Creates the interpretation object for the profile bus and moves it to
+     * the enabled state, since label records are dropped while disabled.
+     */
+    private static DLSScanner createScanner(DLSDeviceInfo info) throws DLSException {
+        DLSScanner scanner;
+        if ("RS232".equalsIgnoreCase(info.getDeviceBus())) {
+            scanner = new DLSSerialScanner();
+        } else {
+            scanner = new DLSUSBScanner();
+        }
+        scanner.setDeviceInfo(info);
+        scanner.setState(DLSState.OPENED);
+        scanner.setState(DLSState.CLAIMED);
+        scanner.setState(DLSState.ENABLED);
+        return scanner;
+    }
+
+    /**
+     * Builds a small mix of labels in the profile's wire format when no
+     * capture file is given.
+     */
+    private static List<byte[]> defaultFrames(DLSDeviceInfo info) throws IOException {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        if ("RS232".equalsIgnoreCase(info.getDeviceBus())) {
+            byte trailer = info.getRxTrailer();
+            frames.add(SimulatedPort.serialFrame("012345678905", "A", trailer));
+            frames.add(SimulatedPort.serialFrame("4006381333931", "F", trailer));
+            frames.add(SimulatedPort.serialFrame("CODE128-0001", "#", trailer));
+        } else {
+            frames.add(SimulatedPort.usbOemFrame("012345678905", new byte[]{0x0D}));
+            frames.add(SimulatedPort.usbOemFrame("4006381333931", new byte[]{0x16}));
+            frames.add(SimulatedPort.usbOemFrame("CODE128-0001", new byte[]{0x00, 0x18, 0x0B}));
+        }
+        return frames;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
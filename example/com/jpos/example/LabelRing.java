@@ -0,0 +1,303 @@
+package com.jpos.example;
+
+import com.dls.jpos.interpretation.LabelReceivedListener;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import jpos.JposException;
+import jpos.Scanner;
+
+/**
+ * LabelRing class holds the most recent labels in a fixed ring of
+ * preallocated slots so that label handling does not create garbage per
+ * scan.
+ *
+ * Labels are copied into the next slot, overwriting the oldest one once the
+ * ring wraps. A slot stays valid until {@code capacity} more labels have been
+ * published, so consumers should copy out what they need before then.
+ *
+ * The ring can be fed directly by a DLSScanner interpretation object (it is a
+ * LabelReceivedListener) or from a JavaPOS Scanner inside dataOccurred()
+ * using {@link #publish(Scanner)}. Publishing is single producer; the
+ * JavaPOS event thread is the only writer.
+ */
+public class LabelRing implements LabelReceivedListener {
+
+    /**
+     * One preallocated label holder.
+     */
+    public static class LabelSlot {
+
+        private byte[] scanData;
+        private byte[] scanDataLabel;
+        private int scanDataLength;
+        private int scanDataLabelLength;
+        private int scanDataType;
+        private long sequence = -1;
+        private long timestamp;
+
+        LabelSlot(int maxLabelLength) {
+            scanData = new byte[maxLabelLength];
+            scanDataLabel = new byte[maxLabelLength];
+        }
+
+        /**
+         * @return int containing the raw label data length
+         */
+        public int getScanDataLength() {
+            return scanDataLength;
+        }
+
+        /**
+         * @return int containing the decoded label data length
+         */
+        public int getScanDataLabelLength() {
+            return scanDataLabelLength;
+        }
+
+        /**
+         * @return int indicating the jpos symbology type code
+         */
+        public int getScanDataType() {
+            return scanDataType;
+        }
+
+        /**
+         * @return long containing the publish sequence number of this label
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return long containing System.nanoTime() at publish
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Copies the raw label data into a caller supplied buffer.
+         *
+         * @param dst byte array receiving the data
+         * @param offset int indicating where to start writing in dst
+         * @return int containing the number of bytes copied, fewer than
+         * getScanDataLength() if dst has less room
+         * @throws IndexOutOfBoundsException if offset is outside dst
+         */
+        public int copyScanData(byte[] dst, int offset) {
+            checkOffset(dst, offset);
+            int len = Math.min(scanDataLength, dst.length - offset);
+            System.arraycopy(scanData, 0, dst, offset, len);
+            return len;
+        }
+
+        /**
+         * Copies the decoded label data into a caller supplied buffer.
+         *
+         * @param dst byte array receiving the data
+         * @param offset int indicating where to start writing in dst
+         * @return int containing the number of bytes copied, fewer than
+         * getScanDataLabelLength() if dst has less room
+         * @throws IndexOutOfBoundsException if offset is outside dst
+         */
+        public int copyScanDataLabel(byte[] dst, int offset) {
+            checkOffset(dst, offset);
+            int len = Math.min(scanDataLabelLength, dst.length - offset);
+            System.arraycopy(scanDataLabel, 0, dst, offset, len);
+            return len;
+        }
+
+        /**
+         * Copies the raw label data into a caller supplied ByteBuffer.
+         *
+         * @param dst ByteBuffer receiving the data at its position
+         * @return int containing the number of bytes copied
+         */
+        public int copyScanData(ByteBuffer dst) {
+            int len = Math.min(scanDataLength, dst.remaining());
+            dst.put(scanData, 0, len);
+            return len;
+        }
+
+        /**
+         * Copies the decoded label data into a caller supplied ByteBuffer.
+         *
+         * @param dst ByteBuffer receiving the data at its position
+         * @return int containing the number of bytes copied
+         */
+        public int copyScanDataLabel(ByteBuffer dst) {
+            int len = Math.min(scanDataLabelLength, dst.remaining());
+            dst.put(scanDataLabel, 0, len);
+            return len;
+        }
+
+        /**
+         * Appends the raw label as ISO-8859-1 characters, which avoids
+         * building a String per label.
+         *
+         * @param sb StringBuilder to append to, reusable by the caller
+         * @return StringBuilder passed in
+         */
+        public StringBuilder appendScanData(StringBuilder sb) {
+            for (int i = 0; i < scanDataLength; i++) {
+                sb.append((char) (scanData[i] & 0xFF));
+            }
+            return sb;
+        }
+
+        /**
+         * Appends the decoded label as ISO-8859-1 characters, which avoids
+         * building a String per label.
+         *
+         * @param sb StringBuilder to append to, reusable by the caller
+         * @return StringBuilder passed in
+         */
+        public StringBuilder appendScanDataLabel(StringBuilder sb) {
+            for (int i = 0; i < scanDataLabelLength; i++) {
+                sb.append((char) (scanDataLabel[i] & 0xFF));
+            }
+            return sb;
+        }
+
+        /**
+         * @param charset Charset of the label, e.g. Charset.defaultCharset()
+         * as new String(getScanData()) uses
+         * @return String containing the raw label data
+         */
+        public String getScanDataString(Charset charset) {
+            return new String(scanData, 0, scanDataLength, charset);
+        }
+
+        /**
+         * @param charset Charset of the label, e.g. Charset.defaultCharset()
+         * as new String(getScanDataLabel()) uses
+         * @return String containing the decoded label data
+         */
+        public String getScanDataLabelString(Charset charset) {
+            return new String(scanDataLabel, 0, scanDataLabelLength, charset);
+        }
+
+        private void set(byte[] data, byte[] label, int type, long seq) {
+            //a label longer than the slot grows it rather than being cut short
+            if (data != null && data.length > scanData.length) {
+                scanData = new byte[data.length];
+            }
+            if (label != null && label.length > scanDataLabel.length) {
+                scanDataLabel = new byte[label.length];
+            }
+            scanDataLength = copyInto(data, scanData);
+            scanDataLabelLength = copyInto(label, scanDataLabel);
+            scanDataType = type;
+            timestamp = System.nanoTime();
+            sequence = seq;
+        }
+
+        private static int copyInto(byte[] src, byte[] dst) {
+            if (src == null) {
+                return 0;
+            }
+            System.arraycopy(src, 0, dst, 0, src.length);
+            return src.length;
+        }
+
+        private static void checkOffset(byte[] dst, int offset) {
+            if (offset < 0 || offset > dst.length) {
+                throw new IndexOutOfBoundsException("offset " + offset + ", length " + dst.length);
+            }
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final int DEFAULT_MAX_LABEL_LENGTH = 4096;
+
+    private final LabelSlot[] slots;
+    private final int mask;
+    private volatile long published = 0;
+
+    public LabelRing() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_LABEL_LENGTH);
+    }
+
+    /**
+     * @param capacity int indicating the number of slots, rounded up to a
+     * power of two
+     * @param maxLabelLength int indicating the label length preallocated per
+     * slot; a longer label grows its slot
+     */
+    public LabelRing(int capacity, int maxLabelLength) {
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new LabelSlot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new LabelSlot(maxLabelLength);
+        }
+        mask = size - 1;
+    }
+
+    @Override
+    public void onLabelReceived(byte[] scanData, byte[] scanDataLabel, int scanDataType) {
+        publish(scanData, scanDataLabel, scanDataType);
+    }
+
+    /**
+     * Copies a label into the next slot.
+     *
+     * @param scanData byte array containing the raw label data
+     * @param scanDataLabel byte array containing the decoded label data
+     * @param scanDataType int indicating the jpos symbology type code
+     * @return LabelSlot now holding the label
+     */
+    public LabelSlot publish(byte[] scanData, byte[] scanDataLabel, int scanDataType) {
+        long seq = published;
+        LabelSlot slot = slots[(int) (seq & mask)];
+        slot.set(scanData, scanDataLabel, scanDataType, seq);
+        published = seq + 1;
+        return slot;
+    }
+
+    /**
+     * Pulls the current label from a JavaPOS Scanner into the next slot.
+     * Intended to be called from dataOccurred().
+     *
+     * @param scanner Scanner that raised the DataEvent
+     * @return LabelSlot now holding the label
+     * @throws JposException if the label properties cannot be read
+     */
+    public LabelSlot publish(Scanner scanner) throws JposException {
+        return publish(scanner.getScanData(), scanner.getScanDataLabel(),
+                scanner.getScanDataType());
+    }
+
+    /**
+     * @return LabelSlot holding the newest label, or null if none yet
+     */
+    public LabelSlot latest() {
+        long seq = published - 1;
+        return seq < 0 ? null : slots[(int) (seq & mask)];
+    }
+
+    /**
+     * Returns the slot for a given sequence number if it has not been
+     * overwritten yet.
+     *
+     * @param sequence long containing the publish sequence number
+     * @return LabelSlot holding the label, or null if it is no longer held
+     */
+    public LabelSlot get(long sequence) {
+        LabelSlot slot = slots[(int) (sequence & mask)];
+        return slot.sequence == sequence ? slot : null;
+    }
+
+    /**
+     * @return long containing the number of labels published so far
+     */
+    public long getPublishedCount() {
+        return published;
+    }
+
+    /**
+     * @return int indicating the number of slots in the ring
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+}
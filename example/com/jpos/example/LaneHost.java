@@ -0,0 +1,585 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import com.dls.jpos.common.DLSException;
+import com.dls.jpos.common.DLSJposConst;
+import com.dls.jpos.common.DLSObjectFactory;
+import com.dls.jpos.common.DLSProperties;
+import com.dls.jpos.interpretation.DLSDevice;
+import com.dls.jpos.interpretation.DLSScale;
+import com.dls.jpos.interpretation.DLSScanner;
+import com.dls.jpos.interpretation.LabelReceivedListener;
+import com.dls.jpos.interpretation.WeightReceivedListener;
+import com.dls.jpos.transport.DLSPort;
+import com.dls.jpos.transport.DataReceivedListener;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import jpos.events.DataEvent;
+import jpos.events.DataListener;
+
+/**
+ * LaneHost class lets one JVM drive many logical devices with a bounded
+ * number of threads.
+ *
+ * The host owns one IoReactor, for transports that can be driven by a
+ * selector, and one fixed worker pool shared by all lanes.
+ * Each attached device becomes a Lane: frames read by its port are copied
+ * into the lane's queue on the transport thread, and the interpretation
+ * object (DLSUSBScanner, DLSSerialScanner, ...) parses them on a pool
+ * worker. A lane is drained by at most one worker at a time, so frames of
+ * one device are parsed in order, and a worker hands back to the pool after
+ * a batch so a chatty lane cannot starve the others.
+ *
+ * Labels and weights parsed on the pool are handed to one EventDispatcher
+ * of the host as LabelEvent and WeightEvent, so a slow application
+ * listener holds neither a pool worker nor a transport thread. Register
+ * DataListeners on {@link #getEvents()}.
+ *
+ * The pool size comes from dls.properties (HostWorkerThreads, default 4),
+ * and threads follow UseVirtualThreads.
+ */
+public class LaneHost {
+
+    public static final String KEY_HOSTWORKERTHREADS = "HostWorkerThreads";
+    public static final int DEFAULT_WORKER_THREADS = 4;
+    public static final int DEFAULT_LANE_QUEUE_SIZE = 256;
+    private static final int DRAIN_BATCH = 32;
+
+    private final DeviceThreads threads;
+    private final IoReactor reactor;
+    private final ExecutorService workers;
+    private final EventDispatcher events;
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+    /**
+     * One logical device served by the host.
+     */
+    public class Lane implements DataReceivedListener, Runnable, LabelReceivedListener, WeightReceivedListener {
+
+        private final String logicalName;
+        private final DLSDevice device;
+        private final DLSPort port;
+        private final EventRing<Frame> frames;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicLong frameCount = new AtomicLong();
+        private final AtomicLong failureCount = new AtomicLong();
+        private volatile LaneMetrics metrics;
+        private volatile long lastReadMillis = System.currentTimeMillis();
+
+        private Lane(String logicalName, DLSDevice device, DLSPort port, int queueSize) {
+            this.logicalName = logicalName;
+            this.device = device;
+            this.port = port;
+            frames = new EventRing<Frame>(queueSize, WaitStrategy.PARK);
+        }
+
+        /**
+         * Called by the port on its read thread. The frame is copied, since
+         * ports reuse their read buffers, and parsing is left to the pool.
+         * When the lane queue is full the port waits, which pushes back on
+         * the device instead of growing the heap.
+         */
+        @Override
+        public void onDataReceived(byte[] data, int length) {
+            lastReadMillis = System.currentTimeMillis();
+            frames.put(new Frame(Arrays.copyOf(data, length), System.nanoTime()));
+            schedule();
+        }
+
+        /**
+         * Called by a scanner device on a pool worker.
+         */
+        @Override
+        public void onLabelReceived(byte[] scanData, byte[] scanDataLabel, int scanDataType) {
+            LaneMetrics m = metrics;
+            if (m != null) {
+                m.recordLabel();
+            }
+            events.dataOccurred(new LabelEvent(this, scanData, scanDataLabel, scanDataType));
+        }
+
+        /**
+         * Called by a scale device on a pool worker.
+         */
+        @Override
+        public void onWeightReceived(int weight) {
+            LaneMetrics m = metrics;
+            if (m != null) {
+                m.recordWeight();
+            }
+            events.dataOccurred(new WeightEvent(this, weight));
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < DRAIN_BATCH; i++) {
+                    Frame frame = frames.poll();
+                    if (frame == null) {
+                        break;
+                    }
+                    try {
+                        device.onDataReceived(frame.data, frame.data.length);
+                        frameCount.incrementAndGet();
+                        LaneMetrics m = metrics;
+                        if (m != null) {
+                            m.recordReadToEvent(frame.readNanos);
+                        }
+                    } catch (RuntimeException re) {
+                        failureCount.incrementAndGet();
+                        System.err.println("ERROR: " + logicalName + " failed to parse frame, " + re);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                //frames may have arrived after the last poll
+                if (frames.size() > 0) {
+                    schedule();
+                }
+            }
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException ree) {
+                    //host is shutting down
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        public String getLogicalName() {
+            return logicalName;
+        }
+
+        public DLSDevice getDevice() {
+            return device;
+        }
+
+        public DLSPort getPort() {
+            return port;
+        }
+
+        /**
+         * @return int containing the number of frames waiting to be parsed
+         */
+        public int getPendingFrames() {
+            return frames.size();
+        }
+
+        /**
+         * @return long containing the System.currentTimeMillis() of the
+         * last frame read, or of the attach if none was read
+         */
+        public long getLastReadMillis() {
+            return lastReadMillis;
+        }
+
+        /**
+         * @return long containing the number of frames parsed
+         */
+        public long getFrameCount() {
+            return frameCount.get();
+        }
+
+        /**
+         * @return long containing the number of frames the device failed to
+         * parse
+         */
+        public long getFailureCount() {
+            return failureCount.get();
+        }
+
+        public LaneMetrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Reports the lane's read-to-event latency, label and weight events,
+         * pending frames and the host's event queue depth to the given
+         * metrics.
+         *
+         * @param metrics LaneMetrics of the device, or null to stop
+         */
+        public void setMetrics(LaneMetrics metrics) {
+            if (metrics != null) {
+                metrics.setLane(this);
+                metrics.setEventDispatcher(events);
+            }
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * A label read by a lane. The source is the Lane.
+     */
+    public static class LabelEvent extends DataEvent {
+
+        private static final long serialVersionUID = 1L;
+        private final transient byte[] scanData;
+        private final transient byte[] scanDataLabel;
+
+        private LabelEvent(Lane lane, byte[] scanData, byte[] scanDataLabel, int scanDataType) {
+            super(lane, scanDataType);
+            this.scanData = scanData;
+            this.scanDataLabel = scanDataLabel;
+        }
+
+        public String getLogicalName() {
+            return ((Lane) getSource()).getLogicalName();
+        }
+
+        public byte[] getScanData() {
+            return scanData;
+        }
+
+        public byte[] getScanDataLabel() {
+            return scanDataLabel;
+        }
+
+        /**
+         * @return int containing the ScannerConst.SCAN_SDT_ symbology
+         */
+        public int getScanDataType() {
+            return getStatus();
+        }
+    }
+
+    /**
+     * A weight reported by a scale lane. The source is the Lane.
+     */
+    public static class WeightEvent extends DataEvent {
+
+        private static final long serialVersionUID = 1L;
+
+        private WeightEvent(Lane lane, int weight) {
+            super(lane, weight);
+        }
+
+        public String getLogicalName() {
+            return ((Lane) getSource()).getLogicalName();
+        }
+
+        /**
+         * @return int containing the weight as reported by the scale
+         */
+        public int getWeight() {
+            return getStatus();
+        }
+    }
+
+    /**
+     * A frame copied off the transport with the time it was read.
+     */
+    private static class Frame {
+
+        private final byte[] data;
+        private final long readNanos;
+
+        private Frame(byte[] data, long readNanos) {
+            this.data = data;
+            this.readNanos = readNanos;
+        }
+    }
+
+    /**
+     * Creates a host configured from dls.properties.
+     *
+     * @param name String used to name the host threads
+     * @throws IOException if the reactor cannot be started
+     */
+    public LaneHost(String name) throws IOException {
+        this(name, DLSProperties.getInstance().get(KEY_HOSTWORKERTHREADS, DEFAULT_WORKER_THREADS));
+    }
+
+    /**
+     * @param name String used to name the host threads
+     * @param workerThreads int indicating the size of the shared worker pool
+     * @throws IOException if the reactor cannot be started
+     */
+    public LaneHost(String name, int workerThreads) throws IOException {
+        threads = new DeviceThreads("LaneHost-" + name);
+        reactor = new IoReactor(threads);
+        workers = threads.fixedExecutor("lane", Math.max(1, workerThreads));
+        events = new EventDispatcher("LaneHost-" + name);
+    }
+
+    /**
+     * Attaches a device that has been opened and claimed but not enabled.
+     * Its port stops calling the device directly and feeds the lane
+     * instead; enable the device afterwards, so no frame arrives while the
+     * listeners are swapped.
+     *
+     * @param device DLSDevice opened on its logical name
+     * @return Lane serving the device
+     * @throws DLSException if the device has no port, is enabled or is
+     * already attached
+     */
+    public Lane attach(DLSDevice device) throws DLSException {
+        DLSPort port = device.getPort();
+        if (port == null) {
+            throw new DLSException(DLSJposConst.DLS_E_OPENPORT,
+                    device.getLogicalName() + " has no open port.");
+        }
+        checkDisabled(device);
+        port.removeDataReceivedListener(device);
+        try {
+            return attach(device.getLogicalName(), device, port);
+        } catch (DLSException de) {
+            port.addDataReceivedListener(device);
+            throw de;
+        }
+    }
+
+    /**
+     * Attaches a device to a port created by the caller, for instance one
+     * registered with {@link #getReactor()}.
+     *
+     * @param logicalName String containing the lane name
+     * @param device DLSDevice parsing the frames
+     * @param port DLSPort reading the frames
+     * @return Lane serving the device
+     * @throws DLSException if a lane with that name is already attached
+     */
+    public Lane attach(String logicalName, DLSDevice device, DLSPort port) throws DLSException {
+        Lane lane = new Lane(logicalName, device, port, DEFAULT_LANE_QUEUE_SIZE);
+        if (lanes.putIfAbsent(logicalName, lane) != null) {
+            throw new DLSException(DLSJposConst.DLS_E_INVALID_ARG, logicalName + " is already attached.");
+        }
+        if (device instanceof DLSScanner) {
+            ((DLSScanner) device).addLabelReceivedListener(lane);
+        } else if (device instanceof DLSScale) {
+            ((DLSScale) device).addWeightReceivedListener(lane);
+        }
+        port.addDataReceivedListener(lane);
+        return lane;
+    }
+
+    /**
+     * Detaches a lane and hands its port back to the device, which must be
+     * disabled first so no frame arrives while the listeners are swapped.
+     *
+     * @param logicalName String containing the lane name
+     * @return Lane detached, or null if there was none
+     * @throws DLSException if the device of the lane is enabled
+     */
+    public Lane detach(String logicalName) throws DLSException {
+        Lane lane = lanes.get(logicalName);
+        if (lane != null) {
+            checkDisabled(lane.device);
+        }
+        return remove(logicalName);
+    }
+
+    private static void checkDisabled(DLSDevice device) throws DLSException {
+        if (device.getDeviceEnabled()) {
+            //frames read between removing one listener and adding the other would be lost
+            throw new DLSException(DLSJposConst.DLS_E_STATE_TRANSITION,
+                    device.getLogicalName() + " must be disabled to swap its port listener.");
+        }
+    }
+
+    private Lane remove(String logicalName) {
+        Lane lane = lanes.remove(logicalName);
+        if (lane != null) {
+            lane.port.removeDataReceivedListener(lane);
+            lane.port.addDataReceivedListener(lane.device);
+            if (lane.device instanceof DLSScanner) {
+                ((DLSScanner) lane.device).removeLabelReceivedListener(lane);
+            } else if (lane.device instanceof DLSScale) {
+                ((DLSScale) lane.device).removeWeightReceivedListener(lane);
+            }
+        }
+        return lane;
+    }
+
+    public Lane getLane(String logicalName) {
+        return lanes.get(logicalName);
+    }
+
+    public Collection<Lane> getLanes() {
+        return lanes.values();
+    }
+
+    public IoReactor getReactor() {
+        return reactor;
+    }
+
+    /**
+     * @return EventDispatcher delivering the LabelEvents and WeightEvents of
+     * all lanes, in the order they were parsed
+     */
+    public EventDispatcher getEvents() {
+        return events;
+    }
+
+    /**
+     * Detaches all lanes, stops the reactor and the worker pool. Devices
+     * still enabled are detached as well, but may lose a frame; disable
+     * them first.
+     *
+     * @param timeoutMillis long indicating how long to wait for the threads
+     * @return boolean indicating whether every thread exited in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        for (String logicalName : lanes.keySet()) {
+            Lane lane = remove(logicalName);
+            if (lane != null && lane.metrics != null) {
+                lane.metrics.unregister();
+            }
+        }
+        reactor.close();
+        events.shutdown();
+        return threads.shutdown(timeoutMillis);
+    }
+
+    /**
+     * Opens, claims and enables the given scanners and scales on one host and
+     * prints their labels and weights, e.g.
+     * {@code LaneHost Lane1-Scanner Lane1-Scale Lane2-Scanner ...}.
+     * Lane metrics are registered for devices with MBeansEnabled, so they
+     * can be watched with jconsole when run with
+     * -Dcom.sun.management.jmxremote. A device cached by a previous run is
+     * claimed without the configuration push, and its metrics start from
+     * the cached statistics. Pulling statistics resets the device, so
+     * a lane is only pulled once it has read nothing for StatisticsIdleTime
+     * and its statistics are older than StatisticsCacheTTL, and once more on
+     * exit after the lanes are disabled if they have expired by then.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("ERROR: Usage LaneHost <logicalName> [<logicalName> ...]");
+            System.exit(1);
+        }
+        final LaneHost host = new LaneHost("main");
+        final StatisticsCollector<HashMap<String, Object>> statistics = StatisticsCollector.forDevices();
+        final DeviceInfoCache infoCache = new DeviceInfoCache();
+        Map<String, DLSDevice> devices = new LinkedHashMap<String, DLSDevice>();
+        host.getEvents().addDataListener(new DataListener() {
+            @Override
+            public void dataOccurred(DataEvent de) {
+                if (de instanceof LabelEvent) {
+                    LabelEvent label = (LabelEvent) de;
+                    System.out.println(label.getLogicalName() + ": " + new String(label.getScanDataLabel()));
+                } else if (de instanceof WeightEvent) {
+                    WeightEvent weight = (WeightEvent) de;
+                    System.out.println(weight.getLogicalName() + ": weight " + weight.getWeight());
+                }
+            }
+        });
+        for (final String logicalName : args) {
+            try {
+                DLSDeviceInfo info = new DLSDeviceInfo();
+                final DLSDevice device = info.loadConfiguration(logicalName) && "Scale".equals(info.getDeviceCategory())
+                        ? DLSObjectFactory.createScale(logicalName) : DLSObjectFactory.createScanner(logicalName);
+                device.open(logicalName);
+                long start = System.nanoTime();
+                //a device cached by an earlier run is claimed without pushing its configuration again
+                HashMap<String, Object> cached = infoCache.claim(logicalName, device.getDeviceInfo(),
+                        new DeviceInfoCache.Claim<DLSException>() {
+                    @Override
+                    public void claim() throws DLSException {
+                        device.claim(5000);
+                    }
+                });
+                long claimed = System.nanoTime();
+                //attached while disabled, so no label is read during the swap
+                Lane lane = host.attach(device);
+                devices.put(logicalName, device);
+                long attached = System.nanoTime();
+                device.enable();
+                long enabled = System.nanoTime();
+                LaneMetrics metrics = LaneMetrics.create(device);
+                metrics.recordClaim(claimed - start);
+                metrics.recordEnable(enabled - attached);
+                lane.setMetrics(metrics);
+                if (cached != null) {
+                    metrics.populate(cached);
+                }
+                if (device.hasStatisticsReporting()) {
+                    refreshWhenIdle(statistics, infoCache, lane, metrics);
+                }
+            } catch (DLSException de) {
+                System.err.println("ERROR: Failed to open " + logicalName + ", " + de.getMessage());
+            }
+        }
+        System.out.println("INFO: Serving " + host.getLanes().size() + " lane(s). Press Enter to stop.");
+        System.in.read();
+        for (Map.Entry<String, DLSDevice> entry : devices.entrySet()) {
+            statistics.stopRefresh(entry.getKey());
+            try {
+                entry.getValue().disable();
+            } catch (DLSException de) {
+                System.err.println("ERROR: Failed to disable " + entry.getKey() + ", " + de.getMessage());
+            }
+        }
+        host.shutdown(5000);
+        //the lanes are idle now, pull what expired and keep it for the next run
+        Map<String, CompletableFuture<HashMap<String, Object>>> pulls
+                = new LinkedHashMap<String, CompletableFuture<HashMap<String, Object>>>();
+        for (Map.Entry<String, DLSDevice> entry : devices.entrySet()) {
+            DLSDevice device = entry.getValue();
+            if (device.hasStatisticsReporting()) {
+                pulls.put(entry.getKey(), statistics.collect(entry.getKey(), StatisticsCollector.statisticsOf(device)));
+            }
+        }
+        for (Map.Entry<String, CompletableFuture<HashMap<String, Object>>> pull : pulls.entrySet()) {
+            String logicalName = pull.getKey();
+            try {
+                infoCache.store(logicalName, devices.get(logicalName).getDeviceInfo(), pull.getValue().get(60, TimeUnit.SECONDS));
+            } catch (ExecutionException | TimeoutException e) {
+                System.err.println("ERROR: No statistics from " + logicalName + ", " + e);
+            }
+        }
+        statistics.shutdown(1000);
+        for (DLSDevice device : devices.values()) {
+            try {
+                device.release();
+                device.close();
+            } catch (DLSException de) {
+                //ignoring exceptions on exit
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Pulls the statistics of a lane whenever they have expired and the lane
+     * is idle, and hands them to its metrics and the device info cache.
+     */
+    private static void refreshWhenIdle(final StatisticsCollector<HashMap<String, Object>> statistics,
+            final DeviceInfoCache infoCache, final Lane lane, final LaneMetrics metrics) {
+        final DLSDevice device = lane.getDevice();
+        statistics.refreshWhenIdle(lane.getLogicalName(), StatisticsCollector.statisticsOf(device),
+                new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                return !device.getDeviceEnabled()
+                        || lane.getPendingFrames() == 0 && statistics.isIdle(lane.getLastReadMillis());
+            }
+        }, new Consumer<HashMap<String, Object>>() {
+            @Override
+            public void accept(HashMap<String, Object> stats) {
+                metrics.populate(stats);
+                infoCache.store(lane.getLogicalName(), device.getDeviceInfo(), stats);
+            }
+        });
+    }
+}
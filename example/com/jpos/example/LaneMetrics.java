@@ -0,0 +1,339 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import com.dls.jpos.interpretation.DLSDevice;
+import com.dls.jpos.interpretation.DLSScale;
+import com.dls.jpos.service.ScannerScale;
+import com.dls.jpos.transport.DLSPort;
+import com.dls.jpos.transport.DeviceReattachedListener;
+import com.dls.jpos.transport.DeviceRemovedListener;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * LaneMetrics class is the ScannerScale MBean of one lane with hot-path
+ * metrics added: read-to-event latency, label and weight event rates, event
+ * queue depth, USB reattach and removal counts, and claim/enable durations.
+ *
+ * Counters are LongAdders and latencies go into LatencyHistograms, so
+ * recording from event and transport threads is a few uncontended atomic
+ * increments and never allocates. Rates and percentiles are only computed
+ * when a JMX client reads them.
+ *
+ * The device attributes are populated from the statistics map, exactly as
+ * ScannerScaleAgent does, and may be refreshed at any time. The bean is registered beside the agent's bean as
+ * CIMV2:name=Scanner,lane=&lt;logicalName&gt; (or Scale), when
+ * MBeansEnabled is set for the device.
+ */
+public class LaneMetrics extends ScannerScale implements LaneMetricsMBean,
+        DeviceReattachedListener, DeviceRemovedListener {
+
+    private static final double NANOS_PER_MICRO = 1000.0;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final String logicalName;
+    private final LongAdder labels = new LongAdder();
+    private final LongAdder weights = new LongAdder();
+    private final LongAdder reattaches = new LongAdder();
+    private final LongAdder removals = new LongAdder();
+    private final LatencyHistogram readToEvent = new LatencyHistogram();
+    private final LatencyHistogram claimDuration = new LatencyHistogram();
+    private final LatencyHistogram enableDuration = new LatencyHistogram();
+    private final Rate labelRate = new Rate();
+    private final Rate weightRate = new Rate();
+    private volatile EventDispatcher dispatcher;
+    private volatile LaneHost.Lane lane;
+    private ObjectName objectName;
+
+    /**
+     * Events per second over the last completed window of at least a
+     * second. The window is an immutable snapshot of two counter samples
+     * that only moves on once it is a second old, so every JMX client
+     * reading within that second sees the same rate, however often and
+     * however many clients poll.
+     */
+    private static class Rate {
+
+        private final AtomicReference<Window> window = new AtomicReference<Window>();
+
+        private static final class Window {
+
+            private final long startCount;
+            private final long startNanos;
+            private final long endCount;
+            private final long endNanos;
+
+            private Window(long startCount, long startNanos, long endCount, long endNanos) {
+                this.startCount = startCount;
+                this.startNanos = startNanos;
+                this.endCount = endCount;
+                this.endNanos = endNanos;
+            }
+
+            private double value() {
+                long elapsed = endNanos - startNanos;
+                long events = endCount - startCount;
+                return elapsed <= 0 || events <= 0 ? 0.0 : events * (double) NANOS_PER_SECOND / elapsed;
+            }
+        }
+
+        private Rate() {
+            reset();
+        }
+
+        private double get(long count) {
+            long now = System.nanoTime();
+            Window current = window.get();
+            if (now - current.endNanos >= NANOS_PER_SECOND) {
+                //a reader that loses the race uses the winner's window
+                window.compareAndSet(current, new Window(current.endCount, current.endNanos, count, now));
+            }
+            return window.get().value();
+        }
+
+        /**
+         * Starts over from a zero count, for counters that were reset.
+         */
+        private void reset() {
+            long now = System.nanoTime();
+            window.set(new Window(0, now, 0, now));
+        }
+    }
+
+    /**
+     * @param logicalName String containing the jpos.xml logical name
+     */
+    public LaneMetrics(String logicalName) {
+        this.logicalName = logicalName;
+    }
+
+    /**
+     * Creates the metrics of an opened device and registers them when
+     * MBeansEnabled is set in its jpos.xml entry. The metrics also count
+     * the device's USB removals and reattaches. Device attributes stay empty
+     * until statistics are passed to populate(), e.g. from a
+     * StatisticsCollector, so creating the metrics never queries the device.
+     *
+     * @param device DLSDevice opened on its logical name
+     * @return LaneMetrics collecting for the device
+     */
+    public static LaneMetrics create(DLSDevice device) {
+        LaneMetrics metrics = new LaneMetrics(device.getLogicalName());
+        DLSPort port = device.getPort();
+        if (port != null) {
+            port.addDeviceReattachedListener(metrics);
+            port.addDeviceRemovedListener(metrics);
+        }
+        DLSDeviceInfo info = device.getDeviceInfo();
+        if (info != null && info.getMBeansEnabled()) {
+            metrics.register(device instanceof DLSScale ? "Scale" : "Scanner");
+        }
+        return metrics;
+    }
+
+    /**
+     * Registers the bean on the platform MBean server.
+     *
+     * @param kind String containing "Scanner" or "Scale"
+     * @return boolean indicating whether the bean is registered
+     */
+    public synchronized boolean register(String kind) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("CIMV2:name=" + kind + ",lane="
+                    + ObjectName.quote(logicalName));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            objectName = name;
+            return true;
+        } catch (JMException jme) {
+            System.err.println("ERROR: Failed to register metrics for " + logicalName + ", " + jme);
+            return false;
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException jme) {
+            //already gone
+        }
+        objectName = null;
+    }
+
+    /**
+     * Counts a label delivered to the application.
+     */
+    public void recordLabel() {
+        labels.increment();
+    }
+
+    /**
+     * Records the time from a frame being read off the transport to its
+     * events having been fired.
+     *
+     * @param readNanos long containing the System.nanoTime() at which the
+     * frame was read
+     */
+    public void recordReadToEvent(long readNanos) {
+        readToEvent.record(System.nanoTime() - readNanos);
+    }
+
+    /**
+     * Counts a weight event delivered to the application.
+     */
+    public void recordWeight() {
+        weights.increment();
+    }
+
+    /**
+     * @param nanos long containing the time claim() took
+     */
+    public void recordClaim(long nanos) {
+        claimDuration.record(nanos);
+    }
+
+    /**
+     * @param nanos long containing the time it took to enable the device
+     */
+    public void recordEnable(long nanos) {
+        enableDuration.record(nanos);
+    }
+
+    @Override
+    public void onDeviceReattached() {
+        reattaches.increment();
+    }
+
+    @Override
+    public void onDeviceRemoved() {
+        removals.increment();
+    }
+
+    /**
+     * @param dispatcher EventDispatcher whose queue depth is reported
+     */
+    public void setEventDispatcher(EventDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @param lane LaneHost.Lane whose pending frames are reported
+     */
+    public void setLane(LaneHost.Lane lane) {
+        this.lane = lane;
+    }
+
+    public String getLogicalName() {
+        return logicalName;
+    }
+
+    @Override
+    public long getLabelCount() {
+        return labels.sum();
+    }
+
+    @Override
+    public double getLabelsPerSecond() {
+        return labelRate.get(labels.sum());
+    }
+
+    @Override
+    public long getWeightEventCount() {
+        return weights.sum();
+    }
+
+    @Override
+    public double getWeightEventsPerSecond() {
+        return weightRate.get(weights.sum());
+    }
+
+    @Override
+    public long getReadToEventCount() {
+        return readToEvent.getCount();
+    }
+
+    @Override
+    public double getReadToEventMeanMicros() {
+        return readToEvent.getMean() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getReadToEventP50Micros() {
+        return readToEvent.getPercentile(50.0) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getReadToEventP99Micros() {
+        return readToEvent.getPercentile(99.0) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getReadToEventP999Micros() {
+        return readToEvent.getPercentile(99.9) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getReadToEventMaxMicros() {
+        return readToEvent.getMax() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public String getReadToEventSummary() {
+        return readToEvent.summary();
+    }
+
+    @Override
+    public int getEventQueueDepth() {
+        EventDispatcher d = dispatcher;
+        return d == null ? 0 : d.getQueueDepth();
+    }
+
+    @Override
+    public int getPendingFrames() {
+        LaneHost.Lane l = lane;
+        return l == null ? 0 : l.getPendingFrames();
+    }
+
+    @Override
+    public long getReattachCount() {
+        return reattaches.sum();
+    }
+
+    @Override
+    public long getRemovalCount() {
+        return removals.sum();
+    }
+
+    @Override
+    public String getClaimDurationSummary() {
+        return claimDuration.summary();
+    }
+
+    @Override
+    public String getEnableDurationSummary() {
+        return enableDuration.summary();
+    }
+
+    @Override
+    public void resetMetrics() {
+        labels.reset();
+        weights.reset();
+        labelRate.reset();
+        weightRate.reset();
+        reattaches.reset();
+        removals.reset();
+        readToEvent.reset();
+        claimDuration.reset();
+        enableDuration.reset();
+    }
+}
@@ -0,0 +1,47 @@
+package com.jpos.example;
+
+import com.dls.jpos.service.ScannerScaleMBean;
+
+/**
+ * LaneMetricsMBean interface adds hot-path metrics to the device
+ * attributes of ScannerScaleMBean. Latencies are in microseconds and rates
+ * in events per second.
+ */
+public interface LaneMetricsMBean extends ScannerScaleMBean {
+
+    long getLabelCount();
+
+    double getLabelsPerSecond();
+
+    long getWeightEventCount();
+
+    double getWeightEventsPerSecond();
+
+    long getReadToEventCount();
+
+    double getReadToEventMeanMicros();
+
+    double getReadToEventP50Micros();
+
+    double getReadToEventP99Micros();
+
+    double getReadToEventP999Micros();
+
+    double getReadToEventMaxMicros();
+
+    String getReadToEventSummary();
+
+    int getEventQueueDepth();
+
+    int getPendingFrames();
+
+    long getReattachCount();
+
+    long getRemovalCount();
+
+    String getClaimDurationSummary();
+
+    String getEnableDurationSummary();
+
+    void resetMetrics();
+}
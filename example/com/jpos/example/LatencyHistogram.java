@@ -0,0 +1,141 @@
+package com.jpos.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram class records nanosecond latencies into log-linear
+ * buckets, in the spirit of HdrHistogram, so percentiles can be reported
+ * without keeping every sample.
+ *
+ * Each power of two is split into 32 linear sub-buckets, which keeps the
+ * reported value within roughly 3% of the recorded value. Recording is a
+ * single atomic increment and never allocates, so it is safe to call from
+ * event threads.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = 64 - SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts =
+            new AtomicLongArray(BUCKET_COUNT * SUB_BUCKET_COUNT);
+    private final AtomicLongArray summary = new AtomicLongArray(3);
+
+    private static final int TOTAL = 0;
+    private static final int SUM = 1;
+    private static final int MAX = 2;
+
+    /**
+     * Records a single latency sample.
+     *
+     * @param nanos long containing the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        summary.incrementAndGet(TOTAL);
+        summary.addAndGet(SUM, nanos);
+        long max = summary.get(MAX);
+        while (nanos > max && !summary.compareAndSet(MAX, max, nanos)) {
+            max = summary.get(MAX);
+        }
+    }
+
+    /**
+     * Clears all recorded samples.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        for (int i = 0; i < summary.length(); i++) {
+            summary.set(i, 0);
+        }
+    }
+
+    /**
+     * @return long containing the number of recorded samples
+     */
+    public long getCount() {
+        return summary.get(TOTAL);
+    }
+
+    /**
+     * @return long containing the largest recorded sample in nanoseconds
+     */
+    public long getMax() {
+        return summary.get(MAX);
+    }
+
+    /**
+     * @return double containing the mean of all samples in nanoseconds
+     */
+    public double getMean() {
+        long total = summary.get(TOTAL);
+        return total == 0 ? 0 : (double) summary.get(SUM) / total;
+    }
+
+    /**
+     * Returns the value at the given percentile.
+     *
+     * @param percentile double between 0 and 100
+     * @return long containing the upper bound of the matching bucket in
+     * nanoseconds, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = summary.get(TOTAL);
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Convenience method that formats the usual percentile set in
+     * microseconds for console output.
+     *
+     * @return String containing the formatted summary
+     */
+    public String summary() {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus "
+                + "p99=%.1fus p99.9=%.1fus max=%.1fus",
+                getCount(), getMean() / 1000.0,
+                getPercentile(50) / 1000.0, getPercentile(90) / 1000.0,
+                getPercentile(99) / 1000.0, getPercentile(99.9) / 1000.0,
+                getMax() / 1000.0);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int bucket = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int sub = (int) (value >>> (bucket - 1)) & (SUB_BUCKET_COUNT - 1);
+        int index = bucket * SUB_BUCKET_COUNT + sub;
+        return Math.min(index, BUCKET_COUNT * SUB_BUCKET_COUNT - 1);
+    }
+
+    private static long upperBoundOf(int index) {
+        int bucket = index / SUB_BUCKET_COUNT;
+        int sub = index % SUB_BUCKET_COUNT;
+        if (bucket == 0) {
+            return sub;
+        }
+        long base = ((long) sub | SUB_BUCKET_COUNT) << (bucket - 1);
+        return base + (1L << (bucket - 1)) - 1;
+    }
+}
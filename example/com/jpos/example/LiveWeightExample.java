@@ -25,6 +25,8 @@ public class LiveWeightExample implements StatusUpdateListener {
     private boolean bAsyncMode = false;
     private boolean bUseFiveDigits = false;
     private String sUnits = "";
+    //built once the units are known, not on every weight event
+    private DecimalFormat formatter = new DecimalFormat("Stable Weight: 0.00");
 
 
     public LiveWeightExample() {
@@ -176,15 +178,10 @@ public class LiveWeightExample implements StatusUpdateListener {
                             + je);
                     break;
                 }
-                //verify that asynchronous mode is not set since it is not
-                //currently supported
+                //only print live weight in synchronous mode, asynchronous
+                //readWeight results arrive as DataEvents (see AsyncScaleReader)
                 if (!bAsyncMode) {
                     //format weight data from raw integer
-                    DecimalFormat formatter = new DecimalFormat(
-                            "Stable Weight: 0.00 " + sUnits);
-                    if (bUseFiveDigits) {
-                        formatter.setMinimumFractionDigits(3);
-                    }
                     System.out.println(formatter.format((float) weight / 1000));
                 }
                 break;
@@ -221,6 +218,10 @@ public class LiveWeightExample implements StatusUpdateListener {
                     scale.getMaximumWeight()).length() == 5 ? true : false);
             //scale units
             sUnits = getUnitName(scale.getWeightUnit());
+            formatter = new DecimalFormat("Stable Weight: 0.00 " + sUnits);
+            if (bUseFiveDigits) {
+                formatter.setMinimumFractionDigits(3);
+            }
         } catch (JposException je) {
             System.err.println("ERROR: could not get scale info, " + je);
         }
@@ -0,0 +1,264 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import com.dls.jpos.transport.DataReceivedListener;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LoopbackPortalServer class is a stand-in for the DL-Portal-Scanner tunnel
+ * on 127.0.0.1, used to exercise NioTcpipPort without a portal.
+ *
+ * It accepts one connection, sends raw bytes or framed messages, and
+ * collects the messages the port sends back. Running it as a program replays
+ * a burst of item, image and connection-check messages, split at random
+ * byte boundaries, and checks that every one arrives intact and that the
+ * latest image is held by the port's ImageCapturePipeline.
+ */
+public class LoopbackPortalServer {
+
+    private final ServerSocket server;
+    private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+    private volatile Socket client;
+    private volatile OutputStream out;
+
+    /**
+     * Binds to an ephemeral loopback port.
+     *
+     * @throws IOException if the socket cannot be bound
+     */
+    public LoopbackPortalServer() throws IOException {
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Waits for the port to connect, then reads its messages on a daemon
+     * thread.
+     *
+     * @param timeoutMillis int indicating how long to wait for the client
+     * @throws IOException if no client connects in time
+     */
+    public void accept(int timeoutMillis) throws IOException {
+        server.setSoTimeout(timeoutMillis);
+        client = server.accept();
+        client.setTcpNoDelay(true);
+        out = client.getOutputStream();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "LoopbackPortalServer-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends bytes exactly as given.
+     *
+     * @param data byte array to send
+     * @param offset int indicating the first byte
+     * @param length int indicating the number of bytes
+     * @throws IOException if the write fails
+     */
+    public void sendRaw(byte[] data, int offset, int length) throws IOException {
+        out.write(data, offset, length);
+        out.flush();
+    }
+
+    /**
+     * Sends one framed message.
+     *
+     * @param type byte containing the message type
+     * @param payload byte array containing the payload
+     * @throws IOException if the write fails
+     */
+    public void send(byte type, byte[] payload) throws IOException {
+        byte[] message = frame(type, payload);
+        sendRaw(message, 0, message.length);
+    }
+
+    /**
+     * @param timeoutMillis long indicating how long to wait
+     * @return byte array containing the next message received from the port
+     * (type, length and payload), or null on timeout
+     */
+    public byte[] takeReceived(long timeoutMillis) throws InterruptedException {
+        return received.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        try {
+            if (client != null) {
+                client.close();
+            }
+            server.close();
+        } catch (IOException ioe) {
+            //already closed
+        }
+    }
+
+    /**
+     * @param type byte containing the message type
+     * @param payload byte array containing the payload
+     * @return byte array containing the message in portal framing
+     */
+    public static byte[] frame(byte type, byte[] payload) {
+        byte[] message = new byte[5 + payload.length];
+        message[0] = type;
+        message[1] = (byte) (payload.length >>> 24);
+        message[2] = (byte) (payload.length >>> 16);
+        message[3] = (byte) (payload.length >>> 8);
+        message[4] = (byte) payload.length;
+        System.arraycopy(payload, 0, message, 5, payload.length);
+        return message;
+    }
+
+    private void readLoop() {
+        try {
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            while (true) {
+                byte type = in.readByte();
+                int length = in.readInt();
+                byte[] message = new byte[5 + length];
+                message[0] = type;
+                message[1] = (byte) (length >>> 24);
+                message[2] = (byte) (length >>> 16);
+                message[3] = (byte) (length >>> 8);
+                message[4] = (byte) length;
+                in.readFully(message, 5, length);
+                received.add(message);
+            }
+        } catch (IOException ioe) {
+            //client closed
+        }
+    }
+
+    /**
+     * Usage: LoopbackPortalServer [messages]
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        LoopbackPortalServer server = new LoopbackPortalServer();
+        DLSDeviceInfo info = new DLSDeviceInfo();
+        info.setIPAddress("127.0.0.1");
+        info.setIPPort(Integer.toString(server.getPort()));
+        NioTcpipPort port = new NioTcpipPort(info);
+
+        final AtomicInteger frames = new AtomicInteger();
+        final AtomicInteger corrupt = new AtomicInteger();
+        final LatencyHistogram latency = new LatencyHistogram();
+        port.addDataReceivedListener(new DataReceivedListener() {
+            @Override
+            public void onDataReceived(byte[] data, int length) {
+                int payload = ((data[1] & 0xFF) << 24) | ((data[2] & 0xFF) << 16)
+                        | ((data[3] & 0xFF) << 8) | (data[4] & 0xFF);
+                if (payload != length - 5) {
+                    corrupt.incrementAndGet();
+                } else if (data[0] == 'T') {
+                    //timed items carry their send time
+                    String sent = new String(data, 5, length - 5, StandardCharsets.ISO_8859_1);
+                    latency.record(System.nanoTime() - Long.parseLong(sent.substring(0, sent.indexOf(','))));
+                }
+                frames.incrementAndGet();
+            }
+        });
+
+        Thread connector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                port.openPort();
+            }
+        });
+        connector.start();
+        server.accept(5000);
+        connector.join();
+
+        //write the burst in random slices to exercise reassembly
+        Random random = new Random(1);
+        byte[] image = new byte[200000];
+        random.nextBytes(image);
+        byte[] imagePayload = new byte[6 + image.length];
+        System.arraycopy(image, 0, imagePayload, 6, image.length);
+        int images = 0;
+        int checks = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            byte[] message;
+            if (i % 1000 == 999) {
+                imagePayload[3] = (byte) (images++);
+                message = frame(NioTcpipPort.MSG_IMAGE, imagePayload);
+            } else if (i % 500 == 250) {
+                checks++;
+                message = frame(NioTcpipPort.MSG_CHECK_CONNECTION, new byte[0]);
+            } else {
+                String item = System.nanoTime() + ",ITEM" + i + ",012345678905";
+                message = frame((byte) 'I', item.getBytes(StandardCharsets.ISO_8859_1));
+            }
+            int offset = 0;
+            while (offset < message.length) {
+                int slice = Math.min(message.length - offset, 1 + random.nextInt(64));
+                server.sendRaw(message, offset, slice);
+                offset += slice;
+            }
+        }
+        long end = System.currentTimeMillis() + 10000;
+        while (frames.get() < messages && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        long elapsed = System.nanoTime() - start;
+        int delivered = frames.get();
+
+        //one timed item at a time for the per-message latency
+        for (int i = 0; i < 2000 && delivered == messages; i++) {
+            int expected = frames.get() + 1;
+            String item = System.nanoTime() + ",TIMED" + i;
+            server.send((byte) 'T', item.getBytes(StandardCharsets.ISO_8859_1));
+            while (frames.get() < expected) {
+                Thread.onSpinWait();
+            }
+        }
+
+        int replies = 0;
+        byte[] reply;
+        while ((reply = server.takeReceived(200)) != null) {
+            if (reply[0] == 'y' && reply.length == 6 && reply[5] == '1') {
+                replies++;
+            }
+        }
+        System.out.println("Messages delivered: " + delivered + " of " + messages
+                + " (" + corrupt.get() + " corrupt, " + images + " images) in "
+                + (elapsed / 1000000) + " ms");
+        System.out.println("Check replies:      " + replies + " of " + checks);
+
+        //the latest image must be held in memory byte for byte
+        ImageCapturePipeline pipeline = port.getImagePipeline();
+        ByteBuffer latest = ByteBuffer.allocate(image.length);
+        boolean imageIntact = images == 0 || (pipeline.copyImage(0, latest) == image.length
+                && Arrays.equals(latest.array(), image));
+        System.out.println("Images held:        " + pipeline.getImageCount() + ", latest id "
+                + pipeline.getImageId(0) + (imageIntact ? " intact" : " CORRUPT"));
+        System.out.println("Send->Deliver:      " + latency.summary());
+        port.closePort();
+        server.close();
+        System.exit(delivered == messages && corrupt.get() == 0 && replies == checks && imageIntact ? 0 : 1);
+    }
+}
@@ -0,0 +1,373 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import com.dls.jpos.common.DLSProperties;
+import com.dls.jpos.transport.DLSPort;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * NioTcpipPort class is a non-blocking replacement for DLSTCPIPPort, used
+ * to talk to the DL-Portal-Scanner at the ipAddress/ipPort of its jpos.xml
+ * entry.
+ *
+ * Every portal message is a type character, a 4-byte big-endian payload
+ * length and the payload. The socket is read by an IoReactor into a direct
+ * buffer and messages are cut out as soon as they are complete, however the
+ * bytes were split across reads, so a burst of item, label and image
+ * messages is delivered without waiting on any one read. Outgoing messages
+ * are framed into a direct buffer and written by the reactor, so several
+ * commands sent between two reactor turns leave in one write.
+ *
+ * Frames reach DataReceivedListeners exactly as DLSTCPIPPort delivers them,
+ * header included, and connection checks ('X') are answered with "y1".
+ * Image ('P') messages are streamed through an ImageCapturePipeline piece
+ * by piece as they are read, so the read buffer never has to hold a whole
+ * image, and are then replaced by a message carrying the file name, as
+ * DLSTCPIPPort does.
+ */
+public class NioTcpipPort extends DLSPort implements IoReactor.Handler {
+
+    public static final int MAX_MESSAGE_LENGTH = 1312788;
+    public static final byte MSG_CHECK_CONNECTION = 'X';
+    public static final byte MSG_IMAGE = 'P';
+    protected static final int HEADER_LENGTH = 5;
+    private static final int IMAGE_HEADER_LENGTH = 6;
+    private static final int INITIAL_BUFFER = 65536;
+    private static final byte[] CHECK_CONNECTION_RESPONSE = "y1".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final IoReactor reactor;
+    private final DeviceThreads ownThreads;
+    private final Object writeLock = new Object();
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER);
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER);
+    private SocketChannel channel;
+    private boolean writePending = false;
+    private ImageCapturePipeline images;
+    private ImageCapturePipeline.Capture capture;
+    private final byte[] imageHeader = new byte[IMAGE_HEADER_LENGTH];
+    private boolean inImage = false;
+    private int imageRemaining = 0;
+
+    /**
+     * Creates a port with its own reactor thread.
+     *
+     * @param info DLSDeviceInfo containing ipAddress and ipPort
+     * @throws IOException if the reactor cannot be started
+     */
+    public NioTcpipPort(DLSDeviceInfo info) throws IOException {
+        super(info);
+        ownThreads = new DeviceThreads("NioTcpipPort-" + info.getIPAddress());
+        reactor = new IoReactor(ownThreads);
+        images = ImageCapturePipeline.fromDeviceInfo(info);
+    }
+
+    /**
+     * Creates a port served by a shared reactor, e.g.
+     * {@link LaneHost#getReactor()}.
+     *
+     * @param info DLSDeviceInfo containing ipAddress and ipPort
+     * @param reactor IoReactor driving the socket
+     */
+    public NioTcpipPort(DLSDeviceInfo info, IoReactor reactor) {
+        super(info);
+        this.ownThreads = null;
+        this.reactor = reactor;
+        images = ImageCapturePipeline.fromDeviceInfo(info);
+    }
+
+    @Override
+    public synchronized boolean openPort() {
+        if (bOpen) {
+            return true;
+        }
+        try {
+            int timeout = DLSProperties.getInstance().getCommandTimeout();
+            InetSocketAddress address = new InetSocketAddress(m_info.getIPAddress(),
+                    Integer.parseInt(m_info.getIPPort().trim()));
+            channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(address, timeout);
+            readBuffer.clear();
+            capture = null;
+            synchronized (writeLock) {
+                writeBuffer.clear();
+                writePending = false;
+            }
+            reactor.register(channel, SelectionKey.OP_READ, this);
+            bOpen = true;
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("ERROR: Failed to connect to " + m_info.getIPAddress() + ":"
+                    + m_info.getIPPort() + ", " + e);
+            closeChannel();
+        }
+        return bOpen;
+    }
+
+    @Override
+    public synchronized boolean closePort() {
+        bOpen = false;
+        closeChannel();
+        if (ownThreads != null) {
+            reactor.close();
+            ownThreads.shutdown(1000);
+        }
+        return true;
+    }
+
+    @Override
+    public void changeBaudRate(int baud) {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    /**
+     * Queues a message. The first byte is the message type and the rest is
+     * the payload, as for DLSTCPIPPort.
+     *
+     * @param data byte array containing the type and payload
+     * @param length int indicating the number of bytes to send
+     * @return int indicating the number of bytes queued, 0 if the port is
+     * closed
+     */
+    @Override
+    public int sendData(byte[] data, int length) {
+        if (!bOpen || length < 1) {
+            return 0;
+        }
+        synchronized (writeLock) {
+            int needed = HEADER_LENGTH + length - 1;
+            if (writeBuffer.remaining() < needed) {
+                writeBuffer = grow(writeBuffer, writeBuffer.position() + needed);
+            }
+            writeBuffer.put(data[0]);
+            writeBuffer.putInt(length - 1);
+            writeBuffer.put(data, 1, length - 1);
+            if (!writePending) {
+                writePending = true;
+                reactor.setInterest(channel, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush(key);
+        }
+    }
+
+    @Override
+    public void failed(SelectionKey key, IOException e) {
+        if (bOpen) {
+            System.err.println("ERROR: Connection to " + m_info.getIPAddress() + " lost, " + e);
+        }
+        bOpen = false;
+        if (capture != null) {
+            capture.abort();
+            capture = null;
+        }
+        inImage = false;
+        imageRemaining = 0;
+        closeChannel();
+    }
+
+    private void read() throws IOException {
+        int count = channel.read(readBuffer);
+        if (count < 0) {
+            throw new IOException("EOF on read.");
+        }
+        readBuffer.flip();
+        if (inImage) {
+            streamImage();
+        }
+        while (!inImage && readBuffer.remaining() >= HEADER_LENGTH) {
+            int start = readBuffer.position();
+            byte type = readBuffer.get(start);
+            int length = readBuffer.getInt(start + 1);
+            if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+                //out of bounds, drop the header and look for the next message
+                readBuffer.position(start + HEADER_LENGTH);
+                continue;
+            }
+            if (type == MSG_IMAGE && length >= IMAGE_HEADER_LENGTH) {
+                if (readBuffer.remaining() < HEADER_LENGTH + IMAGE_HEADER_LENGTH) {
+                    break;
+                }
+                beginImage(start, length);
+                streamImage();
+                continue;
+            }
+            if (readBuffer.remaining() < HEADER_LENGTH + length) {
+                if (readBuffer.capacity() < HEADER_LENGTH + length) {
+                    readBuffer.compact();
+                    readBuffer = grow(readBuffer, HEADER_LENGTH + length);
+                    readBuffer.flip();
+                }
+                break;
+            }
+            readBuffer.position(start + HEADER_LENGTH);
+            ByteBuffer payload = readBuffer.slice();
+            payload.limit(length);
+            deliver(type, payload);
+            readBuffer.position(start + HEADER_LENGTH + length);
+        }
+        readBuffer.compact();
+    }
+
+    /**
+     * Handles one complete message other than an image.
+     *
+     * @param type byte containing the message type
+     * @param payload ByteBuffer positioned on the payload, valid only for
+     * the duration of the call
+     */
+    protected void deliver(byte type, ByteBuffer payload) throws IOException {
+        if (type == MSG_CHECK_CONNECTION) {
+            sendData(CHECK_CONNECTION_RESPONSE, CHECK_CONNECTION_RESPONSE.length);
+        }
+        byte[] frame = new byte[HEADER_LENGTH + payload.remaining()];
+        frame[0] = type;
+        putInt(frame, 1, payload.remaining());
+        payload.get(frame, HEADER_LENGTH, payload.remaining());
+        fireDataReceivedEvent(frame, frame.length);
+    }
+
+    /**
+     * Consumes an image message header (image id and two device bytes) and
+     * starts streaming the image into the pipeline.
+     */
+    private void beginImage(int start, int length) {
+        readBuffer.position(start + HEADER_LENGTH);
+        readBuffer.get(imageHeader);
+        imageRemaining = length - IMAGE_HEADER_LENGTH;
+        inImage = true;
+        try {
+            capture = images.begin(imageId(), imageRemaining);
+        } catch (IOException ioe) {
+            //only this image is lost, its bytes are skipped
+            System.err.println("ERROR: Image " + imageId() + " cannot be saved, " + ioe);
+        }
+    }
+
+    private int imageId() {
+        return ((imageHeader[0] & 0xFF) << 24) | ((imageHeader[1] & 0xFF) << 16)
+                | ((imageHeader[2] & 0xFF) << 8) | (imageHeader[3] & 0xFF);
+    }
+
+    /**
+     * Passes whatever part of the current image has been read straight from
+     * the read buffer to the pipeline. Once the image is complete, the file
+     * name message is delivered in the layout DLSTCPIPPort produces: image
+     * id (4 bytes), the two device bytes, then the file name. An image that
+     * cannot be saved is dropped and the rest of it skipped, without
+     * closing the connection.
+     */
+    private void streamImage() {
+        int piece = Math.min(readBuffer.remaining(), imageRemaining);
+        if (piece > 0) {
+            int limit = readBuffer.limit();
+            int end = readBuffer.position() + piece;
+            readBuffer.limit(end);
+            try {
+                if (capture != null) {
+                    capture.write(readBuffer);
+                }
+            } catch (IOException ioe) {
+                System.err.println("ERROR: Image " + imageId() + " cannot be saved, " + ioe);
+                capture.abort();
+                capture = null;
+            } finally {
+                readBuffer.limit(limit);
+                readBuffer.position(end);
+            }
+            imageRemaining -= piece;
+        }
+        if (imageRemaining > 0) {
+            return;
+        }
+        inImage = false;
+        if (capture == null) {
+            return;
+        }
+        String name;
+        try {
+            name = capture.finish();
+        } catch (IOException ioe) {
+            System.err.println("ERROR: Image " + imageId() + " cannot be saved, " + ioe);
+            capture.abort();
+            return;
+        } finally {
+            capture = null;
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] frame = new byte[HEADER_LENGTH + IMAGE_HEADER_LENGTH + nameBytes.length];
+        frame[0] = MSG_IMAGE;
+        putInt(frame, 1, IMAGE_HEADER_LENGTH + nameBytes.length);
+        System.arraycopy(imageHeader, 0, frame, HEADER_LENGTH, IMAGE_HEADER_LENGTH);
+        System.arraycopy(nameBytes, 0, frame, HEADER_LENGTH + IMAGE_HEADER_LENGTH, nameBytes.length);
+        fireDataReceivedEvent(frame, frame.length);
+    }
+
+    public ImageCapturePipeline getImagePipeline() {
+        return images;
+    }
+
+    /**
+     * Replaces the image pipeline, e.g. to keep more images in memory or
+     * none on disk. Call before the port is opened.
+     *
+     * @param images ImageCapturePipeline receiving images
+     */
+    public void setImagePipeline(ImageCapturePipeline images) {
+        this.images = images;
+    }
+
+    private void flush(SelectionKey key) throws IOException {
+        synchronized (writeLock) {
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            writeBuffer.compact();
+            if (writeBuffer.position() == 0) {
+                writePending = false;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private void closeChannel() {
+        //closing the channel also cancels its key
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                //already closed
+            }
+        }
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minimum) {
+        int size = buffer.capacity();
+        while (size < minimum) {
+            size *= 2;
+        }
+        ByteBuffer bigger = ByteBuffer.allocateDirect(size);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,445 @@
+package com.jpos.example;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import jpos.JposConst;
+import jpos.JposException;
+
+/**
+ * OffHeapTagRegistry class keeps the running inventory of every tag seen
+ * during continuous reads: first-seen and last-seen time and read count per
+ * tag ID.
+ *
+ * The table lives in one direct ByteBuffer, open addressing with linear
+ * probing over fixed 64-byte slots, so a stock-take of tens of thousands of
+ * EPCs costs no heap objects per tag and nothing for the collector to
+ * trace. IDs of up to 32 bytes (256 bits) are stored raw. The table doubles
+ * when it is 70% full; evicted tags leave tombstones that are dropped on
+ * the next resize.
+ *
+ * Feed it from a TagBatcher listener with {@link #record(TagBatch)}. It is
+ * read through the Java API, through {@link #snapshot()} for a consistent
+ * walk that does not block recording, or with the DIO_TAG_REGISTRY_*
+ * commands through {@link #directIO(int, int[], Object)}.
+ */
+public class OffHeapTagRegistry {
+
+    /** directIO command returning the number of tags in data[0]. */
+    public static final int DIO_TAG_REGISTRY_COUNT = 2482;
+    /**
+     * directIO command looking up the tag ID given as a byte array object.
+     * data[0] returns the read count (0 if unknown), data[1] and data[2]
+     * the seconds since it was first and last seen.
+     */
+    public static final int DIO_TAG_REGISTRY_GET = 2483;
+    /**
+     * directIO command evicting tags not seen for data[0] seconds. data[0]
+     * returns the number evicted.
+     */
+    public static final int DIO_TAG_REGISTRY_EVICT = 2484;
+    /**
+     * directIO command writing "id,count,firstSeen,lastSeen" lines into a
+     * ByteArrayOutputStream object. data[0] returns the number of tags.
+     */
+    public static final int DIO_TAG_REGISTRY_DUMP = 2485;
+
+    public static final int MAX_ID_LENGTH = 32;
+    private static final int SLOT_SIZE = 64;
+    private static final int STATE = 0;
+    private static final int ID_LENGTH = 1;
+    private static final int HASH = 4;
+    private static final int FIRST_SEEN = 8;
+    private static final int LAST_SEEN = 16;
+    private static final int COUNT = 24;
+    private static final int ID = 32;
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+    private static final double MAX_LOAD = 0.7;
+
+    private ByteBuffer table;
+    private int capacity;
+    private int size = 0;
+    private int tombstones = 0;
+
+    /**
+     * A copy of the registry taken at one point in time, walked with a
+     * cursor like the tags of an RFIDScanner.
+     */
+    public static class Snapshot {
+
+        private final ByteBuffer slots;
+        private final int count;
+        private int position = -1;
+
+        private Snapshot(ByteBuffer slots, int count) {
+            this.slots = slots;
+            this.count = count;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Moves to the next tag.
+         *
+         * @return boolean indicating whether there was one
+         */
+        public boolean next() {
+            if (position + 1 >= count) {
+                return false;
+            }
+            position++;
+            return true;
+        }
+
+        public byte[] getId() {
+            byte[] id = new byte[slots.get(position * SLOT_SIZE + ID_LENGTH)];
+            for (int i = 0; i < id.length; i++) {
+                id[i] = slots.get(position * SLOT_SIZE + ID + i);
+            }
+            return id;
+        }
+
+        public String getIdHex() {
+            return hex(slots, position * SLOT_SIZE);
+        }
+
+        public long getFirstSeen() {
+            return slots.getLong(position * SLOT_SIZE + FIRST_SEEN);
+        }
+
+        public long getLastSeen() {
+            return slots.getLong(position * SLOT_SIZE + LAST_SEEN);
+        }
+
+        public long getReadCount() {
+            return slots.getLong(position * SLOT_SIZE + COUNT);
+        }
+    }
+
+    /**
+     * @param expectedTags int indicating how many tags to size the table for
+     */
+    public OffHeapTagRegistry(int expectedTags) {
+        capacity = Integer.highestOneBit(Math.max(16, (int) (expectedTags / MAX_LOAD)) - 1) << 1;
+        table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+    }
+
+    /**
+     * Records one or more reads of a tag.
+     *
+     * @param id byte array containing the tag ID
+     * @param reads long indicating the number of reads
+     * @param firstSeen long containing the time of the first read, in
+     * milliseconds
+     * @param lastSeen long containing the time of the last read
+     * @return boolean indicating whether the tag was recorded; IDs longer
+     * than MAX_ID_LENGTH are not
+     */
+    public synchronized boolean record(byte[] id, long reads, long firstSeen, long lastSeen) {
+        return record(id, 0, id.length, reads, firstSeen, lastSeen);
+    }
+
+    /**
+     * Records every tag of a batch, reading the IDs straight from its
+     * packed arrays.
+     *
+     * @param batch TagBatch delivered by a TagBatcher
+     */
+    public synchronized void record(TagBatch batch) {
+        byte[] ids = batch.getIdBytes();
+        int[] offsets = batch.getIdOffsets();
+        for (int i = 0; i < batch.getCount(); i++) {
+            record(ids, offsets[i], offsets[i + 1] - offsets[i], batch.getReadCount(i),
+                    batch.getFirstSeen(i), batch.getLastSeen(i));
+        }
+    }
+
+    /**
+     * @param id byte array containing the tag ID
+     * @return long containing the read count, 0 if the tag is unknown
+     */
+    public synchronized long getReadCount(byte[] id) {
+        int slot = find(id, 0, id.length, hash(id, 0, id.length));
+        return slot < 0 ? 0 : table.getLong(slot + COUNT);
+    }
+
+    /**
+     * @param id byte array containing the tag ID
+     * @return long containing the time the tag was first seen, or -1 if it
+     * is unknown
+     */
+    public synchronized long getFirstSeen(byte[] id) {
+        int slot = find(id, 0, id.length, hash(id, 0, id.length));
+        return slot < 0 ? -1 : table.getLong(slot + FIRST_SEEN);
+    }
+
+    /**
+     * @param id byte array containing the tag ID
+     * @return long containing the time the tag was last seen, or -1 if it
+     * is unknown
+     */
+    public synchronized long getLastSeen(byte[] id) {
+        int slot = find(id, 0, id.length, hash(id, 0, id.length));
+        return slot < 0 ? -1 : table.getLong(slot + LAST_SEEN);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes tags not seen since the given time.
+     *
+     * @param cutoffMillis long containing the oldest last-seen time to keep
+     * @return int containing the number of tags removed
+     */
+    public synchronized int evictOlderThan(long cutoffMillis) {
+        int evicted = 0;
+        for (int slot = 0; slot < capacity * SLOT_SIZE; slot += SLOT_SIZE) {
+            if (table.get(slot + STATE) == USED && table.getLong(slot + LAST_SEEN) < cutoffMillis) {
+                table.put(slot + STATE, DELETED);
+                evicted++;
+            }
+        }
+        size -= evicted;
+        tombstones += evicted;
+        return evicted;
+    }
+
+    public synchronized void clear() {
+        for (int slot = 0; slot < capacity * SLOT_SIZE; slot += SLOT_SIZE) {
+            table.put(slot + STATE, EMPTY);
+        }
+        size = 0;
+        tombstones = 0;
+    }
+
+    /**
+     * Copies the tags into a packed direct buffer. Recording continues while
+     * the snapshot is walked.
+     *
+     * @return Snapshot of the registry
+     */
+    public synchronized Snapshot snapshot() {
+        ByteBuffer slots = ByteBuffer.allocateDirect(Math.max(1, size) * SLOT_SIZE);
+        ByteBuffer source = table.duplicate();
+        for (int slot = 0; slot < capacity * SLOT_SIZE; slot += SLOT_SIZE) {
+            if (table.get(slot + STATE) == USED) {
+                source.limit(slot + SLOT_SIZE).position(slot);
+                slots.put(source);
+            }
+        }
+        return new Snapshot(slots, size);
+    }
+
+    /**
+     * Serves the registry through the JavaPOS directIO convention, so
+     * applications can route DIO_TAG_REGISTRY_* commands here from their
+     * directIO wrapper.
+     *
+     * @param command int containing a DIO_TAG_REGISTRY_* command
+     * @param data int array for input and output values
+     * @param object byte array tag ID for DIO_TAG_REGISTRY_GET, or
+     * ByteArrayOutputStream for DIO_TAG_REGISTRY_DUMP
+     * @throws JposException if the command or its arguments are not valid
+     */
+    public void directIO(int command, int[] data, Object object) throws JposException {
+        long now = System.currentTimeMillis();
+        switch (command) {
+            case DIO_TAG_REGISTRY_COUNT:
+                data[0] = size();
+                break;
+            case DIO_TAG_REGISTRY_GET:
+                if (!(object instanceof byte[])) {
+                    throw new JposException(JposConst.JPOS_E_ILLEGAL, "Object must be the tag ID.");
+                }
+                synchronized (this) {
+                    byte[] id = (byte[]) object;
+                    int slot = find(id, 0, id.length, hash(id, 0, id.length));
+                    data[0] = slot < 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, table.getLong(slot + COUNT));
+                    if (data.length > 2) {
+                        data[1] = slot < 0 ? -1 : (int) ((now - table.getLong(slot + FIRST_SEEN)) / 1000);
+                        data[2] = slot < 0 ? -1 : (int) ((now - table.getLong(slot + LAST_SEEN)) / 1000);
+                    }
+                }
+                break;
+            case DIO_TAG_REGISTRY_EVICT:
+                data[0] = evictOlderThan(now - data[0] * 1000L);
+                break;
+            case DIO_TAG_REGISTRY_DUMP:
+                if (!(object instanceof ByteArrayOutputStream)) {
+                    throw new JposException(JposConst.JPOS_E_ILLEGAL, "Object must be a ByteArrayOutputStream.");
+                }
+                Snapshot snapshot = snapshot();
+                StringBuilder line = new StringBuilder(128);
+                ByteArrayOutputStream out = (ByteArrayOutputStream) object;
+                while (snapshot.next()) {
+                    line.setLength(0);
+                    line.append(snapshot.getIdHex()).append(',').append(snapshot.getReadCount())
+                            .append(',').append(snapshot.getFirstSeen())
+                            .append(',').append(snapshot.getLastSeen()).append('\n');
+                    byte[] bytes = line.toString().getBytes(StandardCharsets.ISO_8859_1);
+                    out.write(bytes, 0, bytes.length);
+                }
+                data[0] = snapshot.getCount();
+                break;
+            default:
+                throw new JposException(JposConst.JPOS_E_ILLEGAL, "Unknown tag registry command " + command);
+        }
+    }
+
+    private boolean record(byte[] id, int offset, int length, long reads, long firstSeen, long lastSeen) {
+        if (length == 0 || length > MAX_ID_LENGTH) {
+            return false;
+        }
+        int hash = hash(id, offset, length);
+        int slot = find(id, offset, length, hash);
+        if (slot >= 0) {
+            table.putLong(slot + COUNT, table.getLong(slot + COUNT) + reads);
+            table.putLong(slot + FIRST_SEEN, Math.min(firstSeen, table.getLong(slot + FIRST_SEEN)));
+            table.putLong(slot + LAST_SEEN, Math.max(lastSeen, table.getLong(slot + LAST_SEEN)));
+            return true;
+        }
+        if (size + tombstones + 1 > capacity * MAX_LOAD) {
+            resize(size + 1 > capacity * MAX_LOAD / 2 ? capacity * 2 : capacity);
+        }
+        slot = insertionSlot(hash);
+        if (table.get(slot + STATE) == DELETED) {
+            tombstones--;
+        }
+        table.put(slot + STATE, USED);
+        table.put(slot + ID_LENGTH, (byte) length);
+        table.putInt(slot + HASH, hash);
+        table.putLong(slot + FIRST_SEEN, firstSeen);
+        table.putLong(slot + LAST_SEEN, lastSeen);
+        table.putLong(slot + COUNT, reads);
+        for (int i = 0; i < length; i++) {
+            table.put(slot + ID + i, id[offset + i]);
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * @return int containing the byte offset of the tag's slot, or -1
+     */
+    private int find(byte[] id, int offset, int length, int hash) {
+        int mask = capacity - 1;
+        for (int probe = 0, index = hash & mask; probe < capacity; probe++, index = (index + 1) & mask) {
+            int slot = index * SLOT_SIZE;
+            byte state = table.get(slot + STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == USED && table.getInt(slot + HASH) == hash && table.get(slot + ID_LENGTH) == length
+                    && idEquals(slot, id, offset, length)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int insertionSlot(int hash) {
+        int mask = capacity - 1;
+        int index = hash & mask;
+        while (table.get(index * SLOT_SIZE + STATE) == USED) {
+            index = (index + 1) & mask;
+        }
+        return index * SLOT_SIZE;
+    }
+
+    private boolean idEquals(int slot, byte[] id, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (table.get(slot + ID + i) != id[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void resize(int newCapacity) {
+        ByteBuffer old = table;
+        int oldCapacity = capacity;
+        table = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+        tombstones = 0;
+        ByteBuffer source = old.duplicate();
+        for (int slot = 0; slot < oldCapacity * SLOT_SIZE; slot += SLOT_SIZE) {
+            if (old.get(slot + STATE) == USED) {
+                int target = insertionSlot(old.getInt(slot + HASH));
+                source.limit(slot + SLOT_SIZE).position(slot);
+                table.position(target);
+                table.put(source);
+            }
+        }
+        table.clear();
+    }
+
+    private static int hash(byte[] id, int offset, int length) {
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ (id[i] & 0xFF)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static String hex(ByteBuffer slots, int slot) {
+        int length = slots.get(slot + ID_LENGTH);
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            byte b = slots.get(slot + ID + i);
+            sb.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)));
+            sb.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Records a simulated stock-take (Usage: OffHeapTagRegistry [tags]) and
+     * reports the heap used against the number of tags held.
+     */
+    public static void main(String[] args) throws JposException {
+        int tags = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        OffHeapTagRegistry registry = new OffHeapTagRegistry(1024);
+        byte[] epc = new byte[12];
+        epc[0] = 0x30;
+        long start = System.nanoTime();
+        for (int round = 0; round < 3; round++) {
+            for (int t = 0; t < tags; t++) {
+                epc[8] = (byte) (t >>> 24);
+                epc[9] = (byte) (t >>> 16);
+                epc[10] = (byte) (t >>> 8);
+                epc[11] = (byte) t;
+                registry.record(epc, 1, round, round);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.gc();
+        long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        int[] data = new int[3];
+        registry.directIO(DIO_TAG_REGISTRY_COUNT, data, null);
+        int counted = data[0];
+        registry.directIO(DIO_TAG_REGISTRY_GET, data, epc);
+        int lastCount = data[0];
+        Snapshot snapshot = registry.snapshot();
+        long reads = 0;
+        while (snapshot.next()) {
+            reads += snapshot.getReadCount();
+        }
+        int evicted = registry.evictOlderThan(3);
+        System.out.println("Tags:      " + counted + " held, " + reads + " reads in "
+                + elapsed / 1000000 + " ms (" + elapsed / (3L * tags) + " ns/read)");
+        System.out.println("Heap:      " + (heapAfter - heapBefore) / 1024 + " KB growth");
+        System.out.println("Evicted:   " + evicted + ", " + registry.size() + " left");
+        boolean ok = counted == tags && reads == 3L * tags && lastCount == 3 && evicted == tags;
+        System.out.println(ok ? "INFO: Registry consistent." : "ERROR: Registry mismatch.");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,614 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSProperties;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import jpos.JposConst;
+import jpos.JposException;
+import jpos.RFIDScanner;
+import jpos.RFIDScannerConst;
+import jpos.events.DataEvent;
+import jpos.events.DataListener;
+import jpos.events.ErrorEvent;
+import jpos.events.ErrorListener;
+import jpos.events.OutputCompleteEvent;
+import jpos.events.OutputCompleteListener;
+
+/**
+ * RFIDCommandPipeline class keeps several RFIDScanner write, lock and
+ * disable commands in flight at once, instead of issuing one and waiting
+ * for its event as RFIDReaderExample does.
+ *
+ * DLSRFIDScannerService queues output commands (writeTagData, writeTagID,
+ * lockTag, disableTag) and runs them on the reader in the order they were
+ * issued, reporting each with an OutputCompleteEvent or an ErrorEvent with
+ * JPOS_EL_OUTPUT locus. The event carries the service's latest OutputID
+ * rather than the ID of the command that finished, so the pipeline
+ * correlates events with commands by that order: each event settles the
+ * oldest command still outstanding. Every command gets its own future and
+ * OutputID, and up to RFIDMaxInFlight (dls.properties, default 8) are
+ * handed to the service at a time; the rest wait in the pipeline.
+ *
+ * Reads are pipelined as well, but the service takes one readTags at a
+ * time, so a read is issued when the previous one has delivered its
+ * DataEvent. The tags of the event are returned as a TagBatch.
+ *
+ * Each command has a timeout, counted from when it is issued; a command
+ * that times out fails with a TimeoutException, but keeps its place in the
+ * RFIDMaxInFlight window until its late event arrives, since the service
+ * still holds it. Likewise a read keeps the read slot until its late
+ * DataEvent or ErrorEvent arrives, or clearInput() succeeds, so its tags
+ * are not taken for the next read. The pipeline registers itself as data, error and output complete listener
+ * of the scanner, which must be claimed and enabled. Futures complete on
+ * the jpos event thread, so slow follow-up work should use the *Async
+ * stages.
+ */
+public class RFIDCommandPipeline implements DataListener, ErrorListener, OutputCompleteListener {
+
+    public static final String KEY_RFIDMAXINFLIGHT = "RFIDMaxInFlight";
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final RFIDScanner scanner;
+    private final int maxInFlight;
+    private final DeviceThreads threads;
+    private final ArrayDeque<Command<?>> waiting = new ArrayDeque<Command<?>>();
+    //issued output commands in service order, timed out ones included
+    private final ArrayDeque<Command<?>> outputs = new ArrayDeque<Command<?>>();
+    private final ArrayDeque<Command<?>> reads = new ArrayDeque<Command<?>>();
+    private Command<?> currentRead = null;
+    private int inFlight = 0;
+    private boolean closed = false;
+
+    /**
+     * One queued command.
+     */
+    private abstract static class Command<T> {
+
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+        private final long timeoutMillis;
+        private long deadline = Long.MAX_VALUE;
+        private int outputID = -1;
+        private boolean expired = false;
+        //output complete seen before the OutputID was read
+        private boolean completed = false;
+
+        private Command(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        abstract boolean isRead();
+
+        abstract void issue(RFIDScanner scanner) throws JposException;
+    }
+
+    /**
+     * An output command, whose future completes with its OutputID.
+     */
+    private abstract static class Output extends Command<Integer> {
+
+        private Output(int timeoutMillis) {
+            super(timeoutMillis);
+        }
+
+        @Override
+        boolean isRead() {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a pipeline with the window from dls.properties.
+     *
+     * @param scanner RFIDScanner that is claimed and enabled
+     */
+    public RFIDCommandPipeline(RFIDScanner scanner) {
+        this(scanner, DLSProperties.getInstance().get(KEY_RFIDMAXINFLIGHT, DEFAULT_MAX_IN_FLIGHT));
+    }
+
+    /**
+     * @param scanner RFIDScanner that is claimed and enabled
+     * @param maxInFlight int indicating how many output commands the service
+     * may hold at once
+     */
+    public RFIDCommandPipeline(RFIDScanner scanner, int maxInFlight) {
+        this.scanner = scanner;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        scanner.addDataListener(this);
+        scanner.addErrorListener(this);
+        scanner.addOutputCompleteListener(this);
+        threads = new DeviceThreads("RFIDCommandPipeline");
+        threads.start("issue", new Runnable() {
+            @Override
+            public void run() {
+                issueLoop();
+            }
+        });
+    }
+
+    /**
+     * Queues RFIDScanner.writeTagData.
+     *
+     * @param tagID byte array containing the ID of the tag to write
+     * @param userdata byte array containing the data to write
+     * @param start int indicating the first user data byte
+     * @param timeout int containing the timeout in milliseconds, or
+     * JPOS_FOREVER
+     * @param password byte array containing the access password
+     * @return CompletableFuture of the command's OutputID
+     */
+    public CompletableFuture<Integer> writeTagData(final byte[] tagID, final byte[] userdata, final int start,
+            final int timeout, final byte[] password) {
+        return submit(new Output(timeout) {
+            @Override
+            void issue(RFIDScanner scanner) throws JposException {
+                scanner.writeTagData(tagID, userdata, start, timeout, password);
+            }
+        });
+    }
+
+    /**
+     * Queues RFIDScanner.writeTagID.
+     *
+     * @param sourceID byte array containing the current tag ID
+     * @param destID byte array containing the new tag ID
+     * @param timeout int containing the timeout in milliseconds, or
+     * JPOS_FOREVER
+     * @param password byte array containing the access password
+     * @return CompletableFuture of the command's OutputID
+     */
+    public CompletableFuture<Integer> writeTagID(final byte[] sourceID, final byte[] destID, final int timeout,
+            final byte[] password) {
+        return submit(new Output(timeout) {
+            @Override
+            void issue(RFIDScanner scanner) throws JposException {
+                scanner.writeTagID(sourceID, destID, timeout, password);
+            }
+        });
+    }
+
+    /**
+     * Queues RFIDScanner.lockTag.
+     *
+     * @param tagID byte array containing the ID of the tag to lock
+     * @param timeout int containing the timeout in milliseconds, or
+     * JPOS_FOREVER
+     * @param password byte array containing the access password
+     * @return CompletableFuture of the command's OutputID
+     */
+    public CompletableFuture<Integer> lockTag(final byte[] tagID, final int timeout, final byte[] password) {
+        return submit(new Output(timeout) {
+            @Override
+            void issue(RFIDScanner scanner) throws JposException {
+                scanner.lockTag(tagID, timeout, password);
+            }
+        });
+    }
+
+    /**
+     * Queues RFIDScanner.disableTag.
+     *
+     * @param tagID byte array containing the ID of the tag to disable
+     * @param timeout int containing the timeout in milliseconds, or
+     * JPOS_FOREVER
+     * @param password byte array containing the kill password
+     * @return CompletableFuture of the command's OutputID
+     */
+    public CompletableFuture<Integer> disableTag(final byte[] tagID, final int timeout, final byte[] password) {
+        return submit(new Output(timeout) {
+            @Override
+            void issue(RFIDScanner scanner) throws JposException {
+                scanner.disableTag(tagID, timeout, password);
+            }
+        });
+    }
+
+    /**
+     * Queues RFIDScanner.readTags.
+     *
+     * @param cmd int containing the RFIDScannerConst.RFID_RT_* command
+     * @param filter CompiledTagFilter selecting the tags
+     * @param start int indicating the first user data byte
+     * @param length int indicating the number of user data bytes
+     * @param timeout int containing the timeout in milliseconds, or
+     * JPOS_FOREVER
+     * @param password byte array containing the access password
+     * @return CompletableFuture of the tags read
+     */
+    public CompletableFuture<TagBatch> readTags(final int cmd, final CompiledTagFilter filter, final int start,
+            final int length, final int timeout, final byte[] password) {
+        return submit(new Command<TagBatch>(timeout) {
+            @Override
+            boolean isRead() {
+                return true;
+            }
+
+            @Override
+            void issue(RFIDScanner scanner) throws JposException {
+                filter.readTags(scanner, cmd, start, length, timeout, password);
+            }
+        });
+    }
+
+    /**
+     * @return int containing the number of output commands held by the
+     * service
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return int containing the number of commands not yet issued
+     */
+    public synchronized int getWaiting() {
+        return waiting.size() + reads.size();
+    }
+
+    /**
+     * Stops issuing, fails the commands that were not issued and removes
+     * the listeners. Issued commands are left to the service.
+     *
+     * @param timeoutMillis long indicating how long to wait for the thread
+     * @return boolean indicating whether the thread exited in time
+     */
+    public boolean close(long timeoutMillis) {
+        List<Command<?>> dropped = new ArrayList<Command<?>>();
+        synchronized (this) {
+            closed = true;
+            dropped.addAll(waiting);
+            dropped.addAll(reads);
+            waiting.clear();
+            reads.clear();
+            notifyAll();
+        }
+        boolean stopped = threads.shutdown(timeoutMillis);
+        scanner.removeDataListener(this);
+        scanner.removeErrorListener(this);
+        scanner.removeOutputCompleteListener(this);
+        for (Command<?> command : dropped) {
+            command.future.completeExceptionally(
+                    new JposException(JposConst.JPOS_E_CLOSED, "Command pipeline closed."));
+        }
+        return stopped;
+    }
+
+    @Override
+    public void outputCompleteOccurred(OutputCompleteEvent oce) {
+        Command<?> command = takeOutput();
+        if (command == null || command.expired) {
+            return;
+        }
+        int outputID;
+        synchronized (this) {
+            if (command.outputID < 0) {
+                //issue() completes it once getOutputID() has been read
+                command.completed = true;
+                return;
+            }
+            outputID = command.outputID;
+        }
+        Command<Integer> output = (Output) command;
+        output.future.complete(outputID);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void dataOccurred(DataEvent de) {
+        Command<?> read;
+        synchronized (this) {
+            read = currentRead;
+            currentRead = null;
+            notifyAll();
+        }
+        try {
+            TagBatch batch = readBatch();
+            if (read != null && !read.expired) {
+                ((Command<TagBatch>) read).future.complete(batch);
+            }
+        } catch (JposException je) {
+            if (read != null) {
+                read.future.completeExceptionally(je);
+            }
+        }
+        try {
+            scanner.setDataEventEnabled(true);
+        } catch (JposException je) {
+            System.err.println("ERROR: Could not re-enable data events, " + je);
+        }
+    }
+
+    @Override
+    public void errorOccurred(ErrorEvent ee) {
+        Command<?> command;
+        if (ee.getErrorLocus() == JposConst.JPOS_EL_OUTPUT) {
+            command = takeOutput();
+        } else {
+            synchronized (this) {
+                command = currentRead;
+                currentRead = null;
+                notifyAll();
+            }
+        }
+        if (command != null && !command.expired) {
+            command.future.completeExceptionally(new JposException(ee.getErrorCode(), ee.getErrorCodeExtended(),
+                    "Command failed on the reader."));
+        }
+        //keep the remaining commands going
+        ee.setErrorResponse(JposConst.JPOS_ER_CLEAR);
+    }
+
+    private <T> CompletableFuture<T> submit(Command<T> command) {
+        synchronized (this) {
+            if (!closed) {
+                (command.isRead() ? reads : waiting).add(command);
+                notifyAll();
+                return command.future;
+            }
+        }
+        command.future.completeExceptionally(new JposException(JposConst.JPOS_E_CLOSED, "Command pipeline closed."));
+        return command.future;
+    }
+
+    /**
+     * @return Command of the oldest outstanding output, or null
+     */
+    private synchronized Command<?> takeOutput() {
+        Command<?> command = outputs.poll();
+        if (command != null) {
+            //timed out or not, the service held it until now
+            inFlight--;
+        }
+        notifyAll();
+        return command;
+    }
+
+    /**
+     * Copies the tags of the current DataEvent, walking them with
+     * firstTag()/nextTag() as RFIDReaderExample does.
+     */
+    private TagBatch readBatch() throws JposException {
+        int count = scanner.getTagCount();
+        long now = System.currentTimeMillis();
+        byte[][] ids = new byte[count][];
+        byte[][] data = new byte[count][];
+        int[] protocols = new int[count];
+        int idLength = 0;
+        int dataLength = 0;
+        if (count > 0) {
+            scanner.firstTag();
+        }
+        for (int i = 0; i < count; i++) {
+            ids[i] = scanner.getCurrentTagID();
+            data[i] = scanner.getCurrentTagUserData();
+            if (data[i] == null) {
+                data[i] = NO_DATA;
+            }
+            protocols[i] = scanner.getCurrentTagProtocol();
+            idLength += ids[i].length;
+            dataLength += data[i].length;
+            if (i < count - 1) {
+                scanner.nextTag();
+            }
+        }
+        byte[] packedIds = new byte[idLength];
+        byte[] packedData = new byte[dataLength];
+        int[] idOffsets = new int[count + 1];
+        int[] dataOffsets = new int[count + 1];
+        int[] readCounts = new int[count];
+        long[] seen = new long[count];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(ids[i], 0, packedIds, idOffsets[i], ids[i].length);
+            idOffsets[i + 1] = idOffsets[i] + ids[i].length;
+            System.arraycopy(data[i], 0, packedData, dataOffsets[i], data[i].length);
+            dataOffsets[i + 1] = dataOffsets[i] + data[i].length;
+            readCounts[i] = 1;
+            seen[i] = now;
+        }
+        //the jpos tag properties carry no signal strength
+        return new TagBatch(count, packedIds, idOffsets, packedData, dataOffsets, protocols, readCounts,
+                new short[count], new short[count], new long[count], seen, seen.clone());
+    }
+
+    private void issueLoop() {
+        try {
+            while (true) {
+                Command<?> next = null;
+                List<Command<?>> timedOut = new ArrayList<Command<?>>();
+                synchronized (this) {
+                    while (next == null) {
+                        if (closed) {
+                            return;
+                        }
+                        long now = System.currentTimeMillis();
+                        long wake = expire(now, timedOut);
+                        if (!timedOut.isEmpty()) {
+                            break;
+                        }
+                        if (currentRead == null && !reads.isEmpty()) {
+                            next = reads.poll();
+                            currentRead = next;
+                        } else if (inFlight < maxInFlight && !waiting.isEmpty()) {
+                            next = waiting.poll();
+                            inFlight++;
+                        } else {
+                            wait(wake == Long.MAX_VALUE ? 0 : Math.max(1, wake - now));
+                        }
+                    }
+                }
+                for (Command<?> command : timedOut) {
+                    command.future.completeExceptionally(new TimeoutException(
+                            "No event within " + command.timeoutMillis + " ms."));
+                    if (command.isRead()) {
+                        clearRead(command);
+                    }
+                }
+                if (next != null) {
+                    issue(next);
+                }
+            }
+        } catch (InterruptedException ie) {
+            //closed
+        }
+    }
+
+    /**
+     * Drops a timed out read from the service so the next read can be
+     * issued. If that fails the slot stays taken until the read's event.
+     */
+    private void clearRead(Command<?> read) {
+        try {
+            scanner.clearInput();
+        } catch (JposException je) {
+            System.err.println("ERROR: Could not clear the timed out read, waiting for its event, " + je);
+            return;
+        }
+        synchronized (this) {
+            if (currentRead == read) {
+                currentRead = null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Issues a command to the service. Output commands are issued from this
+     * thread only, so getOutputID() right after the call is theirs.
+     */
+    private void issue(Command<?> command) {
+        try {
+            synchronized (this) {
+                if (!command.isRead()) {
+                    //listed before the call so that a fast event finds it
+                    outputs.add(command);
+                }
+                if (command.timeoutMillis != JposConst.JPOS_FOREVER) {
+                    command.deadline = System.currentTimeMillis() + command.timeoutMillis;
+                }
+            }
+            command.issue(scanner);
+            if (!command.isRead()) {
+                int outputID = scanner.getOutputID();
+                boolean completed;
+                synchronized (this) {
+                    command.outputID = outputID;
+                    completed = command.completed;
+                }
+                if (completed) {
+                    Command<Integer> output = (Output) command;
+                    output.future.complete(outputID);
+                }
+            }
+        } catch (JposException je) {
+            synchronized (this) {
+                if (command.isRead()) {
+                    if (currentRead == command) {
+                        currentRead = null;
+                    }
+                } else if (outputs.removeLastOccurrence(command)) {
+                    inFlight--;
+                }
+                notifyAll();
+            }
+            command.future.completeExceptionally(je);
+        }
+    }
+
+    /**
+     * Marks issued commands past their deadline as expired.
+     *
+     * @return long containing the next deadline
+     */
+    private long expire(long now, List<Command<?>> timedOut) {
+        long wake = Long.MAX_VALUE;
+        for (Iterator<Command<?>> it = outputs.iterator(); it.hasNext();) {
+            Command<?> command = it.next();
+            if (command.expired) {
+                continue;
+            }
+            if (command.deadline <= now) {
+                //stays listed and counted, the service still holds it
+                command.expired = true;
+                timedOut.add(command);
+            } else {
+                wake = Math.min(wake, command.deadline);
+            }
+        }
+        if (currentRead != null && !currentRead.expired) {
+            if (currentRead.deadline <= now) {
+                //stays current until its event or clearInput(), or its late tags complete the next read
+                currentRead.expired = true;
+                timedOut.add(currentRead);
+            } else {
+                wake = Math.min(wake, currentRead.deadline);
+            }
+        }
+        return wake;
+    }
+
+    /**
+     * Inventories the tags in the field and writes user data to each of them
+     * through the pipeline (Usage: RFIDCommandPipeline &lt;logicalName&gt;
+     * [dataLength]).
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length == 0) {
+            System.err.println("ERROR: Usage RFIDCommandPipeline <logicalName> [dataLength]");
+            System.exit(1);
+        }
+        int dataLength = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        RFIDScanner scanner = new RFIDScanner();
+        try {
+            scanner.open(args[0]);
+            scanner.claim(5000);
+            scanner.setDeviceEnabled(true);
+            scanner.setDataEventEnabled(true);
+        } catch (JposException je) {
+            System.err.println("ERROR: Failed to start " + args[0] + ", " + je);
+            System.exit(1);
+        }
+        RFIDCommandPipeline pipeline = new RFIDCommandPipeline(scanner);
+        byte[] password = new byte[0];
+        int failures = 0;
+        try {
+            TagBatch batch = pipeline.readTags(RFIDScannerConst.RFID_RT_ID, CompiledTagFilter.MATCH_ALL,
+                    0, 0, 5000, password).get();
+            System.out.println("INFO: " + batch.getCount() + " tag(s) in the field.");
+            long start = System.nanoTime();
+            List<CompletableFuture<Integer>> writes = new ArrayList<CompletableFuture<Integer>>();
+            for (int i = 0; i < batch.getCount(); i++) {
+                byte[] data = new byte[dataLength];
+                data[dataLength - 1] = (byte) i;
+                writes.add(pipeline.writeTagData(batch.getId(i), data, 0, 2000, password));
+            }
+            for (int i = 0; i < writes.size(); i++) {
+                try {
+                    writes.get(i).get();
+                } catch (ExecutionException ee) {
+                    failures++;
+                    System.err.println("ERROR: Write to " + batch.getIdHex(i) + " failed, " + ee.getCause());
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println("INFO: " + (writes.size() - failures) + " of " + writes.size()
+                    + " tag(s) written in " + elapsed / 1000000 + " ms");
+        } catch (ExecutionException ee) {
+            failures++;
+            System.err.println("ERROR: Inventory failed, " + ee.getCause());
+        }
+        pipeline.close(1000);
+        try {
+            scanner.setDeviceEnabled(false);
+            scanner.release();
+            scanner.close();
+        } catch (JposException je) {
+            //ignoring exceptions for this example
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
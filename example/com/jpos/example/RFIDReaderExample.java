@@ -28,6 +28,9 @@ public class RFIDReaderExample implements DataListener, OutputCompleteListener,
     private static final int PROTOCOL_COLUMN_WIDTH = 18;
     private static final String SEP = System.getProperty("line.separator");
     private volatile boolean canStartNewRead = true;
+    //filter compiled once and reused for every read. MATCH_ALL reports all
+    //tags, CompiledTagFilter.compile(filterID, filtermask) narrows them down
+    private final CompiledTagFilter filter = CompiledTagFilter.MATCH_ALL;
     
     private RFIDScanner scanner;
 
@@ -194,15 +197,13 @@ public class RFIDReaderExample implements DataListener, OutputCompleteListener,
     public void startSingleRead() {
         //load some default values for example
         int cmd = RFIDScannerConst.RFID_RT_ID_PARTIALUSERDATA;
-        byte[] filterID = new byte[]{}; //empty byte array for no filtering
-        byte[] filtermask = new byte[]{0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00}; //all zeros for matching all tags (empty byte array also accepted)
         int start = 0;
         int length = 4; //read a small amount of data for the example
         int timeout = -1; //wait as long as needed
         byte[] password = new byte[]{}; //empty for no password
         if (canStartNewRead) {
             try {
-                scanner.readTags(cmd, filterID, filtermask, start, length, timeout, password);
+                filter.readTags(scanner, cmd, start, length, timeout, password);
                 canStartNewRead = false;
             } catch (JposException je) {
                 System.err.println("ERROR: JposException trying to start single read, " + je);
@@ -223,8 +224,6 @@ public class RFIDReaderExample implements DataListener, OutputCompleteListener,
         boolean success = false;
         //load some default values for example
         int cmd = RFIDScannerConst.RFID_RT_ID;
-        byte[] filterID = new byte[]{}; //empty byte array for no filtering
-        byte[] filtermask = new byte[]{0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00}; //all zeros for matching all tags (empty byte array also accepted)
         int start = 0; //not applicable for RFID_RT_ID
         int length = 4; //not applicable for RFID_RT_ID
         byte[] password = new byte[]{}; //empty for no password
@@ -234,7 +233,7 @@ public class RFIDReaderExample implements DataListener, OutputCompleteListener,
             }
             if (scanner.getCapContinuousRead()) {
                 if (!scanner.getContinuousReadMode()) {
-                    scanner.startReadTags(cmd, filterID, filtermask, start, length, password);
+                    filter.startReadTags(scanner, cmd, start, length, password);
                     System.out.println("INFO: Continuous read mode started.");
                     success = true;
                 } else {
@@ -0,0 +1,134 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSDeviceInfo;
+import com.dls.jpos.transport.DLSPort;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SimulatedPort class is a transport stand-in that lets captured raw frames
+ * be replayed into an interpretation object (DLSUSBScanner, DLSSerialScanner,
+ * ...) without a physical device attached.
+ *
+ * Frames are pushed through the same DataReceivedListener path a real
+ * DLSPort uses. Anything the interpretation layer sends back to the "device"
+ * is counted and discarded.
+ */
+public class SimulatedPort extends DLSPort {
+
+    private volatile int bytesSent = 0;
+
+    public SimulatedPort(DLSDeviceInfo info) {
+        super(info);
+    }
+
+    @Override
+    public boolean openPort() {
+        bOpen = true;
+        return true;
+    }
+
+    @Override
+    public boolean closePort() {
+        bOpen = false;
+        return true;
+    }
+
+    @Override
+    public void changeBaudRate(int baud) {
+        //nothing to change on a simulated port
+    }
+
+    @Override
+    public int sendData(byte[] data, int length) {
+        bytesSent += length;
+        return length;
+    }
+
+    /**
+     * Replays a single frame to all registered DataReceivedListeners, exactly
+     * as if the frame had been read from the device.
+     *
+     * @param frame byte array containing the raw frame
+     */
+    public void replay(byte[] frame) {
+        fireDataReceivedEvent(frame, frame.length);
+    }
+
+    /**
+     * @return int indicating the number of bytes written to the port
+     */
+    public int getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Loads a capture file. Each non-empty line holds one frame as hex bytes
+     * separated by white space, e.g. {@code 13 08 00 00 30 31 32 0D}. Lines
+     * beginning with '#' or '//' are ignored.
+     *
+     * @param fileName String containing the capture file path
+     * @return List of frames in file order
+     * @throws IOException if the file cannot be read
+     */
+    public static List<byte[]> loadCapture(String fileName) throws IOException {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("//")) {
+                    continue;
+                }
+                String[] tokens = line.split("\\s+");
+                byte[] frame = new byte[tokens.length];
+                for (int i = 0; i < tokens.length; i++) {
+                    frame[i] = (byte) Integer.parseInt(tokens[i], 16);
+                }
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Builds a USB-OEM label report the way the scanner delivers it: length
+     * byte, three status bytes, label data and the label identifier.
+     *
+     * @param label String containing the label data
+     * @param identifier byte array containing the IBM-USB-OEM label
+     * identifier from LabelIdentifiers.csv
+     * @return byte array containing the raw report
+     */
+    public static byte[] usbOemFrame(String label, byte[] identifier) {
+        byte[] data = label.getBytes();
+        byte[] frame = new byte[4 + data.length + identifier.length];
+        frame[0] = (byte) frame.length;
+        //status byte 0, bit 3 flags label data in the report
+        frame[1] = 0x08;
+        System.arraycopy(data, 0, frame, 4, data.length);
+        System.arraycopy(identifier, 0, frame, 4 + data.length, identifier.length);
+        return frame;
+    }
+
+    /**
+     * Builds an RS232 label record: label identifier, label data and the
+     * configured receive trailer.
+     *
+     * @param label String containing the label data
+     * @param identifier String containing the SCRS232 or USA label
+     * identifier from LabelIdentifiers.csv
+     * @param trailer byte used as record trailer, usually 0x0D
+     * @return byte array containing the raw record
+     */
+    public static byte[] serialFrame(String label, String identifier, byte trailer) {
+        byte[] data = (identifier + label).getBytes();
+        byte[] frame = new byte[data.length + 1];
+        System.arraycopy(data, 0, frame, 0, data.length);
+        frame[data.length] = trailer;
+        return frame;
+    }
+}
@@ -0,0 +1,327 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSException;
+import com.dls.jpos.common.DLSProperties;
+import com.dls.jpos.interpretation.DLSDevice;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * StatisticsCollector class pulls device statistics in the background and
+ * caches them for a while, so that claim() does not have to.
+ *
+ * With GenerateStatsOnEveryClaim=true the service pulls the i-h-s data
+ * during claim(), which blocks claim for seconds and leaves the device
+ * busy right after. dls.properties ships it false, so claim returns at
+ * once and the statistics come from this collector: the pull runs on a
+ * background thread and the result is served for StatisticsCacheTTL
+ * milliseconds (default five minutes). Pulling statistics resets the
+ * device, so pull them while it is idle or disabled, never while it is
+ * scanning or being flashed; {@link #refreshWhenIdle} does that for a
+ * device whenever its entry has expired.
+ *
+ * Collection is per device and incremental: a device is only queried when
+ * its own entry has expired, concurrent requests for a device share one
+ * pull, and while a refresh is running the previous result stays readable
+ * through {@link #getCached(String)}.
+ *
+ * @param <T> type of the statistics, e.g. the HashMap returned by
+ * DLSDevice.getStatistics() or the XML returned by retrieveStatistics
+ */
+public class StatisticsCollector<T> {
+
+    public static final String KEY_STATISTICSCACHETTL = "StatisticsCacheTTL";
+    public static final int DEFAULT_TTL_MILLIS = 300000;
+    public static final String KEY_STATISTICSIDLETIME = "StatisticsIdleTime";
+    public static final int DEFAULT_IDLE_MILLIS = 60000;
+    private static final long CHECK_MILLIS = 1000;
+
+    private final DeviceThreads threads;
+    private final ExecutorService executor;
+    private final long ttlMillis;
+    private final long idleMillis;
+    private final Map<String, Entry<T>> entries = new ConcurrentHashMap<String, Entry<T>>();
+    private final Map<String, Refresh<T>> refreshes = new ConcurrentHashMap<String, Refresh<T>>();
+    private boolean refreshing = false;
+
+    private static class Entry<T> {
+        private T value;
+        private long fetchedAt;
+        private CompletableFuture<T> pending;
+    }
+
+    private static class Refresh<T> {
+        private final Callable<T> source;
+        private final BooleanSupplier idle;
+        private final Consumer<T> listener;
+        private long retryAt;
+
+        private Refresh(Callable<T> source, BooleanSupplier idle, Consumer<T> listener) {
+            this.source = source;
+            this.idle = idle;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Creates a collector configured from dls.properties.
+     */
+    public StatisticsCollector() {
+        this(DLSProperties.getInstance().get(KEY_STATISTICSCACHETTL, DEFAULT_TTL_MILLIS),
+                DLSProperties.getInstance().get(KEY_STATISTICSIDLETIME, DEFAULT_IDLE_MILLIS));
+    }
+
+    /**
+     * @param ttlMillis long indicating how long collected statistics stay
+     * valid
+     */
+    public StatisticsCollector(long ttlMillis) {
+        this(ttlMillis, DEFAULT_IDLE_MILLIS);
+    }
+
+    /**
+     * @param ttlMillis long indicating how long collected statistics stay
+     * valid
+     * @param idleMillis long indicating how long a device has to be idle
+     * before {@link #isIdle(long)} lets it be pulled
+     */
+    public StatisticsCollector(long ttlMillis, long idleMillis) {
+        this.ttlMillis = ttlMillis;
+        this.idleMillis = idleMillis;
+        threads = new DeviceThreads("StatisticsCollector");
+        executor = threads.executor();
+    }
+
+    /**
+     * Returns the cached statistics of a device, pulling them in the
+     * background if they are missing or expired.
+     *
+     * @param key String identifying the device, normally its logical name
+     * @param source Callable pulling the statistics from the device
+     * @return CompletableFuture completed with the statistics, already
+     * complete when the cache is valid
+     */
+    public CompletableFuture<T> collect(String key, final Callable<T> source) {
+        final Entry<T> entry = entry(key);
+        synchronized (entry) {
+            if (entry.pending != null) {
+                return entry.pending;
+            }
+            if (entry.value != null && System.currentTimeMillis() - entry.fetchedAt < ttlMillis) {
+                return CompletableFuture.completedFuture(entry.value);
+            }
+            final CompletableFuture<T> future = new CompletableFuture<T>();
+            entry.pending = future;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        pull(entry, future, source);
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                entry.pending = null;
+                future.completeExceptionally(ree);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Keeps the statistics of a device current without pulling them while
+     * it is in use. Whenever its entry is missing or has expired and idle
+     * reports the device idle, a pull is started in the background; until
+     * then collect() and getCached() keep serving the last result. A failed
+     * pull is retried once the TTL has passed again.
+     *
+     * @param key String identifying the device, normally its logical name
+     * @param source Callable pulling the statistics from the device
+     * @param idle BooleanSupplier indicating whether the device may be
+     * pulled now, e.g. it is disabled or has not read for a while
+     * @param listener Consumer called with each refreshed result, or null
+     */
+    public void refreshWhenIdle(String key, Callable<T> source, BooleanSupplier idle, Consumer<T> listener) {
+        refreshes.put(key, new Refresh<T>(source, idle, listener));
+        synchronized (this) {
+            if (!refreshing) {
+                refreshing = true;
+                threads.start("refresh", new Runnable() {
+                    @Override
+                    public void run() {
+                        refreshLoop();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Stops refreshing a device in the background, e.g. before it is
+     * released. A pull in progress still completes.
+     *
+     * @param key String identifying the device
+     */
+    public void stopRefresh(String key) {
+        refreshes.remove(key);
+    }
+
+    /**
+     * @param idleSinceMillis long containing the System.currentTimeMillis()
+     * of the last activity of a device
+     * @return boolean indicating whether the device has been idle for
+     * StatisticsIdleTime milliseconds (dls.properties, default one minute)
+     */
+    public boolean isIdle(long idleSinceMillis) {
+        return System.currentTimeMillis() - idleSinceMillis >= idleMillis;
+    }
+
+    /**
+     * Creates a collector for DLSDevice statistics maps, used with
+     * {@link #statisticsOf(DLSDevice)}.
+     *
+     * @return StatisticsCollector configured from dls.properties
+     */
+    public static StatisticsCollector<HashMap<String, Object>> forDevices() {
+        return new StatisticsCollector<HashMap<String, Object>>();
+    }
+
+    /**
+     * @param device DLSDevice whose getStatistics() is called
+     * @return Callable pulling the statistics of the device
+     */
+    public static Callable<HashMap<String, Object>> statisticsOf(final DLSDevice device) {
+        return new Callable<HashMap<String, Object>>() {
+            @Override
+            public HashMap<String, Object> call() throws DLSException {
+                return device.getStatistics();
+            }
+        };
+    }
+
+    /**
+     * @param key String identifying the device
+     * @return T containing the last statistics collected, even if expired,
+     * or null if none have been collected
+     */
+    public T getCached(String key) {
+        Entry<T> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            return entry.value;
+        }
+    }
+
+    /**
+     * Forces the next collect() of a device to query it, e.g. after its
+     * firmware was updated.
+     *
+     * @param key String identifying the device
+     */
+    public void invalidate(String key) {
+        Entry<T> entry = entries.get(key);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.fetchedAt = 0;
+            }
+        }
+    }
+
+    /**
+     * Stops the background threads, interrupting pulls in progress.
+     *
+     * @param timeoutMillis long indicating how long to wait for the threads
+     * @return boolean indicating whether every thread exited in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        return threads.shutdown(timeoutMillis);
+    }
+
+    private void refreshLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(CHECK_MILLIS);
+                for (Map.Entry<String, Refresh<T>> device : refreshes.entrySet()) {
+                    refresh(device.getKey(), device.getValue());
+                }
+            }
+        } catch (InterruptedException ie) {
+            //shut down
+        }
+    }
+
+    private void refresh(final String key, final Refresh<T> refresh) {
+        long now = System.currentTimeMillis();
+        Entry<T> entry = entry(key);
+        synchronized (entry) {
+            if (entry.pending != null || now < refresh.retryAt
+                    || entry.value != null && now - entry.fetchedAt < ttlMillis) {
+                return;
+            }
+        }
+        boolean idle;
+        try {
+            idle = refresh.idle.getAsBoolean();
+        } catch (RuntimeException re) {
+            System.err.println("ERROR: Cannot tell whether " + key + " is idle, " + re);
+            idle = false;
+        }
+        if (!idle) {
+            return;
+        }
+        refresh.retryAt = now + ttlMillis;
+        collect(key, refresh.source).whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable error) {
+                if (error != null) {
+                    System.err.println("ERROR: Cannot refresh statistics of " + key + ", " + error);
+                } else if (refresh.listener != null) {
+                    refresh.listener.accept(value);
+                }
+            }
+        });
+    }
+
+    private Entry<T> entry(String key) {
+        Entry<T> entry = entries.get(key);
+        if (entry == null) {
+            Entry<T> created = new Entry<T>();
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        return entry;
+    }
+
+    private void pull(Entry<T> entry, CompletableFuture<T> future, Callable<T> source) {
+        T value = null;
+        Exception failure = null;
+        try {
+            value = source.call();
+        } catch (Exception e) {
+            failure = e;
+        }
+        synchronized (entry) {
+            entry.pending = null;
+            if (failure == null) {
+                entry.value = value;
+                entry.fetchedAt = System.currentTimeMillis();
+            }
+        }
+        if (failure == null) {
+            future.complete(value);
+        } else {
+            future.completeExceptionally(failure);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSProperties;
+import com.dls.jpos.common.LabelParser;
+import com.dls.jpos.common.LabelRow;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SymbologyTable class compiles LabelIdentifiers.csv once into byte tries,
+ * one per identifier column, so that resolving a label identifier costs one
+ * array step per identifier byte and builds no Strings.
+ *
+ * The columns follow the LabelParser decode types:
+ * standard (USA code), warhol (EU code), oem (IBM-USB-OEM) and sc (SCRS232).
+ * OEM identifiers trail the label data, so that column is matched from the
+ * end of the label; the others are matched from the start. The longest
+ * identifier wins, and on duplicate identifiers the first row in the file
+ * wins, as with LabelParser.
+ */
+public class SymbologyTable {
+
+    /**
+     * Returned by the lookup methods when no identifier matches.
+     */
+    public static final int NO_MATCH = -1;
+
+    private static final int COLUMN_US = 0;
+    private static final int COLUMN_EU = 1;
+    private static final int COLUMN_OEM = 2;
+    private static final int COLUMN_SCRS232 = 3;
+    private static final int CSV_FIRST_CODE_FIELD = 3;
+    private static final int CSV_FIELD_COUNT = 9;
+
+    private final String[] uposNames;
+    private final int[] uposIds;
+    private final String[] tagNames;
+    private final byte[][][] codes;
+    private final byte[][] outputPrefixes;
+    private final byte[][] outputSuffixes;
+    private final Trie[] tries = new Trie[4];
+
+    /**
+     * Byte trie stored as a flat transition table. Node 0 is the root, a
+     * transition value of 0 means no child.
+     */
+    private static class Trie {
+
+        private char[] next = new char[256 * 16];
+        private int[] row = new int[16];
+        private int nodeCount = 1;
+        private int maxDepth = 0;
+
+        Trie() {
+            Arrays.fill(row, NO_MATCH);
+        }
+
+        void add(byte[] key, boolean reversed, int rowIndex) {
+            int node = 0;
+            for (int i = 0; i < key.length; i++) {
+                int b = key[reversed ? key.length - 1 - i : i] & 0xFF;
+                int child = next[node * 256 + b];
+                if (child == 0) {
+                    child = newNode();
+                    next[node * 256 + b] = (char) child;
+                }
+                node = child;
+            }
+            if (row[node] == NO_MATCH) {
+                row[node] = rowIndex;
+            }
+            maxDepth = Math.max(maxDepth, key.length);
+        }
+
+        int newNode() {
+            if (nodeCount == row.length) {
+                next = Arrays.copyOf(next, next.length * 2);
+                row = Arrays.copyOf(row, row.length * 2);
+                Arrays.fill(row, nodeCount, row.length, NO_MATCH);
+            }
+            if (nodeCount > Character.MAX_VALUE) {
+                throw new IllegalStateException("Label identifier table too large.");
+            }
+            return nodeCount++;
+        }
+
+        int longestMatch(byte[] data, int offset, int length, boolean reversed) {
+            int node = 0;
+            int best = NO_MATCH;
+            int depth = Math.min(length, maxDepth);
+            for (int i = 0; i < depth; i++) {
+                int pos = reversed ? offset + length - 1 - i : offset + i;
+                node = next[node * 256 + (data[pos] & 0xFF)];
+                if (node == 0) {
+                    break;
+                }
+                if (row[node] != NO_MATCH) {
+                    best = row[node];
+                }
+            }
+            return best;
+        }
+
+        int exactMatch(byte[] data, int offset, int length) {
+            if (length == 0 || length > maxDepth) {
+                return NO_MATCH;
+            }
+            int node = 0;
+            for (int i = 0; i < length; i++) {
+                node = next[node * 256 + (data[offset + i] & 0xFF)];
+                if (node == 0) {
+                    return NO_MATCH;
+                }
+            }
+            return row[node];
+        }
+    }
+
+    /**
+     * Compiles the file configured by LabelIdentifiersFile in dls.properties.
+     *
+     * @return SymbologyTable compiled from the configured file
+     * @throws IOException if the file cannot be read
+     */
+    public static SymbologyTable load() throws IOException {
+        String file = DLSProperties.getInstance().getLabelIdentifiersFile();
+        if (file == null || file.isEmpty()) {
+            file = LabelParser.DEFAULT_CSVFILE;
+        }
+        return load(file);
+    }
+
+    /**
+     * Compiles the given label identifier file.
+     *
+     * @param csvFile String containing the LabelIdentifiers.csv path
+     * @return SymbologyTable compiled from the file
+     * @throws IOException if the file cannot be read
+     */
+    public static SymbologyTable load(String csvFile) throws IOException {
+        List<String[]> rows = new ArrayList<String[]>();
+        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
+            //first line is the header
+            String line = br.readLine();
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("//")) {
+                    continue;
+                }
+                String[] fields = Arrays.copyOf(line.split(",", -1), CSV_FIELD_COUNT);
+                rows.add(fields);
+            }
+        }
+        return new SymbologyTable(rows);
+    }
+
+    private SymbologyTable(List<String[]> rows) {
+        int count = rows.size();
+        uposNames = new String[count];
+        uposIds = new int[count];
+        tagNames = new String[count];
+        codes = new byte[4][count][];
+        outputPrefixes = new byte[count][];
+        outputSuffixes = new byte[count][];
+        for (int c = 0; c < tries.length; c++) {
+            tries[c] = new Trie();
+        }
+        for (int r = 0; r < count; r++) {
+            String[] fields = rows.get(r);
+            uposNames[r] = trim(fields[0]);
+            uposIds[r] = parseId(fields[1]);
+            tagNames[r] = trim(fields[2]);
+            for (int c = 0; c < tries.length; c++) {
+                byte[] code = hexToBytes(fields[CSV_FIRST_CODE_FIELD + c]);
+                codes[c][r] = code;
+                if (code.length > 0) {
+                    tries[c].add(code, c == COLUMN_OEM, r);
+                }
+            }
+            outputPrefixes[r] = hexToBytes(fields[7]);
+            outputSuffixes[r] = hexToBytes(fields[8]);
+        }
+    }
+
+    /**
+     * Resolves the label identifier of a raw label.
+     *
+     * @param decodeType String containing the jpos.xml decodeType, one of the
+     * LabelParser DECODE_TYPE_* values
+     * @param label byte array containing the raw label
+     * @param offset int indicating the first label byte
+     * @param length int indicating the number of label bytes
+     * @return int containing the matching row, or NO_MATCH
+     */
+    public int lookup(String decodeType, byte[] label, int offset, int length) {
+        int column = columnOf(decodeType);
+        return tries[column].longestMatch(label, offset, length, column == COLUMN_OEM);
+    }
+
+    /**
+     * Resolves an already extracted identifier, with the same semantics as
+     * LabelParser.extractBarcodeType().
+     *
+     * @param decodeType String containing the jpos.xml decodeType
+     * @param identifier byte array containing the identifier bytes
+     * @return int containing the matching row, or NO_MATCH
+     */
+    public int lookupIdentifier(String decodeType, byte[] identifier) {
+        int column = columnOf(decodeType);
+        if (column == COLUMN_OEM) {
+            //the OEM trie is keyed from the last byte, which for a full
+            //identifier is the same walk as a longest match from the end
+            int row = tries[column].longestMatch(identifier, 0, identifier.length, true);
+            return (row != NO_MATCH && codes[column][row].length == identifier.length)
+                    ? row : NO_MATCH;
+        }
+        return tries[column].exactMatch(identifier, 0, identifier.length);
+    }
+
+    /**
+     * @param row int returned by a lookup
+     * @return int containing the jpos SCAN_SDT_* code, or SCAN_SDT_UNKNOWN
+     */
+    public int getUPOSID(int row) {
+        return row == NO_MATCH ? jpos.ScannerConst.SCAN_SDT_UNKNOWN : uposIds[row];
+    }
+
+    /**
+     * @param row int returned by a lookup
+     * @return String containing the UPOS identifier name
+     */
+    public String getUPOSName(int row) {
+        return row == NO_MATCH ? "SCAN_SDT_UNKNOWN" : uposNames[row];
+    }
+
+    /**
+     * @param row int returned by a lookup
+     * @return String containing the CI tag name
+     */
+    public String getTagName(int row) {
+        return row == NO_MATCH ? "CI_LABEL_ID_UNKNOWN" : tagNames[row];
+    }
+
+    /**
+     * @param decodeType String containing the jpos.xml decodeType
+     * @param row int returned by a lookup
+     * @return int containing the identifier length in bytes
+     */
+    public int getIdentifierLength(String decodeType, int row) {
+        return row == NO_MATCH ? 0 : codes[columnOf(decodeType)][row].length;
+    }
+
+    /**
+     * @param row int returned by a lookup
+     * @return byte array containing the output prefix, shared; do not modify
+     */
+    public byte[] getOutputPrefix(int row) {
+        return row == NO_MATCH ? new byte[0] : outputPrefixes[row];
+    }
+
+    /**
+     * @param row int returned by a lookup
+     * @return byte array containing the output suffix, shared; do not modify
+     */
+    public byte[] getOutputSuffix(int row) {
+        return row == NO_MATCH ? new byte[0] : outputSuffixes[row];
+    }
+
+    /**
+     * Builds a LabelRow for code that still works with LabelParser types.
+     *
+     * @param decodeType String containing the jpos.xml decodeType
+     * @param row int returned by a lookup
+     * @return LabelRow with the row data
+     */
+    public LabelRow toLabelRow(String decodeType, int row) {
+        if (row == NO_MATCH) {
+            return new LabelRow(getUPOSName(row), getUPOSID(row), getTagName(row),
+                    new byte[0], new byte[0], new byte[0], new byte[0], new byte[0], new byte[0]);
+        }
+        LabelRow labelRow = new LabelRow(uposNames[row], uposIds[row], tagNames[row],
+                codes[COLUMN_US][row], codes[COLUMN_EU][row], codes[COLUMN_OEM][row],
+                codes[COLUMN_SCRS232][row], outputPrefixes[row], outputSuffixes[row]);
+        labelRow.setIdentifierLength(getIdentifierLength(decodeType, row));
+        return labelRow;
+    }
+
+    /**
+     * @return int containing the number of rows in the table
+     */
+    public int size() {
+        return uposIds.length;
+    }
+
+    private static int columnOf(String decodeType) {
+        if (LabelParser.DECODE_TYPE_OEM.equalsIgnoreCase(decodeType)) {
+            return COLUMN_OEM;
+        } else if (LabelParser.DECODE_TYPE_EU.equalsIgnoreCase(decodeType)) {
+            return COLUMN_EU;
+        } else if (LabelParser.DECODE_TYPE_SCRS232.equalsIgnoreCase(decodeType)) {
+            return COLUMN_SCRS232;
+        }
+        return COLUMN_US;
+    }
+
+    private static String trim(String field) {
+        return field == null ? "" : field.trim();
+    }
+
+    private static int parseId(String field) {
+        try {
+            return Integer.parseInt(trim(field));
+        } catch (NumberFormatException nfe) {
+            return jpos.ScannerConst.SCAN_SDT_UNKNOWN;
+        }
+    }
+
+    private static byte[] hexToBytes(String field) {
+        String hex = trim(field);
+        if (hex.length() % 2 != 0) {
+            hex = "0" + hex;
+        }
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,157 @@
+package com.jpos.example;
+
+/**
+ * TagBatch class holds the tags of one de-duplication window packed into
+ * primitive arrays, so an inventory of hundreds of tags is handed over as a
+ * handful of arrays instead of one object, or one property call, per tag.
+ *
+ * Tag i has its ID at getIdBytes()[getIdOffsets()[i] .. getIdOffsets()[i + 1])
+ * and its user data likewise in getUserDataBytes(). Protocols are jpos
+ * RFIDScannerConst.RFID_PR_* codes, times are System.currentTimeMillis()
+ * values and RSSI is as reported by the reader. A batch is not modified
+ * after it is delivered; the arrays are shared, not copied, so callers must
+ * not change them.
+ */
+public class TagBatch {
+
+    private final int count;
+    private final byte[] ids;
+    private final int[] idOffsets;
+    private final byte[] userData;
+    private final int[] userDataOffsets;
+    private final int[] protocols;
+    private final int[] readCounts;
+    private final short[] rssiMin;
+    private final short[] rssiMax;
+    private final long[] rssiSum;
+    private final long[] firstSeen;
+    private final long[] lastSeen;
+
+    TagBatch(int count, byte[] ids, int[] idOffsets, byte[] userData, int[] userDataOffsets,
+            int[] protocols, int[] readCounts, short[] rssiMin, short[] rssiMax, long[] rssiSum,
+            long[] firstSeen, long[] lastSeen) {
+        this.count = count;
+        this.ids = ids;
+        this.idOffsets = idOffsets;
+        this.userData = userData;
+        this.userDataOffsets = userDataOffsets;
+        this.protocols = protocols;
+        this.readCounts = readCounts;
+        this.rssiMin = rssiMin;
+        this.rssiMax = rssiMax;
+        this.rssiSum = rssiSum;
+        this.firstSeen = firstSeen;
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * @return int containing the number of distinct tags
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return long containing the number of reads coalesced into the batch
+     */
+    public long getReadTotal() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += readCounts[i];
+        }
+        return total;
+    }
+
+    public byte[] getIdBytes() {
+        return ids;
+    }
+
+    /**
+     * @return int array of count + 1 offsets into getIdBytes()
+     */
+    public int[] getIdOffsets() {
+        return idOffsets;
+    }
+
+    public byte[] getUserDataBytes() {
+        return userData;
+    }
+
+    /**
+     * @return int array of count + 1 offsets into getUserDataBytes()
+     */
+    public int[] getUserDataOffsets() {
+        return userDataOffsets;
+    }
+
+    public int[] getProtocols() {
+        return protocols;
+    }
+
+    public int[] getReadCounts() {
+        return readCounts;
+    }
+
+    /**
+     * @param i int indicating the tag
+     * @return byte array containing a copy of the tag ID
+     */
+    public byte[] getId(int i) {
+        byte[] id = new byte[idOffsets[i + 1] - idOffsets[i]];
+        System.arraycopy(ids, idOffsets[i], id, 0, id.length);
+        return id;
+    }
+
+    /**
+     * @param i int indicating the tag
+     * @return String containing the tag ID in hex, as RFIDReaderExample
+     * prints it
+     */
+    public String getIdHex(int i) {
+        StringBuilder sb = new StringBuilder((idOffsets[i + 1] - idOffsets[i]) * 2);
+        for (int b = idOffsets[i]; b < idOffsets[i + 1]; b++) {
+            sb.append(Character.forDigit((ids[b] >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(ids[b] & 0xF, 16));
+        }
+        return sb.toString().toUpperCase();
+    }
+
+    /**
+     * @param i int indicating the tag
+     * @return byte array containing a copy of the user data of the latest
+     * read, empty if none was read
+     */
+    public byte[] getUserData(int i) {
+        byte[] data = new byte[userDataOffsets[i + 1] - userDataOffsets[i]];
+        System.arraycopy(userData, userDataOffsets[i], data, 0, data.length);
+        return data;
+    }
+
+    public int getProtocol(int i) {
+        return protocols[i];
+    }
+
+    public int getReadCount(int i) {
+        return readCounts[i];
+    }
+
+    public short getRssiMin(int i) {
+        return rssiMin[i];
+    }
+
+    public short getRssiMax(int i) {
+        return rssiMax[i];
+    }
+
+    public double getRssiMean(int i) {
+        return rssiSum[i] / (double) readCounts[i];
+    }
+
+    public long getFirstSeen(int i) {
+        return firstSeen[i];
+    }
+
+    public long getLastSeen(int i) {
+        return lastSeen[i];
+    }
+}
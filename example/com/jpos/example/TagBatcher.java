@@ -0,0 +1,358 @@
+package com.jpos.example;
+
+import com.datalogic.DLRFIDLibrary.DLRFIDProtocol;
+import com.datalogic.DLRFIDLibrary.DLRFIDTag;
+import com.dls.jpos.common.DLSProperties;
+import com.dls.jpos.interpretation.DLSRFIDScanner;
+import com.dls.jpos.interpretation.TagReceivedListener;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import jpos.RFIDScannerConst;
+
+/**
+ * TagBatcher class coalesces continuous RFID inventory rounds into one
+ * TagBatch per time window.
+ *
+ * Registered on DLSRFIDScanner with addTagReceivedListener, it receives
+ * every inventory round on the reader thread and only folds the tags into
+ * packed arrays: a tag seen again within the window updates its read
+ * count, RSSI min/max/mean and last-seen time instead of adding an entry.
+ * When the window that began with the first tag has passed, the batch is
+ * handed to the listener in one call on the batcher's own thread, so a
+ * dense shelf costs the application one callback per window rather than a
+ * DataEvent and a getCurrentTagID()/nextTag() walk per round.
+ *
+ * The window comes from dls.properties (RFIDDedupWindow, milliseconds,
+ * default 500). The batcher thread sleeps while no tags arrive. DLRFIDTag
+ * carries no user data; see {@link #setUserData(DLSRFIDScanner, int, int, byte[])}
+ * to read it with the tags.
+ */
+public class TagBatcher implements TagReceivedListener {
+
+    public static final String KEY_RFIDDEDUPWINDOW = "RFIDDedupWindow";
+    public static final int DEFAULT_WINDOW_MILLIS = 500;
+    private static final int INITIAL_TAGS = 64;
+    private static final byte[] NO_DATA = new byte[0];
+
+    /**
+     * Receives one batch per window.
+     */
+    public interface Listener {
+
+        void onTagBatch(TagBatch batch);
+    }
+
+    private final long windowMillis;
+    private final Listener listener;
+    private final DeviceThreads threads;
+    private final Map<ByteBuffer, Integer> index = new HashMap<ByteBuffer, Integer>();
+    private int count = 0;
+    private byte[] ids = new byte[INITIAL_TAGS * 12];
+    private int[] idOffsets = new int[INITIAL_TAGS + 1];
+    private byte[][] userData = new byte[INITIAL_TAGS][];
+    private int[] protocols = new int[INITIAL_TAGS];
+    private int[] readCounts = new int[INITIAL_TAGS];
+    private short[] rssiMin = new short[INITIAL_TAGS];
+    private short[] rssiMax = new short[INITIAL_TAGS];
+    private long[] rssiSum = new long[INITIAL_TAGS];
+    private long[] firstSeen = new long[INITIAL_TAGS];
+    private long[] lastSeen = new long[INITIAL_TAGS];
+    private DLSRFIDScanner dataScanner = null;
+    private short dataStart = 0;
+    private int dataLength = 0;
+    private byte[] dataPassword = null;
+
+    /**
+     * Creates a batcher with the window from dls.properties.
+     *
+     * @param listener Listener receiving the batches
+     */
+    public TagBatcher(Listener listener) {
+        this(DLSProperties.getInstance().get(KEY_RFIDDEDUPWINDOW, DEFAULT_WINDOW_MILLIS), listener);
+    }
+
+    /**
+     * @param windowMillis long indicating how long reads are coalesced
+     * @param listener Listener receiving the batches
+     */
+    public TagBatcher(long windowMillis, Listener listener) {
+        this.windowMillis = windowMillis;
+        this.listener = listener;
+        threads = new DeviceThreads("TagBatcher");
+        threads.start("deliver", new Runnable() {
+            @Override
+            public void run() {
+                deliverLoop();
+            }
+        });
+    }
+
+    @Override
+    public void onTagReceived(DLRFIDTag[] tags) {
+        if (tags == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        byte[][] data = readUserData(tags);
+        synchronized (this) {
+            for (int t = 0; t < tags.length; t++) {
+                fold(tags[t].GetId(), toJposProtocol(tags[t].GetType()), tags[t].GetRSSI(), data[t], now);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reads the user data of each tag received, as DLSRFIDScannerService
+     * does for the RFID_RT_*USERDATA commands. It is read on the reader
+     * thread, once per tag and window.
+     *
+     * @param scanner DLSRFIDScanner the batcher is registered on, or null to
+     * stop reading user data
+     * @param start int indicating the first user data byte
+     * @param length int indicating the number of user data bytes, or 0 for
+     * all of them
+     * @param password byte array containing the access password
+     */
+    public synchronized void setUserData(DLSRFIDScanner scanner, int start, int length, byte[] password) {
+        dataScanner = scanner;
+        dataStart = (short) start;
+        dataLength = length;
+        dataPassword = password;
+    }
+
+    /**
+     * Adds one read, e.g. from a source other than DLSRFIDScanner.
+     *
+     * @param id byte array containing the tag ID
+     * @param protocol int containing the RFIDScannerConst.RFID_PR_* code
+     * @param rssi short containing the signal strength
+     * @param data byte array containing user data read with the tag, or null
+     */
+    public synchronized void add(byte[] id, int protocol, short rssi, byte[] data) {
+        fold(id, protocol, rssi, data, System.currentTimeMillis());
+        notifyAll();
+    }
+
+    /**
+     * Delivers what has been collected and stops the batcher thread.
+     *
+     * @param timeoutMillis long indicating how long to wait for the thread
+     * @return boolean indicating whether the thread exited in time
+     */
+    public boolean close(long timeoutMillis) {
+        boolean stopped = threads.shutdown(timeoutMillis);
+        TagBatch batch = takeBatch();
+        if (batch != null) {
+            listener.onTagBatch(batch);
+        }
+        return stopped;
+    }
+
+    /**
+     * @param protocol DLRFIDProtocol of a tag
+     * @return int containing the RFIDScannerConst.RFID_PR_* code, mapped as
+     * DLSRFIDScannerService maps it
+     */
+    public static int toJposProtocol(DLRFIDProtocol protocol) {
+        if (protocol == DLRFIDProtocol.DLRFID_EPC_C1G1) {
+            return RFIDScannerConst.RFID_PR_EPC1;
+        } else if (protocol == DLRFIDProtocol.DLRFID_EPC_C1G2) {
+            return RFIDScannerConst.RFID_PR_EPC1G2;
+        } else if (protocol == DLRFIDProtocol.DLRFID_ISO18000_6b) {
+            return RFIDScannerConst.RFID_PR_ISO180006B;
+        }
+        return RFIDScannerConst.RFID_PR_OTHER;
+    }
+
+    private void fold(byte[] id, int protocol, short rssi, byte[] data, long now) {
+        Integer slot = index.get(ByteBuffer.wrap(id));
+        int i;
+        if (slot != null) {
+            i = slot;
+            readCounts[i]++;
+            rssiMin[i] = (short) Math.min(rssiMin[i], rssi);
+            rssiMax[i] = (short) Math.max(rssiMax[i], rssi);
+        } else {
+            i = count++;
+            ensureCapacity(count, idOffsets[i] + id.length);
+            System.arraycopy(id, 0, ids, idOffsets[i], id.length);
+            idOffsets[i + 1] = idOffsets[i] + id.length;
+            index.put(ByteBuffer.wrap(id.clone()), i);
+            readCounts[i] = 1;
+            rssiMin[i] = rssi;
+            rssiMax[i] = rssi;
+            rssiSum[i] = 0;
+            firstSeen[i] = now;
+            userData[i] = null;
+        }
+        protocols[i] = protocol;
+        rssiSum[i] += rssi;
+        lastSeen[i] = now;
+        if (data != null) {
+            userData[i] = data;
+        }
+    }
+
+    private byte[][] readUserData(DLRFIDTag[] tags) {
+        byte[][] data = new byte[tags.length][];
+        boolean[] needed = new boolean[tags.length];
+        DLSRFIDScanner scanner;
+        short start;
+        int length;
+        byte[] password;
+        synchronized (this) {
+            scanner = dataScanner;
+            start = dataStart;
+            length = dataLength;
+            password = dataPassword;
+            if (scanner == null) {
+                return data;
+            }
+            for (int t = 0; t < tags.length; t++) {
+                Integer slot = index.get(ByteBuffer.wrap(tags[t].GetId()));
+                needed[t] = slot == null || userData[slot] == null;
+            }
+        }
+        //tag I/O, outside the lock so the batcher thread is not held up
+        for (int t = 0; t < tags.length; t++) {
+            if (needed[t]) {
+                data[t] = length == 0 ? scanner.readUserDataFull(tags[t], password)
+                        : scanner.readUserDataPart(tags[t], start, length, password);
+            }
+        }
+        return data;
+    }
+
+    private void ensureCapacity(int tags, int idBytes) {
+        if (tags > protocols.length) {
+            int size = protocols.length * 2;
+            idOffsets = Arrays.copyOf(idOffsets, size + 1);
+            userData = Arrays.copyOf(userData, size);
+            protocols = Arrays.copyOf(protocols, size);
+            readCounts = Arrays.copyOf(readCounts, size);
+            rssiMin = Arrays.copyOf(rssiMin, size);
+            rssiMax = Arrays.copyOf(rssiMax, size);
+            rssiSum = Arrays.copyOf(rssiSum, size);
+            firstSeen = Arrays.copyOf(firstSeen, size);
+            lastSeen = Arrays.copyOf(lastSeen, size);
+        }
+        if (idBytes > ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(idBytes, ids.length * 2));
+        }
+    }
+
+    /**
+     * Packs the current window into a batch and starts a new window. The
+     * collecting arrays are kept for the next window.
+     */
+    private synchronized TagBatch takeBatch() {
+        if (count == 0) {
+            return null;
+        }
+        int dataLength = 0;
+        for (int i = 0; i < count; i++) {
+            dataLength += userData[i] == null ? 0 : userData[i].length;
+        }
+        byte[] packedData = dataLength == 0 ? NO_DATA : new byte[dataLength];
+        int[] dataOffsets = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            byte[] data = userData[i];
+            int length = data == null ? 0 : data.length;
+            if (length > 0) {
+                System.arraycopy(data, 0, packedData, dataOffsets[i], length);
+            }
+            dataOffsets[i + 1] = dataOffsets[i] + length;
+            userData[i] = null;
+        }
+        TagBatch batch = new TagBatch(count, Arrays.copyOf(ids, idOffsets[count]),
+                Arrays.copyOf(idOffsets, count + 1), packedData, dataOffsets,
+                Arrays.copyOf(protocols, count), Arrays.copyOf(readCounts, count),
+                Arrays.copyOf(rssiMin, count), Arrays.copyOf(rssiMax, count),
+                Arrays.copyOf(rssiSum, count), Arrays.copyOf(firstSeen, count),
+                Arrays.copyOf(lastSeen, count));
+        count = 0;
+        index.clear();
+        return batch;
+    }
+
+    private void deliverLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long windowStart;
+                synchronized (this) {
+                    while (count == 0) {
+                        wait();
+                    }
+                    windowStart = firstSeen[0];
+                }
+                long remaining = windowStart + windowMillis - System.currentTimeMillis();
+                if (remaining > 0) {
+                    Thread.sleep(remaining);
+                }
+                TagBatch batch = takeBatch();
+                if (batch != null) {
+                    try {
+                        listener.onTagBatch(batch);
+                    } catch (RuntimeException re) {
+                        System.err.println("ERROR: Tag batch listener failed, " + re);
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            //closed
+        }
+    }
+
+    /**
+     * Feeds a simulated dense shelf (Usage: TagBatcher [tags] [rounds]) and
+     * checks that every tag arrives once per window with all its reads.
+     */
+    public static void main(String[] args) throws Exception {
+        int tags = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final TagBatch[] received = new TagBatch[1];
+        TagBatcher batcher = new TagBatcher(1000, new Listener() {
+            @Override
+            public void onTagBatch(TagBatch batch) {
+                synchronized (received) {
+                    received[0] = batch;
+                    received.notifyAll();
+                }
+            }
+        });
+        byte[][] epcs = new byte[tags][12];
+        for (int t = 0; t < tags; t++) {
+            epcs[t][0] = 0x30;
+            epcs[t][10] = (byte) (t >> 8);
+            epcs[t][11] = (byte) t;
+        }
+        LatencyHistogram roundLatency = new LatencyHistogram();
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            for (int t = 0; t < tags; t++) {
+                batcher.add(epcs[t], RFIDScannerConst.RFID_PR_EPC1G2, (short) (-40 - (t + r) % 20), null);
+            }
+            roundLatency.record(System.nanoTime() - start);
+        }
+        TagBatch batch;
+        synchronized (received) {
+            long end = System.currentTimeMillis() + 5000;
+            while (received[0] == null && System.currentTimeMillis() < end) {
+                received.wait(100);
+            }
+            batch = received[0];
+        }
+        batcher.close(1000);
+        boolean ok = batch != null && batch.getCount() == tags && batch.getReadTotal() == (long) tags * rounds;
+        System.out.println("Reads:      " + (long) tags * rounds + " in " + rounds + " rounds");
+        System.out.println("Batch:      " + (batch == null ? "none" : batch.getCount() + " tags, "
+                + batch.getReadTotal() + " reads, first " + batch.getIdHex(0) + " x" + batch.getReadCount(0)
+                + " rssi " + batch.getRssiMin(0) + ".." + batch.getRssiMax(0)));
+        System.out.println("Per round:  " + roundLatency.summary());
+        System.out.println(ok ? "INFO: Inventory coalesced as expected." : "ERROR: Inventory mismatch.");
+        System.exit(ok ? 0 : 1);
+    }
+}
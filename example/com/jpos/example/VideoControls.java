@@ -41,7 +41,6 @@ public class VideoControls implements StatusUpdateListener, DataListener, ErrorL
      * For instance logical name could be passed in as an argument from the command line.
      */
     public static void main(String[] args) {
-        ByteArrayOutputStream dioResult = new ByteArrayOutputStream();
         String logicalName = "DLS-Magellan-9800i-USB-OEM-Scanner-Scale";
         int numIterations = 1000;
         int timeout = 5000;
@@ -80,7 +79,6 @@ public class VideoControls implements StatusUpdateListener, DataListener, ErrorL
             }
         }
         System.out.println(" ");
-        int[] iResult = new int[50];
         String[] results;
         //Fancy self instantiating class
         script = new VideoControls();
@@ -110,29 +108,28 @@ public class VideoControls implements StatusUpdateListener, DataListener, ErrorL
 
 
             int i = 0;
-            long start_time;
-            long end_time;
             DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+            VideoStreamToggle toggle = new VideoStreamToggle(scanner);
+            VideoStreamToggle.Response response;
 
             while(i < numIterations){
                 //Turn video stream on, report results, set timeout.
-                start_time = System.currentTimeMillis();
-                scanner.directIO(DLSJposConst.DIO_EXT_VIDEO_STREAM_ON, iResult, dioResult);
-                end_time = System.currentTimeMillis();
-                results = VideoControls.processDIOResults(iResult, dioResult);
-                System.out.println(dateFormat.format(new Date()) + " Video ON  ["+results[0]+"] Scanner Response after " + (end_time-start_time) + " milliseconds: " + results[1]);
+                response = toggle.setStreaming(true).get();
+                results = VideoControls.processToggleResults(response);
+                System.out.println(dateFormat.format(new Date()) + " Video ON  ["+results[0]+"] Scanner Response after " + String.format("%.3f", response.getLatencyNanos() / 1000000.0) + " milliseconds: " + results[1]);
                 Thread.sleep(timeout);
 
                 //Turn video streaming off, report results, set timeout.
-                start_time = System.currentTimeMillis();
-                scanner.directIO(DLSJposConst.DIO_EXT_VIDEO_STREAM_OFF, iResult, dioResult);
-                end_time = System.currentTimeMillis();
-                results = VideoControls.processDIOResults(iResult, dioResult);
-                System.out.println(dateFormat.format(new Date()) + " Video OFF ["+results[0]+"] Scanner Response after " + (end_time-start_time) + " milliseconds: " + results[1]);
+                response = toggle.setStreaming(false).get();
+                results = VideoControls.processToggleResults(response);
+                System.out.println(dateFormat.format(new Date()) + " Video OFF ["+results[0]+"] Scanner Response after " + String.format("%.3f", response.getLatencyNanos() / 1000000.0) + " milliseconds: " + results[1]);
                 Thread.sleep(timeout);
 
                 i++;
             }
+            System.out.println("Video ON  latency: " + toggle.getLatency(true).summary());
+            System.out.println("Video OFF latency: " + toggle.getLatency(false).summary());
+            toggle.close(1000);
 
         } catch (JposException je) {
             System.out.println("JPOS Exception: "+je.getMessage()+"\\n"+je.getStackTrace());
@@ -160,6 +157,13 @@ public class VideoControls implements StatusUpdateListener, DataListener, ErrorL
         return results;
     }
     
+    public static String[] processToggleResults(VideoStreamToggle.Response response){
+        String[] results = new String[2];
+        results[0] = convertResponseCodeToString(response.getStatus());
+        results[1] = response.hasResponse()?convertResponseCodeToString(response.getResponse()):"Unknown";
+        return results;
+    }
+
     @Override
     public void statusUpdateOccurred(StatusUpdateEvent sue) {
         int nStatus = sue.getStatus();
@@ -0,0 +1,282 @@
+package com.jpos.example;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import jpos.BaseJposControl;
+import jpos.JposConst;
+import jpos.JposException;
+
+/**
+ * VideoStreamToggle class switches the video stream of an imager on and off
+ * without blocking the caller.
+ *
+ * DIO_EXT_VIDEO_STREAM_ON/OFF block until the scanner answers, which on a
+ * self-checkout imager can take tens of milliseconds. Toggles are handed to
+ * a single device thread, in order, and the returned future completes with
+ * the scanner's response. The thread owns one pair of reused
+ * DirectIOChannel results, so a toggle allocates only its future and
+ * response.
+ *
+ * To keep the worst case down, a toggle that has not started yet is
+ * coalesced with later ones: asking for the same state again returns the
+ * queued future, and asking for the opposite state cancels it, so a burst
+ * of on/off requests costs at most one round trip behind the one in
+ * progress. Each completed toggle is recorded in a LatencyHistogram per
+ * direction, measured with System.nanoTime() around the directIO call.
+ */
+public class VideoStreamToggle {
+
+    private final DirectIOChannel channel;
+    private final DeviceThreads threads;
+    private final ExecutorService worker;
+    private final DirectIOChannel.Result result = new DirectIOChannel.Result();
+    private final LatencyHistogram onLatency = new LatencyHistogram();
+    private final LatencyHistogram offLatency = new LatencyHistogram();
+    private Request queued = null;
+    private long issued = 0;
+    private long coalesced = 0;
+
+    /**
+     * Scanner answer to one toggle.
+     */
+    public static final class Response {
+
+        private final boolean on;
+        private final int status;
+        private final int response;
+        private final boolean hasResponse;
+        private final long latencyNanos;
+
+        private Response(boolean on, DirectIOChannel.Result result, long latencyNanos) {
+            this.on = on;
+            this.status = result.getData().length > 0 ? result.getStatus() : -1;
+            this.hasResponse = result.getLength() > 5;
+            this.response = hasResponse ? result.getBuffer()[5] : -1;
+            this.latencyNanos = latencyNanos;
+        }
+
+        /**
+         * @return boolean indicating whether the stream was switched on
+         */
+        public boolean isOn() {
+            return on;
+        }
+
+        /**
+         * @return int containing the DIO status returned in data[0]
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return boolean indicating whether the scanner returned a response
+         * code
+         */
+        public boolean hasResponse() {
+            return hasResponse;
+        }
+
+        /**
+         * @return int containing the scanner response code, byte 5 of the
+         * returned data, e.g. 'T' or 't'
+         */
+        public int getResponse() {
+            return response;
+        }
+
+        /**
+         * @return long containing the directIO round trip in nanoseconds
+         */
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+    }
+
+    private static final class Request {
+
+        private final boolean on;
+        private final CompletableFuture<Response> future = new CompletableFuture<Response>();
+
+        private Request(boolean on) {
+            this.on = on;
+        }
+    }
+
+    /**
+     * @param scanner BaseJposControl of an imager that is claimed and enabled
+     */
+    public VideoStreamToggle(BaseJposControl scanner) {
+        this.channel = new DirectIOChannel(scanner);
+        this.threads = new DeviceThreads("VideoStreamToggle");
+        this.worker = threads.fixedExecutor("device", 1);
+    }
+
+    /**
+     * Switches the video stream on or off.
+     *
+     * @param on boolean indicating the requested state
+     * @return CompletableFuture of the scanner response. It fails with the
+     * JposException of the service, and is cancelled when a later toggle to
+     * the opposite state supersedes it before it started.
+     */
+    public CompletableFuture<Response> setStreaming(boolean on) {
+        CompletableFuture<Response> future;
+        synchronized (this) {
+            if (queued != null && !queued.future.isDone()) {
+                if (queued.on == on) {
+                    return queued.future;
+                }
+                queued.future.cancel(false);
+                coalesced++;
+                //the drain already submitted picks up the replacement
+                queued = new Request(on);
+                return queued.future;
+            }
+            queued = new Request(on);
+            future = queued.future;
+        }
+        try {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            future.completeExceptionally(new JposException(JposConst.JPOS_E_CLOSED, "Video toggle closed."));
+        }
+        return future;
+    }
+
+    /**
+     * @param on boolean indicating the direction
+     * @return LatencyHistogram of completed toggles in that direction
+     */
+    public LatencyHistogram getLatency(boolean on) {
+        return on ? onLatency : offLatency;
+    }
+
+    /**
+     * @return long containing the number of toggles sent to the scanner
+     */
+    public synchronized long getIssued() {
+        return issued;
+    }
+
+    /**
+     * @return long containing the number of toggles superseded before they
+     * were sent
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Cancels a queued toggle and stops the device thread.
+     *
+     * @param timeoutMillis long indicating how long to wait for a toggle in
+     * progress
+     * @return boolean indicating whether the thread exited in time
+     */
+    public boolean close(long timeoutMillis) {
+        synchronized (this) {
+            if (queued != null) {
+                queued.future.cancel(false);
+                queued = null;
+            }
+        }
+        return threads.shutdown(timeoutMillis);
+    }
+
+    private void drain() {
+        Request request;
+        synchronized (this) {
+            request = queued;
+            queued = null;
+            if (request == null || request.future.isDone()) {
+                return;
+            }
+            issued++;
+        }
+        DirectIOChannel.Command command = request.on
+                ? DirectIOChannel.EXT_VIDEO_STREAM_ON : DirectIOChannel.EXT_VIDEO_STREAM_OFF;
+        long start = System.nanoTime();
+        try {
+            if (!channel.execute(command, result)) {
+                request.future.completeExceptionally(new JposException(JposConst.JPOS_E_ILLEGAL,
+                        command.getName() + " is not supported by this device."));
+                return;
+            }
+        } catch (JposException je) {
+            request.future.completeExceptionally(je);
+            return;
+        }
+        long latency = System.nanoTime() - start;
+        getLatency(request.on).record(latency);
+        request.future.complete(new Response(request.on, result, latency));
+    }
+
+    /**
+     * Toggles a stand-in imager in bursts and checks that queued toggles are
+     * coalesced and the last requested state wins (Usage: VideoStreamToggle
+     * [bursts]).
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int bursts = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final boolean[] state = new boolean[1];
+        BaseJposControl imager = new jpos.Scanner() {
+            @Override
+            public void directIO(int command, int[] data, Object object) throws JposException {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ie) {
+                    throw new JposException(JposConst.JPOS_E_FAILURE, "Interrupted.");
+                }
+                state[0] = command == DirectIOChannel.EXT_VIDEO_STREAM_ON.getCode();
+                data[0] = 0;
+                java.io.ByteArrayOutputStream out = (java.io.ByteArrayOutputStream) object;
+                out.reset();
+                out.write(new byte[]{0x02, 0, 0, 0, 0, (byte) (state[0] ? 'T' : 't')}, 0, 6);
+            }
+        };
+        VideoStreamToggle toggle = new VideoStreamToggle(imager);
+        int requested = 0;
+        int cancelled = 0;
+        boolean ok = true;
+        for (int b = 0; b < bursts; b++) {
+            CompletableFuture<Response> last = null;
+            CompletableFuture<Response> first = null;
+            //on, off, on, ... ending with on for even bursts and off for odd ones
+            int length = 5 + (b & 1);
+            for (int i = 0; i < length; i++) {
+                last = toggle.setStreaming((i & 1) == 0);
+                first = first == null ? last : first;
+                requested++;
+            }
+            try {
+                Response response = last.get();
+                ok &= response.isOn() == ((b & 1) == 0) && state[0] == response.isOn()
+                        && response.getResponse() == (response.isOn() ? 'T' : 't');
+            } catch (ExecutionException ee) {
+                System.err.println("ERROR: " + ee.getCause());
+                ok = false;
+            } catch (CancellationException ce) {
+                ok = false;
+            }
+            cancelled += first.isCancelled() ? 1 : 0;
+        }
+        long issued = toggle.getIssued();
+        ok &= issued < requested && issued == toggle.getLatency(true).getCount() + toggle.getLatency(false).getCount();
+        System.out.println("Toggles:   " + requested + " requested, " + issued + " sent, "
+                + toggle.getCoalesced() + " coalesced, " + cancelled + " first toggles cancelled");
+        System.out.println("ON:        " + toggle.getLatency(true).summary());
+        System.out.println("OFF:       " + toggle.getLatency(false).summary());
+        toggle.close(1000);
+        System.out.println(ok ? "INFO: Video toggles coalesced as expected." : "ERROR: Video toggle mismatch.");
+        System.exit(ok ? 0 : 1);
+    }
+}
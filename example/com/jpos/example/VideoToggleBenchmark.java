@@ -0,0 +1,181 @@
+package com.jpos.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import jpos.JposException;
+import jpos.Scanner;
+
+/**
+ * VideoToggleBenchmark class measures DIO_EXT_VIDEO_STREAM_ON/OFF response
+ * times on one or more imagers and reports the latency distribution per
+ * device model.
+ *
+ * Each scanner is toggled through a VideoStreamToggle, so the figures are
+ * the same directIO round trips an application sees, recorded with
+ * System.nanoTime(). Logical names that resolve to the same
+ * PhysicalDeviceName are reported together. Warmup toggles are sent first
+ * and not recorded, since the first few include class loading and USB
+ * descriptor traffic.
+ *
+ * This must be run from the root JavaPOS directory.
+ *
+ * Usage: VideoToggleBenchmark [-n iterations] [-w warmup] [-d dwellMillis]
+ * logicalName...
+ */
+public class VideoToggleBenchmark {
+
+    public static final int DEFAULT_ITERATIONS = 200;
+    public static final int DEFAULT_WARMUP = 10;
+    public static final int DEFAULT_DWELL_MILLIS = 100;
+
+    private final int iterations;
+    private final int warmup;
+    private final int dwellMillis;
+    //model name -> {on, off}
+    private final Map<String, LatencyHistogram[]> models = new LinkedHashMap<String, LatencyHistogram[]>();
+    private int failures = 0;
+
+    /**
+     * @param iterations int indicating the number of on/off pairs recorded
+     * per scanner
+     * @param warmup int indicating the number of unrecorded pairs sent first
+     * @param dwellMillis int containing the time the stream stays in each
+     * state
+     */
+    public VideoToggleBenchmark(int iterations, int warmup, int dwellMillis) {
+        this.iterations = iterations;
+        this.warmup = warmup;
+        this.dwellMillis = dwellMillis;
+    }
+
+    /**
+     * Toggles one scanner and adds its samples to its model.
+     *
+     * @param scanner Scanner that is claimed and enabled
+     * @param model String containing the model the samples are reported
+     * under
+     * @return boolean indicating whether every toggle succeeded
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean run(Scanner scanner, String model) throws InterruptedException {
+        LatencyHistogram[] latency = histogramsOf(model);
+        VideoStreamToggle toggle = new VideoStreamToggle(scanner);
+        boolean ok = true;
+        try {
+            for (int i = 0; i < warmup + iterations; i++) {
+                for (int state = 0; state < 2; state++) {
+                    boolean on = state == 0;
+                    try {
+                        VideoStreamToggle.Response response = toggle.setStreaming(on).get();
+                        if (i >= warmup) {
+                            latency[state].record(response.getLatencyNanos());
+                        }
+                    } catch (ExecutionException ee) {
+                        ok = false;
+                        failures++;
+                        System.err.println("ERROR: " + model + " video " + (on ? "ON" : "OFF") + " failed, "
+                                + ee.getCause());
+                    }
+                    Thread.sleep(dwellMillis);
+                }
+            }
+        } finally {
+            toggle.close(1000);
+        }
+        return ok;
+    }
+
+    /**
+     * @return Map of model name to its {on, off} histograms, in the order
+     * the models were first seen
+     */
+    public Map<String, LatencyHistogram[]> getModels() {
+        return models;
+    }
+
+    /**
+     * @return int containing the number of failed toggles
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Prints the distribution of each model and the worst case overall.
+     */
+    public void report() {
+        long worst = 0;
+        String worstModel = "-";
+        for (Map.Entry<String, LatencyHistogram[]> entry : models.entrySet()) {
+            LatencyHistogram[] latency = entry.getValue();
+            System.out.println(entry.getKey());
+            System.out.println("  ON:  " + latency[0].summary());
+            System.out.println("  OFF: " + latency[1].summary());
+            for (LatencyHistogram histogram : latency) {
+                if (histogram.getMax() > worst) {
+                    worst = histogram.getMax();
+                    worstModel = entry.getKey();
+                }
+            }
+        }
+        System.out.println(String.format("Worst case: %.1fus on %s", worst / 1000.0, worstModel));
+    }
+
+    private LatencyHistogram[] histogramsOf(String model) {
+        LatencyHistogram[] latency = models.get(model);
+        if (latency == null) {
+            latency = new LatencyHistogram[]{new LatencyHistogram(), new LatencyHistogram()};
+            models.put(model, latency);
+        }
+        return latency;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int iterations = DEFAULT_ITERATIONS;
+        int warmup = DEFAULT_WARMUP;
+        int dwell = DEFAULT_DWELL_MILLIS;
+        int first = 0;
+        while (first + 1 < args.length && args[first].startsWith("-")) {
+            int value = Integer.parseInt(args[first + 1]);
+            if ("-n".equals(args[first])) {
+                iterations = value;
+            } else if ("-w".equals(args[first])) {
+                warmup = value;
+            } else if ("-d".equals(args[first])) {
+                dwell = value;
+            }
+            first += 2;
+        }
+        if (first >= args.length) {
+            System.err.println("ERROR: Usage VideoToggleBenchmark [-n iterations] [-w warmup] [-d dwellMillis] logicalName...");
+            System.exit(1);
+        }
+        VideoToggleBenchmark bench = new VideoToggleBenchmark(iterations, warmup, dwell);
+        for (int i = first; i < args.length; i++) {
+            Scanner scanner = new Scanner();
+            try {
+                scanner.open(args[i]);
+                scanner.claim(1000);
+                scanner.setDeviceEnabled(true);
+                String model = scanner.getPhysicalDeviceName();
+                model = model == null || model.trim().isEmpty() ? args[i] : model.trim();
+                System.out.println("INFO: Toggling " + args[i] + " (" + model + ") " + iterations + " times...");
+                bench.run(scanner, model);
+            } catch (JposException je) {
+                System.err.println("ERROR: Failed to start " + args[i] + ", " + je);
+                bench.failures++;
+            } finally {
+                try {
+                    scanner.setDeviceEnabled(false);
+                    scanner.release();
+                    scanner.close();
+                } catch (JposException je) {
+                    //ignoring exceptions for this example
+                }
+            }
+        }
+        bench.report();
+        System.exit(bench.getFailures() == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,70 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSProperties;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * WaitStrategy enumerates how a thread waits on an EventRing when there is
+ * nothing to do.
+ *
+ * SPIN burns a core for the lowest hand-off latency and should only be used
+ * where a core can be spared for it. YIELD gives the core back to the
+ * scheduler between checks, and PARK sleeps until woken, which is the right
+ * choice for most registers. The strategy is read from
+ * dls.properties (EventWaitStrategy) so it can be changed per lane without
+ * rebuilding.
+ */
+public enum WaitStrategy {
+
+    SPIN, YIELD, PARK;
+
+    public static final String KEY_EVENTWAITSTRATEGY = "EventWaitStrategy";
+    public static final String KEY_EVENTQUEUESIZE = "EventQueueSize";
+
+    private static final long PARK_NANOS = 1000000L;
+    private static final int SPIN_TRIES = 100;
+
+    /**
+     * Waits once. Callers loop on their own condition and call this with an
+     * increasing counter, so PARK and YIELD spin briefly before backing off.
+     *
+     * @param counter int indicating how many times in a row the caller has
+     * found nothing to do
+     */
+    public void idle(int counter) {
+        switch (this) {
+            case SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELD:
+                if (counter < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+                break;
+            case PARK:
+            default:
+                if (counter < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Reads EventWaitStrategy from dls.properties, defaulting to PARK.
+     *
+     * @return WaitStrategy configured for this installation
+     */
+    public static WaitStrategy fromProperties() {
+        String value = DLSProperties.getInstance().get(KEY_EVENTWAITSTRATEGY, PARK.name());
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            return PARK;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.jpos.example;
+
+import com.dls.jpos.common.DLSProperties;
+import java.lang.management.ManagementFactory;
+import jpos.JposException;
+import jpos.Scale;
+import jpos.ScaleConst;
+import jpos.events.StatusUpdateEvent;
+import jpos.events.StatusUpdateListener;
+
+/**
+ * WeightStream class turns the StatusUpdateEvents of a live-weight scale
+ * into a stream of primitive weight samples, passing on only the ones that
+ * carry news.
+ *
+ * With status notify enabled, DLSScaleService posts an event for every
+ * weight report (SCAL_SUE_STABLE_WEIGHT, SCAL_SUE_WEIGHT_UNSTABLE,
+ * SCAL_SUE_WEIGHT_ZERO, ...), so a produce lane with a bag settling on the
+ * platter sends a stream of nearly identical weights. The stream forwards
+ * a sample when:
+ * <ul>
+ * <li>the status differs from the last one forwarded, or</li>
+ * <li>the weight has settled, or</li>
+ * <li>the weight moved by at least WeightChangeThreshold and
+ * WeightSampleInterval milliseconds have passed since the last one.</li>
+ * </ul>
+ * Stable weights count as settled once the last WeightSettleSamples of them
+ * lie within WeightSettleTolerance, with no other status in between. The
+ * window is a fixed int array and samples are passed as primitives, so the
+ * stream allocates nothing per event.
+ *
+ * Weights are ScaleLiveWeight values, i.e. thousandths of the WeightUnit;
+ * the settings come from dls.properties.
+ */
+public class WeightStream implements StatusUpdateListener {
+
+    public static final String KEY_WEIGHTCHANGETHRESHOLD = "WeightChangeThreshold";
+    public static final String KEY_WEIGHTSAMPLEINTERVAL = "WeightSampleInterval";
+    public static final String KEY_WEIGHTSETTLESAMPLES = "WeightSettleSamples";
+    public static final String KEY_WEIGHTSETTLETOLERANCE = "WeightSettleTolerance";
+    public static final int DEFAULT_CHANGE_THRESHOLD = 5;
+    public static final int DEFAULT_SAMPLE_INTERVAL = 100;
+    public static final int DEFAULT_SETTLE_SAMPLES = 3;
+    public static final int DEFAULT_SETTLE_TOLERANCE = 5;
+
+    /**
+     * Receives the forwarded samples, on the jpos event thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param status int containing the ScaleConst.SCAL_SUE_* status
+         * @param weight int containing the live weight, 0 unless stable
+         * @param settled boolean indicating whether the weight has settled
+         * @param timestampNanos long containing System.nanoTime() of the
+         * event
+         */
+        void onWeight(int status, int weight, boolean settled, long timestampNanos);
+    }
+
+    private final Scale scale;
+    private final Listener listener;
+    private final int changeThreshold;
+    private final long intervalNanos;
+    private final int settleTolerance;
+    private final int[] window;
+    private int windowCount = 0;
+    private int windowNext = 0;
+    private boolean settled = false;
+    private int lastStatus = -1;
+    private int lastWeight = 0;
+    private long lastForwarded = 0;
+    private long received = 0;
+    private long forwarded = 0;
+
+    /**
+     * Creates a stream with the settings from dls.properties.
+     *
+     * @param scale Scale to read the live weight from, or null when samples
+     * are fed through {@link #accept}
+     * @param listener Listener receiving the samples
+     */
+    public WeightStream(Scale scale, Listener listener) {
+        this(scale, listener, DLSProperties.getInstance().get(KEY_WEIGHTCHANGETHRESHOLD, DEFAULT_CHANGE_THRESHOLD),
+                DLSProperties.getInstance().get(KEY_WEIGHTSAMPLEINTERVAL, DEFAULT_SAMPLE_INTERVAL),
+                DLSProperties.getInstance().get(KEY_WEIGHTSETTLESAMPLES, DEFAULT_SETTLE_SAMPLES),
+                DLSProperties.getInstance().get(KEY_WEIGHTSETTLETOLERANCE, DEFAULT_SETTLE_TOLERANCE));
+    }
+
+    /**
+     * @param scale Scale to read the live weight from, or null
+     * @param listener Listener receiving the samples
+     * @param changeThreshold int containing the smallest weight change
+     * forwarded
+     * @param intervalMillis int containing the shortest time between
+     * forwarded samples of the same status
+     * @param settleSamples int indicating how many stable weights make up
+     * the settle window
+     * @param settleTolerance int containing the largest spread of a settled
+     * window
+     */
+    public WeightStream(Scale scale, Listener listener, int changeThreshold, int intervalMillis,
+            int settleSamples, int settleTolerance) {
+        this.scale = scale;
+        this.listener = listener;
+        this.changeThreshold = changeThreshold;
+        this.intervalNanos = intervalMillis * 1000000L;
+        this.settleTolerance = settleTolerance;
+        this.window = new int[Math.max(1, settleSamples)];
+    }
+
+    @Override
+    public void statusUpdateOccurred(StatusUpdateEvent sue) {
+        int status = sue.getStatus();
+        int weight = 0;
+        if (status == ScaleConst.SCAL_SUE_STABLE_WEIGHT && scale != null) {
+            try {
+                weight = scale.getScaleLiveWeight();
+            } catch (JposException je) {
+                System.err.println("ERROR: could not get weight data, " + je);
+                return;
+            }
+        }
+        accept(status, weight, System.nanoTime());
+    }
+
+    /**
+     * Feeds one sample, e.g. from a source other than a jpos Scale.
+     *
+     * @param status int containing the ScaleConst.SCAL_SUE_* status
+     * @param weight int containing the live weight
+     * @param timestampNanos long containing System.nanoTime() of the sample
+     */
+    public synchronized void accept(int status, int weight, long timestampNanos) {
+        received++;
+        boolean nowSettled = false;
+        if (status == ScaleConst.SCAL_SUE_STABLE_WEIGHT) {
+            window[windowNext] = weight;
+            windowNext = (windowNext + 1) % window.length;
+            if (windowCount < window.length) {
+                windowCount++;
+            }
+            nowSettled = windowCount == window.length && spread() <= settleTolerance;
+        } else {
+            windowCount = 0;
+        }
+        boolean forward;
+        if (status != lastStatus || (nowSettled && !settled)) {
+            forward = true;
+        } else {
+            forward = Math.abs(weight - lastWeight) >= changeThreshold
+                    && timestampNanos - lastForwarded >= intervalNanos;
+        }
+        settled = nowSettled;
+        if (forward) {
+            forwarded++;
+            lastStatus = status;
+            lastWeight = weight;
+            lastForwarded = timestampNanos;
+            listener.onWeight(status, weight, nowSettled, timestampNanos);
+        }
+    }
+
+    /**
+     * @return long containing the number of samples received
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return long containing the number of samples forwarded
+     */
+    public synchronized long getForwarded() {
+        return forwarded;
+    }
+
+    private int spread() {
+        int min = window[0];
+        int max = window[0];
+        for (int i = 1; i < window.length; i++) {
+            min = Math.min(min, window[i]);
+            max = Math.max(max, window[i]);
+        }
+        return max - min;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Replays simulated produce weighings, a bag dropped on the platter,
+     * bouncing and settling, then lifted off (Usage: WeightStream
+     * [weighings]), and checks that each settles once.
+     */
+    public static void main(String[] args) {
+        int weighings = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int[] settledCount = new int[1];
+        WeightStream stream = new WeightStream(null, new Listener() {
+            @Override
+            public void onWeight(int status, int weight, boolean settled, long timestampNanos) {
+                if (settled) {
+                    settledCount[0]++;
+                }
+            }
+        }, DEFAULT_CHANGE_THRESHOLD, DEFAULT_SAMPLE_INTERVAL, DEFAULT_SETTLE_SAMPLES, DEFAULT_SETTLE_TOLERANCE);
+        long now = 0;
+        long seed = 19;
+        //warm up before measuring allocation
+        for (int i = 0; i < 20000; i++) {
+            stream.accept(ScaleConst.SCAL_SUE_WEIGHT_ZERO, 0, now);
+        }
+        long warmup = stream.getForwarded();
+        long allocated = allocatedBytes();
+        for (int w = 0; w < weighings; w++) {
+            int target = 200 + (w * 37) % 1800;
+            for (int s = 0; s < 40; s++) {
+                now += 10000000L;
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                int noise = (int) ((seed >>> 33) % 5) - 2;
+                if (s < 5) {
+                    stream.accept(ScaleConst.SCAL_SUE_WEIGHT_UNSTABLE, 0, now);
+                } else if (s < 10) {
+                    //bouncing, reported stable but far apart
+                    stream.accept(ScaleConst.SCAL_SUE_STABLE_WEIGHT, target + (10 - s) * 40 + noise, now);
+                } else {
+                    stream.accept(ScaleConst.SCAL_SUE_STABLE_WEIGHT, target + noise, now);
+                }
+            }
+            for (int s = 0; s < 10; s++) {
+                now += 10000000L;
+                stream.accept(ScaleConst.SCAL_SUE_WEIGHT_ZERO, 0, now);
+            }
+        }
+        allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+        long events = (long) weighings * 50;
+        long forwarded = stream.getForwarded() - warmup;
+        System.out.println("Events:    " + events + " received, " + forwarded + " forwarded");
+        System.out.println("Settled:   " + settledCount[0] + " of " + weighings + " weighings");
+        System.out.println("Allocated: " + (allocated < 0 ? "n/a" : allocated + " bytes"));
+        boolean ok = settledCount[0] == weighings && allocated < events && forwarded < events / 4;
+        System.out.println(ok ? "INFO: Weight stream decimated as expected." : "ERROR: Weight stream mismatch.");
+        System.exit(ok ? 0 : 1);
+    }
+}